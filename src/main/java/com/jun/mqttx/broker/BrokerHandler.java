@@ -17,9 +17,8 @@
 package com.jun.mqttx.broker;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.jun.mqttx.broker.handler.AbstractMqttSessionHandler;
-import com.jun.mqttx.broker.handler.ConnectHandler;
 import com.jun.mqttx.broker.handler.MessageDelegatingHandler;
+import com.jun.mqttx.broker.handler.OutboundQueueHandler;
 import com.jun.mqttx.broker.handler.PublishHandler;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.constants.InternalMessageEnum;
@@ -38,14 +37,10 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.group.ChannelGroup;
-import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.ssl.SslHandshakeCompletionEvent;
 import io.netty.handler.timeout.IdleState;
 import io.netty.handler.timeout.IdleStateEvent;
-import io.netty.util.AttributeKey;
-import io.netty.util.concurrent.GlobalEventExecutor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
@@ -73,8 +68,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 @Component
 public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> implements Watcher {
     //@formatter:off
-    /** channel 群组 */
-    public static final ChannelGroup CHANNELS = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    /** 当前连接数量 */
+    public static final AtomicInteger ACTIVE_SIZE = new AtomicInteger(0);
     /** 历史最大连接数量 */
     public static final AtomicInteger MAX_ACTIVE_SIZE = new AtomicInteger(0);
     /** broker 启动时间 */
@@ -106,13 +101,12 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) {
-        CHANNELS.add(ctx.channel());
+        int now = ACTIVE_SIZE.incrementAndGet();
 
         if (enableSysTopic) {
             // cas
             while (true) {
                 int old = MAX_ACTIVE_SIZE.get();
-                int now = CHANNELS.size();
 
                 if (old >= now) {
                     break;
@@ -128,7 +122,7 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
     /**
      * 连接断开后进行如下操作:
      * <ol>
-     *     <li>清理 {@link ConnectHandler#CLIENT_MAP} 中保存的 clientId 与 channelId 绑定关系</li>
+     *     <li>从 {@link ConnectionRegistry} 注销客户端连接</li>
      *     <li>遗嘱消息处理</li>
      *     <li>当 cleanSession = 0 时持久化 session,这样做的目的是保存 <code>Session#messageId</code> 字段变化</li>
      * </ol>
@@ -143,12 +137,14 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
      */
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
-        // 获取当前会话
-        Session session = (Session) ctx.channel().attr(AttributeKey.valueOf(Session.KEY)).get();
+        ACTIVE_SIZE.decrementAndGet();
+
+        // 获取当前连接
+        ClientConnection connection = ClientConnection.of(ctx.channel());
 
         // 会话状态处理
-        if (session != null) {
-            onClientDisconnected(ctx, session);
+        if (connection != null) {
+            onClientDisconnected(ctx, connection);
         }
     }
 
@@ -160,11 +156,17 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
      *     <li>下线通知</li>
      * </ol>
      *
-     * @param ctx     {@link ChannelHandlerContext}
-     * @param session 会话
+     * @param ctx        {@link ChannelHandlerContext}
+     * @param connection 客户端连接
      */
-    private void onClientDisconnected(ChannelHandlerContext ctx, Session session) {
+    private void onClientDisconnected(ChannelHandlerContext ctx, ClientConnection connection) {
+        final Session session = connection.session();
         final String clientId = session.getClientId();
+        log.debug("客户端[{}]下线, 在线 {} ms, 收到报文 {} 条, 下发消息 {} 条", clientId,
+                System.currentTimeMillis() - connection.connectTime(), connection.received(), connection.delivered());
+        if (connection.dropped() > 0 || connection.spilled() > 0) {
+            log.warn("客户端[{}]出站队列溢出, 丢弃报文 {} 条, 退回会话 {} 条", clientId, connection.dropped(), connection.spilled());
+        }
 
         // 发布遗嘱消息
         Optional.of(session)
@@ -181,7 +183,7 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
                 });
 
         // session 处理
-        ConnectHandler.CLIENT_MAP.remove(clientId);
+        ConnectionRegistry.unregister(connection);
         if (Boolean.TRUE.equals(session.getCleanSession())) {
             // 当 cleanSession = 1，清理会话状态。
             // MQTTX 为了提升性能，将 session/pub/pubRel 等信息保存在内存中，这部分信息关联 {@link io.netty.channel.Channel} 无需 clean 由 GC 自动回收.
@@ -229,9 +231,7 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
                 .build();
         return subscriptionService.searchSysTopicClients(topic)
                 .doOnNext(clientSub ->
-                        Optional.ofNullable(ConnectHandler.CLIENT_MAP.get(clientSub.getClientId()))
-                                .map(BrokerHandler.CHANNELS::find)
-                                .ifPresent(channel -> channel.writeAndFlush(mpm.retain()))
+                        ConnectionRegistry.ifConnected(clientSub.getClientId(), channel -> channel.writeAndFlush(mpm.retain()))
                 )
                 .doOnComplete(mpm::release)
                 .then();
@@ -249,14 +249,13 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
             return;
         }
 
-        Optional.ofNullable(ConnectHandler.CLIENT_MAP.get(clientId))
-                .map(CHANNELS::find)
-                .ifPresent(channel -> {
+        Optional.ofNullable(ConnectionRegistry.get(clientId))
+                .ifPresent(connection -> {
                     if (!CollectionUtils.isEmpty(authorizedPubTopics)) {
-                        channel.attr(AttributeKey.valueOf(AbstractMqttSessionHandler.AUTHORIZED_PUB_TOPICS)).set(authorizedPubTopics);
+                        connection.authorizedPubTopics(authorizedPubTopics);
                     }
                     if (!CollectionUtils.isEmpty(authorizedSubTopics)) {
-                        channel.attr(AttributeKey.valueOf(AbstractMqttSessionHandler.AUTHORIZED_SUB_TOPICS)).set(authorizedSubTopics);
+                        connection.authorizedSubTopics(authorizedSubTopics);
                     }
                 });
     }
@@ -276,6 +275,10 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
         }
 
         // 消息处理
+        ClientConnection connection = ClientConnection.of(ctx.channel());
+        if (connection != null) {
+            connection.onReceived();
+        }
         messageDelegatingHandler.handle(ctx, mqttMessage);
     }
 
@@ -308,9 +311,9 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
             log.info("client 权限异常:{}", cause.getMessage());
         } else if (cause instanceof IOException) {
             // 连接被强制断开
-            Session session = (Session) ctx.channel().attr(AttributeKey.valueOf(Session.KEY)).get();
-            if (session != null) {
-                log.error("client:{} 连接被强制断开", session.getClientId());
+            ClientConnection connection = ClientConnection.of(ctx.channel());
+            if (connection != null) {
+                log.error("client:{} 连接被强制断开", connection.clientId());
             }
         } else {
             log.error("未知异常", cause);
@@ -323,7 +326,7 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
     }
 
     /**
-     * 心跳、握手事件处理
+     * 心跳、握手及出站队列事件处理
      *
      * @param ctx {@link ChannelHandlerContext}
      * @param evt {@link IdleStateEvent}
@@ -341,6 +344,12 @@ public class BrokerHandler extends SimpleChannelInboundHandler<MqttMessage> impl
                 // 关闭连接
                 ctx.close();
             }
+        } else if (evt instanceof OutboundQueueHandler.SpilledEvent se) {
+            // 出站队列溢出, 消息退回会话等待队列
+            publishHandler.spillPending(ctx.channel(), se.pending());
+        } else if (evt == OutboundQueueHandler.DrainedEvent.INSTANCE) {
+            // 出站队列排空, 继续下发退回会话的消息
+            publishHandler.resumePending(ctx.channel());
         } else if (evt instanceof SslHandshakeCompletionEvent shce) {
             // 监听 ssl 握手事件
             if (!shce.isSuccess()) {
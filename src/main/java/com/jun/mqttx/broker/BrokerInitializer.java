@@ -16,9 +16,14 @@
 
 package com.jun.mqttx.broker;
 
+import com.jun.mqttx.broker.codec.EncodedPublishEncoder;
 import com.jun.mqttx.broker.codec.MqttWebsocketCodec;
+import com.jun.mqttx.broker.handler.BackpressureHandler;
+import com.jun.mqttx.broker.handler.FlushCoalescingHandler;
+import com.jun.mqttx.broker.handler.OutboundQueueHandler;
 import com.jun.mqttx.broker.handler.ProbeHandler;
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.OverflowPolicy;
 import com.jun.mqttx.exception.GlobalException;
 import com.jun.mqttx.exception.SslException;
 import com.jun.mqttx.utils.JSON;
@@ -28,6 +33,7 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.epoll.Epoll;
 import io.netty.channel.epoll.EpollEventLoopGroup;
 import io.netty.channel.epoll.EpollServerSocketChannel;
@@ -94,6 +100,17 @@ public class BrokerInitializer implements DisposableBean {
     private final BrokerHandler brokerHandler;
     /** websocket 开关 */
     private final Boolean enableWebsocket, enableSysTopic;
+    /** flush 合并 */
+    private final Boolean flushCoalescing;
+    private final Integer flushMaxPending;
+    private final Duration flushMaxDelay;
+    /** 慢消费者处理 */
+    private final Boolean enableOutboundQueue;
+    private final Integer outboundQueueSize;
+    private final OverflowPolicy qos0Policy, qos12Policy;
+    private final WriteBufferWaterMark writeBufferWaterMark;
+    /** 发布者背压, 按监听器配置 */
+    private final MqttxConfig.Backpressure socketBackpressure, wsBackpressure;
     private final ProbeHandler probeHandler;
     /** reactor 线程，提供给 socket, websocket 使用 */
     private EventLoopGroup boss, work;
@@ -122,6 +139,19 @@ public class BrokerInitializer implements DisposableBean {
         this.clientAuth = ssl.getClientAuth();
         this.enableSysTopic = sysTopic.getEnable();
         this.maxBytesInMessage = mqttxConfig.getMaxBytesInMessage();
+        this.socketBackpressure = socket.getBackpressure();
+        this.wsBackpressure = webSocket.getBackpressure();
+        MqttxConfig.Delivery delivery = mqttxConfig.getDelivery();
+        this.flushCoalescing = delivery.getFlushCoalescing();
+        this.flushMaxPending = delivery.getFlushMaxPending();
+        this.flushMaxDelay = delivery.getFlushMaxDelay();
+        MqttxConfig.SlowConsumer slowConsumer = mqttxConfig.getSlowConsumer();
+        this.enableOutboundQueue = slowConsumer.getEnable();
+        this.outboundQueueSize = slowConsumer.getQueueSize();
+        this.qos0Policy = slowConsumer.getQos0Policy();
+        this.qos12Policy = slowConsumer.getQos12Policy();
+        this.writeBufferWaterMark = new WriteBufferWaterMark(slowConsumer.getWriteBufferLowWaterMark(),
+                slowConsumer.getWriteBufferHighWaterMark());
 
         // 配置检查
         Assert.isTrue(!Objects.equals(wsPort, port), "websocket 与 socket 监听端口不能相同");
@@ -210,6 +240,7 @@ public class BrokerInitializer implements DisposableBean {
                 .group(boss, work)
                 .handler(new LoggingHandler(LogLevel.INFO))
                 .option(ChannelOption.SO_BACKLOG, soBacklog)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
                 .childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     protected void initChannel(SocketChannel socketChannel) {
@@ -218,13 +249,23 @@ public class BrokerInitializer implements DisposableBean {
                         if (sslEnable) {
                             pipeline.addLast(sslContext.newHandler(socketChannel.alloc()));
                         }
+                        if (flushCoalescing) {
+                            pipeline.addLast(new FlushCoalescingHandler(flushMaxPending, flushMaxDelay));
+                        }
                         pipeline.addLast(new IdleStateHandler(0, 0,
                                 (int) heartbeat.getSeconds()));
                         pipeline.addLast(MqttEncoder.INSTANCE);
+                        pipeline.addLast(EncodedPublishEncoder.INSTANCE);
                         pipeline.addLast(new MqttDecoder(maxBytesInMessage));
                         if (enableSysTopic) {
                             pipeline.addLast(probeHandler);
                         }
+                        if (enableOutboundQueue) {
+                            pipeline.addLast(new OutboundQueueHandler(outboundQueueSize, qos0Policy, qos12Policy));
+                        }
+                        if (socketBackpressure.getEnable()) {
+                            pipeline.addLast(newBackpressureHandler(socketBackpressure));
+                        }
                         pipeline.addLast(brokerHandler);
                     }
                 });
@@ -261,6 +302,7 @@ public class BrokerInitializer implements DisposableBean {
         b
                 .group(boss, work)
                 .handler(new LoggingHandler(LogLevel.INFO))
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark)
                 .childHandler(new ChannelInitializer<SocketChannel>() {
 
                     protected void initChannel(SocketChannel socketChannel) {
@@ -269,6 +311,9 @@ public class BrokerInitializer implements DisposableBean {
                         if (sslEnable) {
                             pipeline.addLast(sslContext.newHandler(socketChannel.alloc()));
                         }
+                        if (flushCoalescing) {
+                            pipeline.addLast(new FlushCoalescingHandler(flushMaxPending, flushMaxDelay));
+                        }
                         pipeline.addLast(new IdleStateHandler(0, 0, (int) heartbeat.getSeconds()));
                         pipeline.addLast(new HttpServerCodec());
                         pipeline.addLast(new HttpObjectAggregator(65536));
@@ -276,10 +321,17 @@ public class BrokerInitializer implements DisposableBean {
                         pipeline.addLast(new WebSocketServerProtocolHandler(websocketPath, "mqtt", true));
                         pipeline.addLast(new MqttWebsocketCodec());
                         pipeline.addLast(MqttEncoder.INSTANCE);
+                        pipeline.addLast(EncodedPublishEncoder.INSTANCE);
                         pipeline.addLast(new MqttDecoder(maxBytesInMessage));
                         if (enableSysTopic) {
                             pipeline.addLast(probeHandler);
                         }
+                        if (enableOutboundQueue) {
+                            pipeline.addLast(new OutboundQueueHandler(outboundQueueSize, qos0Policy, qos12Policy));
+                        }
+                        if (wsBackpressure.getEnable()) {
+                            pipeline.addLast(newBackpressureHandler(wsBackpressure));
+                        }
                         pipeline.addLast(brokerHandler);
                     }
                 });
@@ -287,6 +339,11 @@ public class BrokerInitializer implements DisposableBean {
         b.bind(host, wsPort).sync();
     }
 
+    private static BackpressureHandler newBackpressureHandler(MqttxConfig.Backpressure backpressure) {
+        return new BackpressureHandler(backpressure.getPauseThreshold(), backpressure.getResumeThreshold(),
+                backpressure.getRecentTopics(), backpressure.getCheckInterval());
+    }
+
     @Override
     public void destroy() {
         if (boss != null) {
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker;
+
+import com.jun.mqttx.broker.handler.OutboundQueueHandler;
+import com.jun.mqttx.entity.Session;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 客户端连接上下文, 持有 {@link Channel}、{@link Session}、授权的 pub&sub topic 及连接级计数.
+ * <p>
+ * 连接成功后创建, 同时作为 channel 属性保存及注册到 {@link ConnectionRegistry}, 消息路由按 clientId 一次查询即可得到 channel 与会话.
+ *
+ * @since 1.2.4
+ */
+public final class ClientConnection {
+    //@formatter:off
+
+    public static final AttributeKey<ClientConnection> KEY = AttributeKey.valueOf("connection");
+    private final Channel channel;
+    private final Session session;
+    /** 上线时间 */
+    private final long connectTime = System.currentTimeMillis();
+    /** 收到的报文数量 */
+    private final LongAdder received = new LongAdder();
+    /** 路由至该连接的 PUBLISH 报文数量 */
+    private final LongAdder delivered = new LongAdder();
+    /** 出站队列溢出丢弃的 qos0 报文数量 */
+    private final LongAdder dropped = new LongAdder();
+    /** 出站队列溢出未写出、退回会话的 qos1,2 报文数量 */
+    private final LongAdder spilled = new LongAdder();
+    /** 被授权发布的 topic 列表 */
+    private volatile List<String> authorizedPubTopics;
+    /** 被授权订阅的 topic 列表 */
+    private volatile List<String> authorizedSubTopics;
+
+    //@formatter:on
+
+    public ClientConnection(Channel channel, Session session) {
+        this.channel = channel;
+        this.session = session;
+    }
+
+    /**
+     * 获取 channel 关联的连接上下文
+     *
+     * @param channel {@link Channel}
+     * @return 连接上下文, 客户端未完成连接时为 null
+     */
+    public static ClientConnection of(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    public String clientId() {
+        return session.getClientId();
+    }
+
+    public Channel channel() {
+        return channel;
+    }
+
+    public Session session() {
+        return session;
+    }
+
+    public long connectTime() {
+        return connectTime;
+    }
+
+    public long received() {
+        return received.sum();
+    }
+
+    public long delivered() {
+        return delivered.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long spilled() {
+        return spilled.sum();
+    }
+
+    /**
+     * @return 出站队列中的报文数量
+     * @see OutboundQueueHandler#backlog(Channel)
+     */
+    public int backlog() {
+        return OutboundQueueHandler.backlog(channel);
+    }
+
+    public void onReceived() {
+        received.increment();
+    }
+
+    public void onDelivered() {
+        delivered.increment();
+    }
+
+    public void onDropped() {
+        dropped.increment();
+    }
+
+    public void onSpilled() {
+        spilled.increment();
+    }
+
+    public List<String> authorizedPubTopics() {
+        return authorizedPubTopics;
+    }
+
+    public void authorizedPubTopics(List<String> authorizedPubTopics) {
+        this.authorizedPubTopics = authorizedPubTopics;
+    }
+
+    public List<String> authorizedSubTopics() {
+        return authorizedSubTopics;
+    }
+
+    public void authorizedSubTopics(List<String> authorizedSubTopics) {
+        this.authorizedSubTopics = authorizedSubTopics;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker;
+
+import io.netty.channel.Channel;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * 当前 broker 上的客户端连接注册表: clientId -> {@link ClientConnection}.
+ * <p>
+ * 单个 {@link ConcurrentHashMap}: 其扩容按桶分段迁移, 并发写入的线程会协助迁移, 大量客户端集中上线时不会整表阻塞. 注册与注销均在
+ * 连接所属线程直接完成, 不经过 {@link io.netty.util.concurrent.GlobalEventExecutor}.
+ *
+ * @since 1.2.4
+ */
+public final class ConnectionRegistry {
+    //@formatter:off
+
+    private static final ConcurrentHashMap<String, ClientConnection> CONNECTIONS = new ConcurrentHashMap<>();
+
+    //@formatter:on
+
+    private ConnectionRegistry() {
+    }
+
+    /**
+     * 注册连接, 替换 clientId 已有的连接
+     *
+     * @param connection 连接上下文
+     * @return 被替换的连接, 可能为 null
+     */
+    public static ClientConnection register(ClientConnection connection) {
+        return CONNECTIONS.put(connection.clientId(), connection);
+    }
+
+    /**
+     * 注销连接. 仅当 clientId 当前注册的就是该连接时移除, 避免旧连接下线时移除同一 clientId 的新连接.
+     *
+     * @param connection 连接上下文
+     * @return true 如果移除成功
+     */
+    public static boolean unregister(ClientConnection connection) {
+        return CONNECTIONS.remove(connection.clientId(), connection);
+    }
+
+    /**
+     * @param clientId 客户端 ID
+     * @return 连接上下文, 客户端未连接到当前 broker 时为 null
+     */
+    public static ClientConnection get(String clientId) {
+        return CONNECTIONS.get(clientId);
+    }
+
+    /**
+     * @param clientId 客户端 ID
+     * @return 客户端 channel, 客户端未连接到当前 broker 时为 null
+     */
+    public static Channel channel(String clientId) {
+        var connection = get(clientId);
+        return connection == null ? null : connection.channel();
+    }
+
+    /**
+     * @param clientId 客户端 ID
+     * @return true 如果客户端连接到当前 broker
+     */
+    public static boolean contains(String clientId) {
+        return CONNECTIONS.containsKey(clientId);
+    }
+
+    /**
+     * 客户端 channel 存在时执行 action
+     *
+     * @param clientId 客户端 ID
+     * @param action   {@link Channel} 处理
+     */
+    public static void ifConnected(String clientId, Consumer<Channel> action) {
+        var channel = channel(clientId);
+        if (channel != null) {
+            action.accept(channel);
+        }
+    }
+}
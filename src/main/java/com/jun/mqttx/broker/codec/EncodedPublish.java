@@ -0,0 +1,117 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.AbstractReferenceCounted;
+import io.netty.util.ReferenceCounted;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 已编码的 PUBLISH 报文, 由 {@link PublishFrames} 创建, 经 {@link EncodedPublishEncoder} 原样写出.
+ * <p>
+ * 报文分为两段: header 为固定报头、主题及报文标识符(qos1,2), body 为消息载荷. 两段均持有独立引用, 对象释放时一并释放.
+ *
+ * @since 1.2.4
+ */
+public final class EncodedPublish extends AbstractReferenceCounted {
+
+    private final MqttQoS qos;
+    private final ByteBuf header;
+    private final ByteBuf body;
+
+    EncodedPublish(MqttQoS qos, ByteBuf header, ByteBuf body) {
+        this.qos = qos;
+        this.header = header;
+        this.body = body;
+    }
+
+    public MqttQoS qos() {
+        return qos;
+    }
+
+    public ByteBuf header() {
+        return header;
+    }
+
+    public ByteBuf body() {
+        return body;
+    }
+
+    /**
+     * @return DUP flag
+     */
+    public boolean isDup() {
+        return (header.getByte(header.readerIndex()) & 0x08) != 0;
+    }
+
+    /**
+     * @return RETAIN flag
+     */
+    public boolean isRetain() {
+        return (header.getByte(header.readerIndex()) & 0x01) != 0;
+    }
+
+    /**
+     * 从报头解析发布主题, 不改变读索引. 仅用于报文未能写出、需要退回会话的场景
+     *
+     * @return 发布主题
+     */
+    public String topic() {
+        var offset = topicOffset();
+        return header.toString(offset + 2, header.getUnsignedShort(offset), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 从报头解析报文标识符, 不改变读索引
+     *
+     * @return 报文标识符, qos0 为 0
+     */
+    public int messageId() {
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            return 0;
+        }
+        var offset = topicOffset();
+        return header.getUnsignedShort(offset + 2 + header.getUnsignedShort(offset));
+    }
+
+    /**
+     * @return 主题长度字段的位置: 跳过 1 字节固定报头及变长剩余长度
+     */
+    private int topicOffset() {
+        var offset = header.readerIndex() + 1;
+        while ((header.getByte(offset++) & 0x80) != 0) {
+            // 剩余长度最高位为 1 表示后续仍有字节
+        }
+        return offset;
+    }
+
+    @Override
+    public ReferenceCounted touch(Object hint) {
+        header.touch(hint);
+        body.touch(hint);
+        return this;
+    }
+
+    @Override
+    protected void deallocate() {
+        header.release();
+        body.release();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.codec;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * {@link EncodedPublish} 编码器, 将预编码的两段报文组合为一个 {@link io.netty.buffer.CompositeByteBuf} 交给下游, 不做任何复制.
+ * <p>
+ * 每个 PUBLISH 报文只产生一个出站缓冲: websocket 编解码器按出站缓冲封装数据帧, 两段分别写出会使一个报文占用两个帧;
+ * TCP 下 composite 缓冲仍以 gathering write 写出.
+ *
+ * @since 1.2.4
+ */
+@ChannelHandler.Sharable
+public final class EncodedPublishEncoder extends MessageToMessageEncoder<EncodedPublish> {
+
+    public static final EncodedPublishEncoder INSTANCE = new EncodedPublishEncoder();
+
+    private EncodedPublishEncoder() {
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, EncodedPublish msg, List<Object> out) {
+        // msg 在编码完成后由父类释放, 这里为下游保留引用
+        out.add(ctx.alloc().compositeBuffer(2).addComponents(true, msg.header().retain(), msg.body().retain()));
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单条消息分发时的 PUBLISH 报文预编码.
+ * <p>
+ * 同一条消息发送给多个订阅者时, 固定报头与主题只编码一次:
+ * <ul>
+ *     <li>qos0: 报头(固定报头 + 主题)与载荷均为共享缓冲, 每个订阅者仅获得两者的 retainedDuplicate</li>
+ *     <li>qos1,2: 报头前缀按 qos 缓存, 每个订阅者分配一段小缓冲写入前缀并填充 2 字节报文标识符, 载荷仍共享</li>
+ * </ul>
+ * 实例在消息分发完成后必须调用 {@link #release()}.
+ *
+ * @since 1.2.4
+ */
+public final class PublishFrames {
+    //@formatter:off
+
+    /** 共享 qos0 报头的写出次数 */
+    public static final LongAdder SHARED = new LongAdder();
+    /** 仅填充报文标识符的 qos1,2 写出次数 */
+    public static final LongAdder PATCHED = new LongAdder();
+    private final byte[] topic;
+    private final boolean retain;
+    private final ByteBuf payload;
+    /** qos0 共享报头 */
+    private volatile ByteBuf qos0Header;
+    /** qos1,2 报头前缀, 不含报文标识符 */
+    private byte[] qos1Prefix, qos2Prefix;
+
+    //@formatter:on
+
+    /**
+     * @param topic   发布主题
+     * @param retain  retain flag
+     * @param payload 消息载荷, 内部持有其 retainedDuplicate
+     */
+    public PublishFrames(String topic, boolean retain, ByteBuf payload) {
+        this.topic = topic.getBytes(StandardCharsets.UTF_8);
+        this.retain = retain;
+        this.payload = payload.retainedDuplicate();
+    }
+
+    /**
+     * 创建发送给单个订阅者的报文
+     *
+     * @param qos       订阅者 qos
+     * @param messageId 报文标识符, qos0 时忽略
+     * @param alloc     订阅者 channel 的 {@link ByteBufAllocator}
+     * @return {@link EncodedPublish}, 写出后由编码器释放
+     */
+    public EncodedPublish encode(MqttQoS qos, int messageId, ByteBufAllocator alloc) {
+        if (qos == MqttQoS.AT_MOST_ONCE) {
+            SHARED.increment();
+            return new EncodedPublish(qos, qos0Header().retainedDuplicate(), payload.retainedDuplicate());
+        }
+
+        var prefix = prefix(qos);
+        var header = alloc.buffer(prefix.length + 2);
+        header.writeBytes(prefix).writeShort(messageId);
+        PATCHED.increment();
+        return new EncodedPublish(qos, header, payload.retainedDuplicate());
+    }
+
+    /**
+     * 释放共享缓冲
+     */
+    public synchronized void release() {
+        if (qos0Header != null) {
+            qos0Header.release();
+            qos0Header = null;
+        }
+        payload.release();
+    }
+
+    private ByteBuf qos0Header() {
+        var header = qos0Header;
+        if (header == null) {
+            synchronized (this) {
+                header = qos0Header;
+                if (header == null) {
+                    var prefix = encodePrefix(MqttQoS.AT_MOST_ONCE);
+                    header = ByteBufAllocator.DEFAULT.directBuffer(prefix.length).writeBytes(prefix);
+                    qos0Header = header;
+                }
+            }
+        }
+        return header;
+    }
+
+    private synchronized byte[] prefix(MqttQoS qos) {
+        if (qos == MqttQoS.AT_LEAST_ONCE) {
+            if (qos1Prefix == null) {
+                qos1Prefix = encodePrefix(qos);
+            }
+            return qos1Prefix;
+        }
+        if (qos2Prefix == null) {
+            qos2Prefix = encodePrefix(qos);
+        }
+        return qos2Prefix;
+    }
+
+    /**
+     * 编码固定报头及主题, qos1,2 时剩余长度包含随后填充的 2 字节报文标识符
+     */
+    private byte[] encodePrefix(MqttQoS qos) {
+        var variableHeaderLen = 2 + topic.length + (qos == MqttQoS.AT_MOST_ONCE ? 0 : 2);
+        var remainingLength = variableHeaderLen + payload.readableBytes();
+        var remainingLengthBytes = varIntSize(remainingLength);
+        var prefix = new byte[1 + remainingLengthBytes + 2 + topic.length];
+
+        var i = 0;
+        prefix[i++] = (byte) ((MqttMessageType.PUBLISH.value() << 4) | (qos.value() << 1) | (retain ? 1 : 0));
+        do {
+            var digit = remainingLength % 128;
+            remainingLength /= 128;
+            if (remainingLength > 0) {
+                digit |= 0x80;
+            }
+            prefix[i++] = (byte) digit;
+        } while (remainingLength > 0);
+        prefix[i++] = (byte) (topic.length >> 8);
+        prefix[i++] = (byte) topic.length;
+        System.arraycopy(topic, 0, prefix, i, topic.length);
+        return prefix;
+    }
+
+    private static int varIntSize(int num) {
+        var count = 0;
+        do {
+            num /= 128;
+            count++;
+        } while (num > 0);
+        return count;
+    }
+}
@@ -16,12 +16,13 @@
 
 package com.jun.mqttx.broker.handler;
 
+import com.jun.mqttx.broker.ClientConnection;
+import com.jun.mqttx.broker.ConnectionRegistry;
 import com.jun.mqttx.entity.Authentication;
 import com.jun.mqttx.entity.Session;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.mqtt.MqttVersion;
-import io.netty.util.AttributeKey;
+import io.netty.handler.codec.mqtt.*;
 import org.springframework.util.ObjectUtils;
 
 /**
@@ -32,8 +33,6 @@ import org.springframework.util.ObjectUtils;
  */
 public abstract class AbstractMqttSessionHandler implements MqttMessageHandler {
 
-    public static final String AUTHORIZED_PUB_TOPICS = "authorizedPubTopics";
-    public static final String AUTHORIZED_SUB_TOPICS = "authorizedSubTopics";
     final boolean enableCluster;
 
     public AbstractMqttSessionHandler(boolean enableCluster) {
@@ -58,10 +57,53 @@ public abstract class AbstractMqttSessionHandler implements MqttMessageHandler {
      * @see com.jun.mqttx.service.ISessionService#nextMessageId(String)
      */
     int nextMessageId(Channel channel) {
-        Session session = (Session) channel.attr(AttributeKey.valueOf(Session.KEY)).get();
+        Session session = getSession(channel);
         return session.increaseAndGetMessageId();
     }
 
+    /**
+     * 在 inflight 窗口允许的范围内, 按序下发会话等待队列中的 qos1,2 消息. 非订阅者 event loop 线程调用时转到 event loop 执行,
+     * 避免与 PUBACK/PUBCOMP 触发的释放并发
+     *
+     * @param channel     订阅者 channel
+     * @param maxInflight 窗口大小
+     */
+    void releasePending(Channel channel, int maxInflight) {
+        if (!channel.eventLoop().inEventLoop()) {
+            channel.eventLoop().execute(() -> releasePending(channel, maxInflight));
+            return;
+        }
+        Session session = getSession(channel);
+        if (session == null) {
+            return;
+        }
+        var released = false;
+        while (session.hasPending() && session.acquireInflight(maxInflight)) {
+            var pending = session.pollPending();
+            if (pending == null) {
+                session.decreaseInflight();
+                break;
+            }
+            var pubMsg = pending.pubMsg();
+            var messageId = pending.messageId();
+            if (messageId == 0) {
+                messageId = nextMessageId(channel);
+                pubMsg.setQoS(pending.qos());
+                pubMsg.setMessageId(messageId);
+                session.savePubMsg(messageId, pubMsg);
+            }
+            channel.write(new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, MqttQoS.valueOf(pending.qos()), pubMsg.isRetain(), 0),
+                    new MqttPublishVariableHeader(pubMsg.getTopic(), messageId),
+                    pubMsg.payloadForWrite()
+            ));
+            released = true;
+        }
+        if (released) {
+            channel.flush();
+        }
+    }
+
     /**
      * 返回客户id
      *
@@ -88,15 +130,16 @@ public abstract class AbstractMqttSessionHandler implements MqttMessageHandler {
     }
 
     /**
-     * 存储当前会话状态
+     * 创建连接上下文, 保存为 channel 属性并注册到 {@link ConnectionRegistry}. 会话经由 {@link ClientConnection#session()} 获取
      *
      * @param ctx     {@link ChannelHandlerContext}
      * @param session mqtt会话
      */
     void saveSessionWithChannel(ChannelHandlerContext ctx, Session session) {
         Channel channel = ctx.channel();
-        AttributeKey<Object> attr = AttributeKey.valueOf(Session.KEY);
-        channel.attr(attr).set(session);
+        ClientConnection connection = new ClientConnection(channel, session);
+        channel.attr(ClientConnection.KEY).set(connection);
+        ConnectionRegistry.register(connection);
     }
 
     /**
@@ -109,12 +152,12 @@ public abstract class AbstractMqttSessionHandler implements MqttMessageHandler {
         if (authentication == null) {
             return;
         }
-        Channel channel = ctx.channel();
+        ClientConnection connection = ClientConnection.of(ctx.channel());
         if (!ObjectUtils.isEmpty(authentication.getAuthorizedPub())) {
-            channel.attr(AttributeKey.valueOf(AUTHORIZED_PUB_TOPICS)).set(authentication.getAuthorizedPub());
+            connection.authorizedPubTopics(authentication.getAuthorizedPub());
         }
         if (!ObjectUtils.isEmpty(authentication.getAuthorizedSub())) {
-            channel.attr(AttributeKey.valueOf(AUTHORIZED_SUB_TOPICS)).set(authentication.getAuthorizedSub());
+            connection.authorizedSubTopics(authentication.getAuthorizedSub());
         }
     }
 
@@ -125,7 +168,7 @@ public abstract class AbstractMqttSessionHandler implements MqttMessageHandler {
      * @return true if clearSession = 1
      */
     boolean isCleanSession(ChannelHandlerContext ctx) {
-        Session session = (Session) ctx.channel().attr(AttributeKey.valueOf(Session.KEY)).get();
+        Session session = getSession(ctx);
         return session.getCleanSession();
     }
 
@@ -136,7 +179,7 @@ public abstract class AbstractMqttSessionHandler implements MqttMessageHandler {
      * @return {@link Session}
      */
     Session getSession(ChannelHandlerContext ctx) {
-        return (Session) ctx.channel().attr(AttributeKey.valueOf(Session.KEY)).get();
+        return getSession(ctx.channel());
     }
 
     /**
@@ -146,7 +189,8 @@ public abstract class AbstractMqttSessionHandler implements MqttMessageHandler {
      * @return {@link Session}
      */
     Session getSession(Channel channel) {
-        return (Session) channel.attr(AttributeKey.valueOf(Session.KEY)).get();
+        ClientConnection connection = ClientConnection.of(channel);
+        return connection == null ? null : connection.session();
     }
 
     /**
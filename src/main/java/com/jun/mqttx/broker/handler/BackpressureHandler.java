@@ -0,0 +1,193 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.handler;
+
+import com.jun.mqttx.broker.ConnectionRegistry;
+import com.jun.mqttx.entity.ClientSub;
+import com.jun.mqttx.entity.TopicRoute;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 发布者背压.
+ * <p>
+ * 记录发布者最近发布消息的订阅路由, 当这些订阅者 channel 待写出字节数之和(见 {@link OutboundQueueHandler#pendingBytes(Channel)})
+ * 超过 {@code pauseThreshold} 时, 关闭发布者 channel 的 autoRead, 暂停读取其报文; 之后按 {@code checkInterval} 定时检查,
+ * 低于 {@code resumeThreshold} 时恢复读取. 暂停读取同时限制了发布者在 boundedElastic 线程池上产生的任务.
+ * <p>
+ * 检查按 {@code checkInterval} 限频, 不会在每次发布时执行. handler 持有 channel 级状态, 每个 channel 创建一个实例.
+ *
+ * @since 1.2.4
+ */
+@Slf4j
+public class BackpressureHandler extends ChannelInboundHandlerAdapter {
+    //@formatter:off
+
+    /** 暂停读取的次数 */
+    public static final LongAdder PAUSED = new LongAdder();
+    /** 当前暂停读取的 channel 数量 */
+    public static final LongAdder PAUSED_CHANNELS = new LongAdder();
+    private static final AttributeKey<BackpressureHandler> KEY = AttributeKey.valueOf("backpressure");
+    private final long pauseThreshold, resumeThreshold, checkIntervalNanos;
+    /** 最近发布消息的订阅路由 */
+    private final AtomicReferenceArray<TopicRoute> routes;
+    private final AtomicInteger cursor = new AtomicInteger();
+    private ChannelHandlerContext ctx;
+    private volatile long lastCheck;
+    /** 仅在 event loop 中访问 */
+    private boolean paused;
+    private ScheduledFuture<?> resumeTask;
+
+    //@formatter:on
+
+    /**
+     * @param pauseThreshold  暂停读取阈值, 单位字节
+     * @param resumeThreshold 恢复读取阈值, 单位字节
+     * @param recentRoutes    记录的最近订阅路由数量
+     * @param checkInterval   检查间隔
+     */
+    public BackpressureHandler(long pauseThreshold, long resumeThreshold, int recentRoutes, Duration checkInterval) {
+        Assert.isTrue(resumeThreshold <= pauseThreshold, "resumeThreshold 不能大于 pauseThreshold");
+        Assert.isTrue(recentRoutes > 0, "recentRoutes must be positive");
+
+        this.pauseThreshold = pauseThreshold;
+        this.resumeThreshold = resumeThreshold;
+        this.checkIntervalNanos = checkInterval.toNanos();
+        this.routes = new AtomicReferenceArray<>(recentRoutes);
+    }
+
+    /**
+     * 记录发布者本次消息的订阅路由, 必要时暂停发布者读取. 可在任意线程调用, 发布者未启用背压时忽略.
+     *
+     * @param publisher 发布者 channel
+     * @param route     订阅路由
+     */
+    public static void track(Channel publisher, TopicRoute route) {
+        var handler = publisher.attr(KEY).get();
+        if (handler != null && !route.isEmpty()) {
+            handler.track(route);
+        }
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+        ctx.channel().attr(KEY).set(this);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        ctx.channel().attr(KEY).set(null);
+        resume();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        resume();
+        ctx.fireChannelInactive();
+    }
+
+    private void track(TopicRoute route) {
+        routes.set(Math.floorMod(cursor.getAndIncrement(), routes.length()), route);
+
+        var now = System.nanoTime();
+        if (now - lastCheck < checkIntervalNanos) {
+            return;
+        }
+        lastCheck = now;
+        if (backlog() > pauseThreshold) {
+            ctx.executor().execute(this::pause);
+        }
+    }
+
+    private void pause() {
+        if (paused || !ctx.channel().isActive()) {
+            return;
+        }
+        paused = true;
+        PAUSED.increment();
+        PAUSED_CHANNELS.increment();
+        ctx.channel().config().setAutoRead(false);
+        log.debug("订阅者积压超过阈值, 暂停读取发布者 channel: {}", ctx.channel());
+        resumeTask = ctx.executor().scheduleAtFixedRate(() -> {
+            if (backlog() < resumeThreshold) {
+                resume();
+            }
+        }, checkIntervalNanos, checkIntervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void resume() {
+        if (!paused) {
+            return;
+        }
+        paused = false;
+        PAUSED_CHANNELS.decrement();
+        resumeTask.cancel(false);
+        resumeTask = null;
+        ctx.channel().config().setAutoRead(true);
+    }
+
+    /**
+     * @return 最近订阅路由中全部订阅者 channel 的待写出字节数之和
+     */
+    private long backlog() {
+        long sum = 0;
+        for (int i = 0; i < routes.length(); i++) {
+            var route = routes.get(i);
+            if (route == null || recorded(route, i)) {
+                continue;
+            }
+            for (var clientSub : route.subscribers()) {
+                sum += pendingBytes(clientSub);
+            }
+            for (var shareGroup : route.shareGroups()) {
+                for (var member : shareGroup.members()) {
+                    sum += pendingBytes(member);
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * 同一主题的路由可能被多次记录, 只计算一次
+     */
+    private boolean recorded(TopicRoute route, int before) {
+        for (int i = 0; i < before; i++) {
+            if (routes.get(i) == route) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long pendingBytes(ClientSub clientSub) {
+        var channel = ConnectionRegistry.channel(clientSub.getClientId());
+        return channel == null ? 0 : OutboundQueueHandler.pendingBytes(channel);
+    }
+}
@@ -16,7 +16,7 @@
 
 package com.jun.mqttx.broker.handler;
 
-import com.jun.mqttx.broker.BrokerHandler;
+import com.jun.mqttx.broker.ConnectionRegistry;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.constants.InternalMessageEnum;
 import com.jun.mqttx.entity.*;
@@ -25,7 +25,6 @@ import com.jun.mqttx.service.*;
 import com.jun.mqttx.utils.TopicUtils;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelId;
 import io.netty.channel.ChannelOutboundInvoker;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.timeout.IdleStateHandler;
@@ -38,8 +37,6 @@ import reactor.core.scheduler.Schedulers;
 
 import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
 
 import static io.netty.handler.codec.mqtt.MqttMessageType.CONNECT;
 
@@ -54,7 +51,6 @@ import static io.netty.handler.codec.mqtt.MqttMessageType.CONNECT;
 public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
     //@formatter:off
 
-    public final static ConcurrentHashMap<String, ChannelId> CLIENT_MAP = new ConcurrentHashMap<>(100000);
     private static final String NONE_ID_PREFIX = "NONE_ID_";
     final private boolean enableTopicSubPubSecure, enableSysTopic, isMandatoryAuthentication;
     private final String brokerId;
@@ -68,6 +64,9 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
     private final IPublishMessageService publishMessageService;
     /** pubRel 消息服务 */
     private final IPubRelMessageService pubRelMessageService;
+    /** 集群会话位置服务 */
+    private final ISessionLocationService sessionLocationService;
+    private final RetryScheduler retryScheduler;
     /** 内部消息发布服务 */
     private IInternalMessagePublishService internalMessagePublishService;
 
@@ -78,8 +77,10 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                           ISubscriptionService subscriptionService,
                           IPublishMessageService publishMessageService,
                           IPubRelMessageService pubRelMessageService,
+                          ISessionLocationService sessionLocationService,
                           MqttxConfig config,
-                          @Nullable IInternalMessagePublishService internalMessagePublishService) {
+                          @Nullable IInternalMessagePublishService internalMessagePublishService,
+                          RetryScheduler retryScheduler) {
         super(config.getCluster().getEnable());
 
         MqttxConfig.SysTopic sysTopic = config.getSysTopic();
@@ -89,6 +90,8 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
         this.subscriptionService = subscriptionService;
         this.publishMessageService = publishMessageService;
         this.pubRelMessageService = pubRelMessageService;
+        this.sessionLocationService = sessionLocationService;
+        this.retryScheduler = retryScheduler;
         this.enableTopicSubPubSecure = config.getEnableTopicSubPubSecure();
         this.enableSysTopic = sysTopic.getEnable();
         this.isMandatoryAuthentication = config.getAuth().getIsMandatory();
@@ -198,12 +201,9 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
         // 关闭之前可能存在的tcp链接
         // [MQTT-3.1.4-2] If the ClientId represents a Client already connected to the Server then the Server MUST
         // disconnect the existing Client
-        if (CLIENT_MAP.containsKey(clientId)) {
-            Optional.ofNullable(CLIENT_MAP.get(clientId))
-                    .map(BrokerHandler.CHANNELS::find)
-                    .ifPresent(ChannelOutboundInvoker::close);
-        }
+        ConnectionRegistry.ifConnected(clientId, ChannelOutboundInvoker::close);
         if (isClusterMode()) {
+            sessionLocationService.relocate(clientId, brokerId);
             internalMessagePublishService.publish(
                     new InternalMessage<>(clientId, System.currentTimeMillis(), brokerId),
                     InternalMessageEnum.DISCONNECT.getChannel()
@@ -222,7 +222,6 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                     .doOnSuccess(unused -> {
                         // 新建会话并保存会话，同时判断sessionPresent
                         final var session = Session.of(clientId, true);
-                        CLIENT_MAP.put(clientId, channel.id());
                         saveSessionWithChannel(ctx, session);
                         if (enableTopicSubPubSecure) {
                             saveAuthorizedTopics(ctx, auth);
@@ -285,7 +284,6 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                             sessionPresent = true;
                         }
 
-                        CLIENT_MAP.put(clientId, ctx.channel().id());
                         saveSessionWithChannel(ctx, session);
                         if (enableTopicSubPubSecure) {
                             saveAuthorizedTopics(ctx, auth);
@@ -353,6 +351,9 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                 .doOnNext(pubMsg -> {
                     final var topic = pubMsg.getTopic();
                     final var qos = pubMsg.getQoS();
+                    // 已存储消息的 messageId 不再分配
+                    getSession(ctx).markMessageId(pubMsg.getMessageId());
+
                     // 订阅权限判定
                     if (enableTopicSubPubSecure && !hasAuthToSubTopic(ctx, topic)) {
                         return;
@@ -369,10 +370,17 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
                             Unpooled.wrappedBuffer(pubMsg.getPayload())
                     );
 
+                    if (dupFlag) {
+                        getSession(ctx).increaseInflight();
+                        retryScheduler.schedule(ctx.channel());
+                    }
                     ctx.writeAndFlush(mqttMessage);
                 })
                 .thenMany(pubRelMessageService.searchOut(clientId))
                 .doOnNext(messageId -> {
+                    // qos2 消息在 PUBCOMP 之前仍占用 inflight 窗口
+                    getSession(ctx).markMessageId(messageId);
+                    getSession(ctx).increaseInflight();
                     var mqttMessage = MqttMessageFactory.newMessage(
                             // pubRel 的 fixHeader 是固定死了的 [0,1,1,0,0,0,1,0]
                             new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
@@ -409,9 +417,7 @@ public final class ConnectHandler extends AbstractMqttTopicSecureHandler {
             return subscriptionService.searchSysTopicClients(topic)
                     .doOnNext(clientSub -> {
                         log.info("消息订阅: {}", clientSub);
-                        Optional.ofNullable(ConnectHandler.CLIENT_MAP.get(clientSub.getClientId()))
-                                .map(BrokerHandler.CHANNELS::find)
-                                .ifPresent(channel -> channel.writeAndFlush(mpm.retain()));
+                        ConnectionRegistry.ifConnected(clientSub.getClientId(), channel -> channel.writeAndFlush(mpm.retain()));
                     })
                     .doOnComplete(mpm::release)
                     .then();
@@ -17,12 +17,13 @@
 package com.jun.mqttx.broker.handler;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.jun.mqttx.broker.BrokerHandler;
+import com.jun.mqttx.broker.ConnectionRegistry;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.constants.InternalMessageEnum;
 import com.jun.mqttx.consumer.Watcher;
 import com.jun.mqttx.entity.InternalMessage;
 import com.jun.mqttx.entity.Session;
+import com.jun.mqttx.service.ISessionLocationService;
 import com.jun.mqttx.utils.JsonSerializer;
 import com.jun.mqttx.utils.Serializer;
 import io.netty.channel.ChannelHandlerContext;
@@ -44,10 +45,12 @@ import java.util.Optional;
 public final class DisconnectHandler extends AbstractMqttSessionHandler implements Watcher {
 
     private final Serializer serializer;
+    private final ISessionLocationService sessionLocationService;
 
-    public DisconnectHandler(Serializer serializer, MqttxConfig config) {
+    public DisconnectHandler(Serializer serializer, MqttxConfig config, ISessionLocationService sessionLocationService) {
         super(config.getCluster().getEnable());
         this.serializer = serializer;
+        this.sessionLocationService = sessionLocationService;
     }
 
     /**
@@ -80,9 +83,14 @@ public final class DisconnectHandler extends AbstractMqttSessionHandler implemen
             im = serializer.deserialize(msg, InternalMessage.class);
         }
 
-        Optional.ofNullable(im.getData())
-                .map(ConnectHandler.CLIENT_MAP::get)
-                .map(BrokerHandler.CHANNELS::find)
+        // 客户端已在消息来源 broker 上线
+        var clientId = im.getData();
+        if (clientId != null) {
+            sessionLocationService.relocate(clientId, im.getBrokerId());
+        }
+
+        Optional.ofNullable(clientId)
+                .map(ConnectionRegistry::channel)
                 .map(ChannelOutboundInvoker::close);
     }
 
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.handler;
+
+import com.jun.mqttx.broker.codec.PublishFrames;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import org.springframework.lang.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 单条消息分发的上下文.
+ * <p>
+ * 分发过程中对订阅者 channel 的写操作按 channel 所属 {@link EventLoop} 分桶暂存, 分发完成时每个 event loop 只提交一个任务,
+ * 由该任务依次写出桶内全部报文, 避免每个订阅者一次跨线程任务提交及唤醒. 当前线程即为目标 event loop 时直接执行.
+ * <p>
+ * 调用 {@link #complete()} 之后的写操作(如持久化完成后的迟到写出)直接写入 channel. 同时持有本次分发的预编码报文
+ * {@link PublishFrames}, 在 {@link #complete()} 时释放.
+ *
+ * @since 1.2.4
+ */
+final class FanoutBatch {
+    //@formatter:off
+
+    /** 提交至 event loop 的批量写任务数 */
+    static final LongAdder TASKS = new LongAdder();
+    /** 经批量写任务写出的报文数 */
+    static final LongAdder WRITES = new LongAdder();
+    private final PublishFrames frames;
+    /** event loop -> [channel, msg, channel, msg, ...], complete 后为 null */
+    private Map<EventLoop, List<Object>> buckets;
+
+    //@formatter:on
+
+    /**
+     * @param frames   预编码报文
+     * @param batching 是否按 event loop 聚合写操作, false 时直接写入 channel
+     */
+    FanoutBatch(@Nullable PublishFrames frames, boolean batching) {
+        this.frames = frames;
+        this.buckets = batching ? new HashMap<>() : null;
+    }
+
+    /**
+     * @return 预编码报文, 可能为空
+     */
+    @Nullable
+    PublishFrames frames() {
+        return frames;
+    }
+
+    /**
+     * 写出报文, 分发完成前暂存
+     *
+     * @param channel 订阅者 channel
+     * @param msg     报文
+     */
+    void write(Channel channel, Object msg) {
+        synchronized (this) {
+            if (buckets != null) {
+                var bucket = buckets.computeIfAbsent(channel.eventLoop(), k -> new ArrayList<>());
+                bucket.add(channel);
+                bucket.add(msg);
+                return;
+            }
+        }
+        channel.writeAndFlush(msg);
+    }
+
+    /**
+     * 分发完成, 每个 event loop 提交一个写任务并释放预编码报文
+     */
+    void complete() {
+        Map<EventLoop, List<Object>> toSubmit;
+        synchronized (this) {
+            toSubmit = buckets;
+            buckets = null;
+        }
+        if (toSubmit != null) {
+            toSubmit.forEach((eventLoop, bucket) -> {
+                if (eventLoop.inEventLoop()) {
+                    writeAll(bucket);
+                } else {
+                    TASKS.increment();
+                    eventLoop.execute(() -> writeAll(bucket));
+                }
+            });
+        }
+        if (frames != null) {
+            frames.release();
+        }
+    }
+
+    private static void writeAll(List<Object> bucket) {
+        for (int i = 0; i < bucket.size(); i += 2) {
+            ((Channel) bucket.get(i)).writeAndFlush(bucket.get(i + 1));
+        }
+        WRITES.add(bucket.size() / 2);
+    }
+}
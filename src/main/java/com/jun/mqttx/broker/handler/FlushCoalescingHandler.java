@@ -0,0 +1,164 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.handler;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.Future;
+import org.springframework.util.Assert;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * flush 合并.
+ * <p>
+ * 各 handler 写出报文时均调用 {@code writeAndFlush}, 每个报文对应一次系统调用. 该 handler 拦截 flush 请求并合并:
+ * <ul>
+ *     <li>读取过程中(channelRead 至 channelReadComplete)产生的 flush 推迟到 channelReadComplete 时执行一次</li>
+ *     <li>非读取过程中产生的 flush(如消息分发至其它订阅者)推迟到 event loop 的下一个任务执行, 同一轮分发写入同一 channel 的报文合并为一次 flush</li>
+ *     <li>待合并的 flush 数量达到 {@code maxFlushes} 时立即 flush</li>
+ *     <li>{@code maxDelay} 大于 0 时, 非读取过程中的 flush 最多延迟 {@code maxDelay}, 用于以延迟换取更高的合并率</li>
+ * </ul>
+ * channel 不可写、关闭、异常时立即 flush 已写入的数据. handler 持有 channel 级状态, 每个 channel 创建一个实例, 需置于
+ * ssl handler 之后(靠近 tail), 保证 ssl 加密合并后的数据.
+ *
+ * @since 1.2.4
+ */
+public class FlushCoalescingHandler extends ChannelDuplexHandler {
+    //@formatter:off
+
+    /** 上游 handler 请求的 flush 次数 */
+    public static final LongAdder FLUSH_REQUESTED = new LongAdder();
+    /** 实际执行的 flush 次数 */
+    public static final LongAdder FLUSH_ISSUED = new LongAdder();
+    private final int maxFlushes;
+    private final long maxDelayNanos;
+    private final Runnable flushTask;
+    private ChannelHandlerContext ctx;
+    /** 待合并的 flush 数量 */
+    private int pendingFlushes;
+    private boolean readInProgress;
+    /** 已提交的延迟 flush 任务 */
+    private Future<?> scheduled;
+
+    //@formatter:on
+
+    /**
+     * @param maxFlushes 单次合并的 flush 数量上限
+     * @param maxDelay   非读取过程中的 flush 最大延迟, {@link Duration#ZERO} 表示在 event loop 下一个任务中执行
+     */
+    public FlushCoalescingHandler(int maxFlushes, Duration maxDelay) {
+        Assert.isTrue(maxFlushes > 0, "maxFlushes must be positive");
+        Assert.isTrue(!maxDelay.isNegative(), "maxDelay can't be negative");
+
+        this.maxFlushes = maxFlushes;
+        this.maxDelayNanos = maxDelay.toNanos();
+        this.flushTask = () -> {
+            scheduled = null;
+            if (pendingFlushes > 0 && !readInProgress) {
+                flushNow(ctx);
+            }
+        };
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) {
+        FLUSH_REQUESTED.increment();
+        if (++pendingFlushes >= maxFlushes) {
+            flushNow(ctx);
+            return;
+        }
+
+        // 读取过程中, 等待 channelReadComplete
+        if (readInProgress) {
+            return;
+        }
+        if (scheduled == null) {
+            scheduled = maxDelayNanos == 0 ?
+                    ctx.channel().eventLoop().submit(flushTask) :
+                    ctx.channel().eventLoop().schedule(flushTask, maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        readInProgress = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        readInProgress = false;
+        flushIfNeeded(ctx);
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (!ctx.channel().isWritable()) {
+            flushIfNeeded(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        flushIfNeeded(ctx);
+        ctx.fireExceptionCaught(cause);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) {
+        flushIfNeeded(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) {
+        flushIfNeeded(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        flushIfNeeded(ctx);
+    }
+
+    private void flushIfNeeded(ChannelHandlerContext ctx) {
+        if (pendingFlushes > 0) {
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        if (scheduled != null) {
+            scheduled.cancel(false);
+            scheduled = null;
+        }
+        pendingFlushes = 0;
+        FLUSH_ISSUED.increment();
+        ctx.flush();
+    }
+}
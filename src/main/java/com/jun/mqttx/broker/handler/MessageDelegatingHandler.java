@@ -16,12 +16,11 @@
 
 package com.jun.mqttx.broker.handler;
 
-import com.jun.mqttx.entity.Session;
+import com.jun.mqttx.broker.ClientConnection;
 import com.jun.mqttx.exception.AuthorizationException;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.MqttMessage;
 import io.netty.handler.codec.mqtt.MqttMessageType;
-import io.netty.util.AttributeKey;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 
@@ -87,7 +86,7 @@ public class MessageDelegatingHandler {
 
         // 连接校验
         if (mqttMessageType != MqttMessageType.CONNECT &&
-                ctx.channel().attr(AttributeKey.valueOf(Session.KEY)).get() == null) {
+                ClientConnection.of(ctx.channel()) == null) {
             throw new AuthorizationException("access denied");
         }
 
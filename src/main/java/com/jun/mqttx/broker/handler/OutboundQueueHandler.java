@@ -0,0 +1,370 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.handler;
+
+import com.jun.mqttx.broker.ClientConnection;
+import com.jun.mqttx.broker.codec.EncodedPublish;
+import com.jun.mqttx.constants.OverflowPolicy;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.entity.Session;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.Assert;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 出站 PUBLISH 报文队列, 用于处理慢消费者.
+ * <p>
+ * channel 可写且队列为空时, PUBLISH 报文直接写出; 否则(channel 待写出字节数超过高水位)进入有界队列, channel 恢复可写后按序写出.
+ * 队列已满时按 qos 执行溢出策略:
+ * <ul>
+ *     <li>qos0: {@link OverflowPolicy#drop_oldest} 丢弃队列中最早的 qos0 报文, {@link OverflowPolicy#drop_newest} 丢弃新报文</li>
+ *     <li>qos1,2: {@link OverflowPolicy#spill} 不再写出, 首次下发的报文释放其 inflight 窗口, 经 {@link SpilledEvent} 由
+ *     {@link PublishHandler#spillPending(Channel, Session.Pending)} 立即退回会话等待队列(受等待队列长度上限及溢出策略约束),
+ *     会话暂停下发直至出站队列排空, 排空后触发 {@link DrainedEvent}, 由 {@link PublishHandler#resumePending(Channel)} 继续下发;
+ *     重发报文(DUP = 1)仍占用窗口, 由重发调度器或重连补发处理. {@link OverflowPolicy#disconnect} 断开连接</li>
+ * </ul>
+ * 其它类型的报文(PUBACK 等)不排队. handler 持有 channel 级状态, 每个 channel 创建一个实例, 需置于 brokerHandler 之前.
+ *
+ * @since 1.2.4
+ */
+@Slf4j
+public class OutboundQueueHandler extends ChannelDuplexHandler {
+    //@formatter:off
+
+    /** 丢弃的 qos0 报文数量 */
+    public static final LongAdder DROPPED = new LongAdder();
+    /** 未写出、退回会话的 qos1,2 报文数量 */
+    public static final LongAdder SPILLED = new LongAdder();
+    /** 因队列溢出断开的连接数量 */
+    public static final LongAdder DISCONNECTED = new LongAdder();
+    /** 全部连接出站队列中的报文数量 */
+    public static final LongAdder BACKLOG = new LongAdder();
+    private static final Exception OVERFLOW = new OverflowException();
+    private static final AttributeKey<OutboundQueueHandler> KEY = AttributeKey.valueOf("outboundQueue");
+    private final int maxSize;
+    private final OverflowPolicy qos0Policy, qos12Policy;
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    /** 已有报文退回会话, 队列排空时通知恢复下发 */
+    private boolean spilledSinceDrain;
+    /** 队列中报文的数量及字节数, 其它线程可读 */
+    private volatile int queued;
+    private volatile long queuedBytes;
+
+    //@formatter:on
+
+    /**
+     * @param maxSize     队列长度上限
+     * @param qos0Policy  qos0 溢出策略, {@link OverflowPolicy#drop_oldest} 或 {@link OverflowPolicy#drop_newest}
+     * @param qos12Policy qos1,2 溢出策略, {@link OverflowPolicy#spill} 或 {@link OverflowPolicy#disconnect}
+     */
+    public OutboundQueueHandler(int maxSize, OverflowPolicy qos0Policy, OverflowPolicy qos12Policy) {
+        Assert.isTrue(maxSize > 0, "maxSize must be positive");
+        Assert.isTrue(qos0Policy == OverflowPolicy.drop_oldest || qos0Policy == OverflowPolicy.drop_newest,
+                "qos0 溢出策略只能是 drop_oldest 或 drop_newest");
+        Assert.isTrue(qos12Policy == OverflowPolicy.spill || qos12Policy == OverflowPolicy.disconnect,
+                "qos1,2 溢出策略只能是 spill 或 disconnect");
+
+        this.maxSize = maxSize;
+        this.qos0Policy = qos0Policy;
+        this.qos12Policy = qos12Policy;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+        final var qos = qos(msg);
+        if (qos == null || (queue.isEmpty() && ctx.channel().isWritable())) {
+            ctx.write(msg, promise);
+            return;
+        }
+
+        if (queue.size() >= maxSize) {
+            if (qos == MqttQoS.AT_MOST_ONCE) {
+                if (qos0Policy == OverflowPolicy.drop_newest || !dropOldest(ctx)) {
+                    discard(msg, promise);
+                    onDropped(ctx);
+                    return;
+                }
+            } else if (qos12Policy == OverflowPolicy.spill) {
+                spill(ctx, msg, qos);
+                discard(msg, promise);
+                return;
+            } else {
+                discard(msg, promise);
+                DISCONNECTED.increment();
+                log.warn("客户端[{}]出站队列已满({}), 断开连接", clientId(ctx), queue.size());
+                ctx.close();
+                return;
+            }
+        }
+
+        var pending = new Pending(msg, promise, qos, sizeOf(msg));
+        queue.add(pending);
+        queued++;
+        queuedBytes += pending.bytes;
+        BACKLOG.increment();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        ctx.channel().attr(KEY).set(this);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        if (ctx.channel().isWritable()) {
+            drain(ctx);
+        }
+        ctx.fireChannelWritabilityChanged();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        clear(new ClosedChannelException());
+        ctx.fireChannelInactive();
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        ctx.channel().attr(KEY).set(null);
+        clear(new ClosedChannelException());
+    }
+
+    /**
+     * 获取 channel 待写出的字节数, 包含 channel 写缓冲及出站队列, 可在任意线程调用.
+     * <p>
+     * 写缓冲字节数由公开的水位接口推算: 可写时为高水位减去 {@link Channel#bytesBeforeUnwritable()}, 不可写时为低水位加上
+     * {@link Channel#bytesBeforeWritable()}. 不访问 {@link Channel.Unsafe}, 该接口仅供 I/O 线程内部使用.
+     *
+     * @param channel {@link Channel}
+     * @return 待写出字节数
+     */
+    public static long pendingBytes(Channel channel) {
+        long bytes = 0;
+        if (channel.isActive()) {
+            var config = channel.config();
+            bytes += channel.isWritable() ?
+                    Math.max(0, config.getWriteBufferHighWaterMark() - channel.bytesBeforeUnwritable()) :
+                    config.getWriteBufferLowWaterMark() + channel.bytesBeforeWritable();
+        }
+        var handler = channel.attr(KEY).get();
+        if (handler != null) {
+            bytes += handler.queuedBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * 获取 channel 出站队列中的报文数量, 可在任意线程调用
+     *
+     * @param channel {@link Channel}
+     * @return 出站队列中的报文数量, channel 未安装出站队列时为 0
+     */
+    public static int backlog(Channel channel) {
+        var handler = channel.attr(KEY).get();
+        return handler == null ? 0 : handler.queued;
+    }
+
+    private void drain(ChannelHandlerContext ctx) {
+        if (queue.isEmpty()) {
+            return;
+        }
+        while (ctx.channel().isWritable()) {
+            var pending = queue.poll();
+            if (pending == null) {
+                break;
+            }
+            BACKLOG.decrement();
+            queued--;
+            queuedBytes -= pending.bytes;
+            ctx.write(pending.msg, pending.promise);
+        }
+        ctx.flush();
+
+        if (queue.isEmpty() && spilledSinceDrain) {
+            spilledSinceDrain = false;
+            ctx.fireUserEventTriggered(DrainedEvent.INSTANCE);
+        }
+    }
+
+    /**
+     * 释放溢出报文占用的 inflight 窗口, 并将其消息退回会话等待队列.
+     * <p>
+     * cleanSession 会话同时移除已保存的消息, 退回后重新分配报文标识符, 避免重发调度器在消息等待期间重复下发;
+     * 持久会话保留报文标识符及已存储的消息, 重发调度器会跳过等待队列中的报文标识符.
+     */
+    private void spill(ChannelHandlerContext ctx, Object msg, MqttQoS qos) {
+        SPILLED.increment();
+        var connection = ClientConnection.of(ctx.channel());
+        if (connection == null) {
+            return;
+        }
+        connection.onSpilled();
+        if (isDup(msg)) {
+            return;
+        }
+        var session = connection.session();
+        var pubMsg = toPubMsg(msg, qos);
+        var messageId = pubMsg.getMessageId();
+        if (Boolean.TRUE.equals(session.getCleanSession())) {
+            session.removePubMsg(messageId);
+            messageId = 0;
+        }
+        session.decreaseInflight();
+        spilledSinceDrain = true;
+        ctx.fireUserEventTriggered(new SpilledEvent(new Session.Pending(pubMsg, qos.value(), messageId)));
+    }
+
+    /**
+     * 丢弃队列中最早的 qos0 报文
+     *
+     * @return false 如果队列中没有 qos0 报文
+     */
+    private boolean dropOldest(ChannelHandlerContext ctx) {
+        for (Iterator<Pending> it = queue.iterator(); it.hasNext(); ) {
+            var pending = it.next();
+            if (pending.qos == MqttQoS.AT_MOST_ONCE) {
+                it.remove();
+                BACKLOG.decrement();
+                queued--;
+                queuedBytes -= pending.bytes;
+                discard(pending.msg, pending.promise);
+                onDropped(ctx);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clear(Throwable cause) {
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            BACKLOG.decrement();
+            queued--;
+            queuedBytes -= pending.bytes;
+            ReferenceCountUtil.release(pending.msg);
+            pending.promise.tryFailure(cause);
+        }
+    }
+
+    private static void onDropped(ChannelHandlerContext ctx) {
+        DROPPED.increment();
+        var connection = ClientConnection.of(ctx.channel());
+        if (connection != null) {
+            connection.onDropped();
+        }
+    }
+
+    private static void discard(Object msg, ChannelPromise promise) {
+        ReferenceCountUtil.release(msg);
+        promise.tryFailure(OVERFLOW);
+    }
+
+    /**
+     * @return PUBLISH 报文的 qos, 其它报文返回 null
+     */
+    private static MqttQoS qos(Object msg) {
+        if (msg instanceof EncodedPublish encoded) {
+            return encoded.qos();
+        }
+        if (msg instanceof MqttPublishMessage publish) {
+            return publish.fixedHeader().qosLevel();
+        }
+        return null;
+    }
+
+    private static boolean isDup(Object msg) {
+        if (msg instanceof EncodedPublish encoded) {
+            return encoded.isDup();
+        }
+        return ((MqttPublishMessage) msg).fixedHeader().isDup();
+    }
+
+    /**
+     * 还原报文中的消息, 载荷复制为 byte[]
+     */
+    private static PubMsg toPubMsg(Object msg, MqttQoS qos) {
+        if (msg instanceof EncodedPublish encoded) {
+            return PubMsg.of(qos.value(), encoded.topic(), encoded.isRetain(), ByteBufUtil.getBytes(encoded.body()))
+                    .setMessageId(encoded.messageId());
+        }
+        var publish = (MqttPublishMessage) msg;
+        return PubMsg.of(qos.value(), publish.variableHeader().topicName(), publish.fixedHeader().isRetain(),
+                        ByteBufUtil.getBytes(publish.payload()))
+                .setMessageId(publish.variableHeader().packetId());
+    }
+
+    /**
+     * 估算报文字节数, 仅计算头部与载荷
+     */
+    private static int sizeOf(Object msg) {
+        if (msg instanceof EncodedPublish encoded) {
+            return encoded.header().readableBytes() + encoded.body().readableBytes();
+        }
+        var publish = (MqttPublishMessage) msg;
+        return publish.variableHeader().topicName().length() + publish.payload().readableBytes();
+    }
+
+    private static String clientId(ChannelHandlerContext ctx) {
+        var connection = ClientConnection.of(ctx.channel());
+        return connection == null ? null : connection.clientId();
+    }
+
+    private record Pending(Object msg, ChannelPromise promise, MqttQoS qos, int bytes) {
+    }
+
+    /**
+     * 报文因出站队列溢出未写出, 其消息需退回会话等待队列
+     *
+     * @param pending 退回的消息
+     */
+    public record SpilledEvent(Session.Pending pending) {
+    }
+
+    /**
+     * 溢出后出站队列已排空, 退回会话的消息可以继续下发
+     */
+    public static final class DrainedEvent {
+
+        public static final DrainedEvent INSTANCE = new DrainedEvent();
+
+        private DrainedEvent() {
+        }
+    }
+
+    /**
+     * 报文因出站队列溢出被丢弃
+     */
+    private static final class OverflowException extends Exception {
+
+        private OverflowException() {
+            super("outbound queue overflow", null, false, false);
+        }
+    }
+}
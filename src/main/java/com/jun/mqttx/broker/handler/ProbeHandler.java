@@ -16,6 +16,7 @@
 
 package com.jun.mqttx.broker.handler;
 
+import com.jun.mqttx.broker.codec.EncodedPublish;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
@@ -45,7 +46,7 @@ public class ProbeHandler extends ChannelDuplexHandler {
 
     /** 自代理启动以来接收的 {@link MqttMessage} 数量 */
     public static final AtomicLong IN_MSG_SIZE = new AtomicLong(0);
-    /** 自代理启动以来发送的 {@link MqttMessage} 数量 */
+    /** 自代理启动以来发送的 {@link MqttMessage} 数量, 含预编码的 PUBLISH 报文 */
     public static final AtomicLong OUT_MSG_SIZE = new AtomicLong(0);
 
     //@formatter:on
@@ -65,6 +66,11 @@ public class ProbeHandler extends ChannelDuplexHandler {
     }
 
     private void handleEvent(Object msg, AtomicLong mark) {
+        // 预编码的 PUBLISH 报文
+        if (msg instanceof EncodedPublish) {
+            mark.incrementAndGet();
+            return;
+        }
         if (msg instanceof MqttMessage && ((MqttMessage) msg).decoderResult().isSuccess()) {
             MqttMessageType messageType = ((MqttMessage) msg).fixedHeader().messageType();
             // 忽略心跳
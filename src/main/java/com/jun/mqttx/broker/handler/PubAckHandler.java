@@ -17,6 +17,7 @@
 package com.jun.mqttx.broker.handler;
 
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.entity.Session;
 import com.jun.mqttx.service.IPublishMessageService;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.MqttMessage;
@@ -33,9 +34,11 @@ import io.netty.handler.codec.mqtt.MqttPubAckMessage;
 public class PubAckHandler extends AbstractMqttSessionHandler {
 
     private final IPublishMessageService publishMessageService;
+    private final int maxInflight;
 
     public PubAckHandler(IPublishMessageService publishMessageService, MqttxConfig config) {
         super(config.getCluster().getEnable());
+        this.maxInflight = config.getDelivery().getMaxInflight();
         this.publishMessageService = publishMessageService;
     }
 
@@ -43,10 +46,20 @@ public class PubAckHandler extends AbstractMqttSessionHandler {
     public void process(ChannelHandlerContext ctx, MqttMessage msg) {
         MqttPubAckMessage mqttPubAckMessage = (MqttPubAckMessage) msg;
         int messageId = mqttPubAckMessage.variableHeader().messageId();
+        Session session = getSession(ctx);
+        RetryScheduler.acked(ctx.channel());
+        boolean outstanding;
         if (isCleanSession(ctx)) {
-            getSession(ctx).removePubMsg(messageId);
+            outstanding = session.removePubMsg(messageId);
         } else {
+            outstanding = session.releaseMessageId(messageId);
             publishMessageService.remove(clientId(ctx), messageId).subscribe();
         }
+
+        // 窗口释放, 下发等待中的消息. 对原消息及 DUP 重发的重复确认不释放窗口
+        if (outstanding) {
+            session.decreaseInflight();
+            releasePending(ctx.channel(), maxInflight);
+        }
     }
 }
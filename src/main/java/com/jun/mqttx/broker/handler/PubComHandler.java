@@ -17,6 +17,7 @@
 package com.jun.mqttx.broker.handler;
 
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.entity.Session;
 import com.jun.mqttx.service.IPubRelMessageService;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.MqttMessage;
@@ -33,9 +34,11 @@ import io.netty.handler.codec.mqtt.MqttMessageType;
 public class PubComHandler extends AbstractMqttSessionHandler {
 
     private final IPubRelMessageService pubRelMessageService;
+    private final int maxInflight;
 
     public PubComHandler(IPubRelMessageService pubRelMessageService, MqttxConfig config) {
         super(config.getCluster().getEnable());
+        this.maxInflight = config.getDelivery().getMaxInflight();
         this.pubRelMessageService = pubRelMessageService;
     }
 
@@ -43,12 +46,22 @@ public class PubComHandler extends AbstractMqttSessionHandler {
     public void process(ChannelHandlerContext ctx, MqttMessage msg) {
         MqttMessageIdVariableHeader mqttMessageIdVariableHeader = (MqttMessageIdVariableHeader) msg.variableHeader();
         int messageId = mqttMessageIdVariableHeader.messageId();
+        Session session = getSession(ctx);
+        RetryScheduler.acked(ctx.channel());
+        boolean outstanding;
         if (isCleanSession(ctx)) {
-            getSession(ctx).removePubRelOutMsg(messageId);
+            outstanding = session.removePubRelOutMsg(messageId);
         } else {
             String clientId = clientId(ctx);
+            outstanding = session.releaseMessageId(messageId);
             pubRelMessageService.removeOut(clientId, messageId).subscribe();
         }
+
+        // 窗口释放, 下发等待中的消息. 对 PUBREL 及其重发的重复确认不释放窗口
+        if (outstanding) {
+            session.decreaseInflight();
+            releasePending(ctx.channel(), maxInflight);
+        }
     }
 
 }
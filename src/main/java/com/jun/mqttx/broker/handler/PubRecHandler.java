@@ -47,6 +47,7 @@ public class PubRecHandler extends AbstractMqttSessionHandler {
         // 移除消息
         final var mqttMessageIdVariableHeader = (MqttMessageIdVariableHeader) msg.variableHeader();
         int messageId = mqttMessageIdVariableHeader.messageId();
+        RetryScheduler.acked(ctx.channel());
         if (isCleanSession(ctx)) {
             Session session = getSession(ctx);
             session.removePubMsg(messageId);
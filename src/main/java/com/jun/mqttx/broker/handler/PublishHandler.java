@@ -17,23 +17,31 @@
 package com.jun.mqttx.broker.handler;
 
 import com.fasterxml.jackson.core.type.TypeReference;
-import com.jun.mqttx.broker.BrokerHandler;
+import com.jun.mqttx.broker.ClientConnection;
+import com.jun.mqttx.broker.ConnectionRegistry;
+import com.jun.mqttx.broker.codec.PublishFrames;
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.ClusterTopic;
 import com.jun.mqttx.constants.InternalMessageEnum;
+import com.jun.mqttx.constants.OverflowPolicy;
 import com.jun.mqttx.constants.ShareStrategy;
 import com.jun.mqttx.consumer.Watcher;
 import com.jun.mqttx.entity.ClientSub;
 import com.jun.mqttx.entity.InternalMessage;
 import com.jun.mqttx.entity.PubMsg;
 import com.jun.mqttx.entity.Session;
+import com.jun.mqttx.entity.ShareGroup;
+import com.jun.mqttx.entity.TopicRoute;
 import com.jun.mqttx.exception.AuthorizationException;
 import com.jun.mqttx.service.*;
 import com.jun.mqttx.utils.JsonSerializer;
 import com.jun.mqttx.utils.RateLimiter;
 import com.jun.mqttx.utils.Serializer;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.*;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.lang.Nullable;
 import org.springframework.util.Assert;
@@ -41,18 +49,12 @@ import org.springframework.util.CollectionUtils;
 import org.springframework.util.ObjectUtils;
 import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.GroupedFlux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ThreadLocalRandom;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import static com.jun.mqttx.constants.ShareStrategy.random;
-import static com.jun.mqttx.constants.ShareStrategy.round;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * {@link MqttMessageType#PUBLISH} 处理器
@@ -60,18 +62,49 @@ import static com.jun.mqttx.constants.ShareStrategy.round;
  * @author Jun
  * @since 1.0.4
  */
+@Slf4j
 @Handler(type = MqttMessageType.PUBLISH)
 public class PublishHandler extends AbstractMqttTopicSecureHandler implements Watcher {
     //@formatter:off
 
+    /** 广播至集群的 publish 消息数 */
+    public static final LongAdder CLUSTER_PUB_BROADCAST = new LongAdder();
+    /** 定向转发至指定 broker 的 publish 消息数, 每个目标 broker 计一次 */
+    public static final LongAdder CLUSTER_PUB_TARGETED = new LongAdder();
+    /** 收到的集群 publish 消息数 */
+    public static final LongAdder CLUSTER_PUB_RECEIVED = new LongAdder();
+    /** 因 inflight 窗口已满进入会话等待队列的 qos1,2 消息数 */
+    public static final LongAdder INFLIGHT_QUEUED = new LongAdder();
+    /** 会话等待队列已满, 按 {@link OverflowPolicy#drop_oldest} 移除的消息数 */
+    public static final LongAdder INFLIGHT_DROPPED = new LongAdder();
+    /** 会话等待队列已满, 按 {@link OverflowPolicy#disconnect} 断开的连接数 */
+    public static final LongAdder INFLIGHT_DISCONNECTED = new LongAdder();
     private final ISessionService sessionService;
     private final IRetainMessageService retainMessageService;
     private final ISubscriptionService subscriptionService;
     private final IPublishMessageService publishMessageService;
     private final IPubRelMessageService pubRelMessageService;
+    private final ISessionLocationService sessionLocationService;
     private final String brokerId;
-    private final boolean enableTopicSubPubSecure, enableRateLimiter, ignoreClientSelfPub;
-    /** 共享主题轮询策略 */
+    private final boolean enableTopicSubPubSecure, enableRateLimiter, ignoreClientSelfPub, targetedPublish, encodeOnce, syncDelivery, eventLoopBatching;
+    /** qos1,2 消息 inflight 窗口及等待队列长度 */
+    private final int maxInflight, maxPending;
+    /** 等待队列溢出策略 */
+    private final OverflowPolicy pendingOverflowPolicy;
+    /** 非 cleanSession 会话每次租用的 messageId 数量 */
+    private final int messageIdLeaseSize;
+    private final RetryScheduler retryScheduler;
+    /** 发给当前 broker 的定向发布主题 */
+    private final String targetedChannel;
+    /** 可用的 messageId 数量 */
+    private static final int MESSAGE_ID_SPACE = 0xffff;
+    /** 待写出字节折算为负载的单位 */
+    private static final int PENDING_BYTES_PER_LOAD = 1024;
+    /** channel 不可写时附加的负载 */
+    private static final long UNWRITABLE_LOAD = 1L << 20;
+    /** 客户端未连接当前 broker, 负载未知 */
+    private static final long UNKNOWN_LOAD = Long.MAX_VALUE;
+    /** 共享主题分发策略 */
     private final ShareStrategy shareStrategy;
     /** 消息桥接开关 */
     private final Boolean enableMessageBridge;
@@ -82,8 +115,6 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
     /** 需要桥接消息的主题 */
     private Set<String> bridgeTopics;
     private KafkaTemplate<String, byte[]> kafkaTemplate;
-    /** 共享订阅轮询，存储轮询参数 */
-    private Map<String, AtomicInteger> roundMap;
 
     //@formatter:on
 
@@ -92,10 +123,12 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                           ISubscriptionService subscriptionService,
                           IPubRelMessageService pubRelMessageService,
                           ISessionService sessionService,
+                          ISessionLocationService sessionLocationService,
                           @Nullable IInternalMessagePublishService internalMessagePublishService,
                           MqttxConfig config,
                           @Nullable KafkaTemplate<String, byte[]> kafkaTemplate,
-                          Serializer serializer) {
+                          Serializer serializer,
+                          RetryScheduler retryScheduler) {
         super(config.getCluster().getEnable());
 
         var shareTopic = config.getShareTopic();
@@ -107,7 +140,18 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         this.retainMessageService = retainMessageService;
         this.subscriptionService = subscriptionService;
         this.pubRelMessageService = pubRelMessageService;
+        this.sessionLocationService = sessionLocationService;
         this.brokerId = config.getBrokerId();
+        this.targetedPublish = config.getCluster().getTargetedPublish();
+        this.encodeOnce = config.getDelivery().getEncodeOnce();
+        this.syncDelivery = config.getDelivery().getSyncDelivery();
+        this.eventLoopBatching = config.getDelivery().getEventLoopBatching();
+        this.maxInflight = config.getDelivery().getMaxInflight();
+        this.maxPending = config.getDelivery().getMaxPending();
+        this.pendingOverflowPolicy = config.getDelivery().getPendingOverflowPolicy();
+        this.messageIdLeaseSize = config.getDelivery().getMessageIdLeaseSize();
+        this.retryScheduler = retryScheduler;
+        this.targetedChannel = ClusterTopic.PUB_TARGETED + brokerId;
         this.enableTopicSubPubSecure = config.getEnableTopicSubPubSecure();
         this.ignoreClientSelfPub = config.getIgnoreClientSelfPub();
         if (!CollectionUtils.isEmpty(rateLimiter.getTopicRateLimits()) && rateLimiter.getEnable()) {
@@ -123,9 +167,6 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
             enableRateLimiter = false;
         }
         this.shareStrategy = shareTopic.getShareSubStrategy();
-        if (round == shareStrategy) {
-            roundMap = new ConcurrentHashMap<>();
-        }
         this.enableMessageBridge = messageBridge.getEnable();
         if (enableMessageBridge) {
             this.bridgeTopics = messageBridge.getTopics();
@@ -134,6 +175,9 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
             Assert.notEmpty(bridgeTopics, "消息桥接主题列表不能为空!!!");
         }
 
+        Assert.isTrue(pendingOverflowPolicy == OverflowPolicy.disconnect || pendingOverflowPolicy == OverflowPolicy.drop_oldest,
+                "等待队列溢出策略只能是 disconnect 或 drop_oldest");
+
         if (isClusterMode()) {
             this.internalMessagePublishService = internalMessagePublishService;
             Assert.notNull(internalMessagePublishService, "internalMessagePublishService can't be null");
@@ -159,8 +203,6 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         final var topic = mqttPublishVariableHeader.topicName();
         final var packetId = mqttPublishVariableHeader.packetId();
         final var retain = mqttFixedHeader.isRetain();
-        final var data = new byte[payload.readableBytes()];
-        payload.readBytes(data);
 
         // 发布权限判定
         if (enableTopicSubPubSecure && !hasAuthToPubTopic(ctx, topic)) {
@@ -170,7 +212,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         // 消息桥接功能，便于对接各类 MQ(kafka, RocketMQ).
         // 这里提供 kafka 的实现，需要对接其它 MQ 的同学可自行修改.
         if (enableMessageBridge && bridgeTopics.contains(topic)) {
-            kafkaTemplate.send(topic, data);
+            kafkaTemplate.send(topic, ByteBufUtil.getBytes(payload));
         }
 
         // 限流判定, 满足如下四个条件即被限流：
@@ -192,11 +234,41 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         // PUBLISH Packet is sent to a Client because it matches an established subscription regardless of how the flag
         // was set in the message it received [MQTT-3.3.1-9].
         // 当新 topic 订阅触发 retain 消息时，retain flag 才应该置 1，其它状况都是 0.
-        final var pubMsg = PubMsg.of(qos.value(), topic, false, data);
+        // 载荷在 process 返回后由 SimpleChannelInboundHandler 释放, 发布期间需持有引用, 发布完成后释放
+        final var pubMsg = PubMsg.of(qos.value(), topic, false, payload.retain());
+
+        // qos1,2 消息需要保存到会话或 redis, retain 消息需要持久化, 提前复制一次 byte[] 供所有订阅者共用
+        if (qos != MqttQoS.AT_MOST_ONCE || retain) {
+            pubMsg.getPayload();
+        }
+
+        // 单机模式下投递不涉及 IO 时, 直接在 event loop 上完成投递及响应
+        if (syncDelivery && !isClusterMode() && publishSync(pubMsg, ctx, packetId)) {
+            pubMsg.release();
+            switch (qos) {
+                case AT_LEAST_ONCE -> ctx.writeAndFlush(MqttMessageFactory.newMessage(
+                        new MqttFixedHeader(MqttMessageType.PUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                        MqttMessageIdVariableHeader.from(packetId),
+                        null
+                ));
+                case EXACTLY_ONCE -> ctx.writeAndFlush(MqttMessageFactory.newMessage(
+                        new MqttFixedHeader(MqttMessageType.PUBREC, false, MqttQoS.AT_MOST_ONCE, false, 0),
+                        MqttMessageIdVariableHeader.from(packetId),
+                        null
+                ));
+            }
+
+            // retain 消息处理
+            if (retain) {
+                handleRetainMsg(pubMsg).subscribe();
+            }
+            return;
+        }
 
         // 响应
         switch (qos) {
             case AT_MOST_ONCE -> publish(pubMsg, ctx, false)
+                    .doFinally(unused -> pubMsg.release())
                     .publishOn(Schedulers.boundedElastic())
                     .doOnSuccess(unused -> {
                         if (retain) {
@@ -205,6 +277,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                     }).subscribe();
             case AT_LEAST_ONCE -> {
                 publish(pubMsg, ctx, false)
+                        .doFinally(unused -> pubMsg.release())
                         .publishOn(Schedulers.boundedElastic())
                         .doOnSuccess(unused -> {
                             MqttMessage pubAck = MqttMessageFactory.newMessage(
@@ -226,6 +299,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                     Session session = getSession(ctx);
                     if (!session.isDupMsg(packetId)) {
                         publish(pubMsg, ctx, false)
+                                .doFinally(unused -> pubMsg.release())
                                 .publishOn(Schedulers.boundedElastic())
                                 .doOnSuccess(unused -> {
                                     // 保存 pub
@@ -246,6 +320,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                                 })
                                 .subscribe();
                     } else {
+                        pubMsg.release();
                         var pubRec = MqttMessageFactory.newMessage(
                                 new MqttFixedHeader(MqttMessageType.PUBREC, false, MqttQoS.AT_MOST_ONCE, false, 0),
                                 MqttMessageIdVariableHeader.from(packetId),
@@ -269,6 +344,7 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                                             .doOnSuccess(unused -> pubRelMessageService.saveIn(clientId(ctx), packetId).subscribe());
                                 }
                             })
+                            .doFinally(unused -> pubMsg.release())
                             .publishOn(Schedulers.boundedElastic())
                             .doOnSuccess(unused -> {
                                 var pubRec = MqttMessageFactory.newMessage(
@@ -310,77 +386,254 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
                 // 消息自集群而来，ctx 不能用，会 NPE
                 return isCleanSession(clientId)
                         .flatMap(cs -> publish0(ClientSub.of(clientId, pubMsg.getQoS(), pubMsg.getTopic(), cs), pubMsg,
-                                true))
+                                null, true))
                         .then();
             } else {
                 boolean cleanSession = isCleanSession(ctx);
-                return publish0(ClientSub.of(clientId, pubMsg.getQoS(), pubMsg.getTopic(), cleanSession), pubMsg, false)
+                return publish0(ClientSub.of(clientId, pubMsg.getQoS(), pubMsg.getTopic(), cleanSession), pubMsg, null, false)
                         .then();
             }
         }
 
-        // 获取 topic 订阅者 id 列表
+        // 获取 topic 订阅路由
         final var topic = pubMsg.getTopic();
-        Flux<ClientSub> clientSubFlux = subscriptionService.searchSubscribeClientList(topic)
-                .filter(clientSub -> {
-                    if (ignoreClientSelfPub) {
-                        // 忽略 client 自身的订阅
-                        return !Objects.equals(clientSub.getClientId(), clientId(ctx));
-                    } else {
-                        return true;
-                    }
-                });
+        final var publisherId = clientId(ctx);
+        // 忽略 client 自身的订阅
+        final var excludedClientId = ignoreClientSelfPub ? publisherId : null;
+        // hash 策略以发布者 clientId 为 key, 集群消息无发布者时取 topic
+        final var shareKey = publisherId == null ? topic : publisherId;
+        return subscriptionService.searchSubscribeRoute(topic).flatMap(route -> {
+            if (ctx != null) {
+                BackpressureHandler.track(ctx.channel(), route);
+            }
 
-        // 共享订阅
-        var f1 = clientSubFlux
-                .filter(ClientSub::isShareSub)
-                .groupBy(ClientSub::getShareName)
-                .flatMap(GroupedFlux::collectList)
-                .map(t -> chooseClient(t, topic))
-                .flatMap(clientSub -> {
-                    var copied = pubMsg.copied();
-                    copied.setAppointedClientId(clientSub.getClientId());
-                    return publish0(clientSub, copied, isClusterMessage).doOnSuccess(unused -> {
-                        // 满足如下条件，则发送消息给集群
-                        // 1 集群模式开启
-                        // 2 订阅的客户端连接在其它实例上
-                        if (isClusterMode() && !ConnectHandler.CLIENT_MAP.containsKey(clientSub.getClientId())) {
-                            internalMessagePublish(copied);
-                        }
-                    });
-                });
+            // 本地发布的消息预编码一次, 供全部订阅者共享
+            final var batch = newFanoutBatch(pubMsg, route);
 
-        // 普通订阅
-        var f2 = clientSubFlux
-                .filter(ClientSub::notShareSub)
-                .collectList()
-                .flatMap(lst -> {
-                    // 如果只有一个客户端订阅，那么消息可以指定客户端
-                    var copied = pubMsg.copied();
-                    if (lst.size() == 1) {
-                        var clientSub = lst.get(0);
+            // 共享订阅, 每个共享组选取一个成员. 集群消息的共享订阅成员已由来源 broker 选定(appointedClientId), 这里不再重复选取
+            var shareGroups = isClusterMessage ? Flux.<ShareGroup>empty() : Flux.fromArray(route.shareGroups());
+            var f1 = shareGroups
+                    .mapNotNull(shareGroup -> shareGroup.choose(shareStrategy, shareKey, excludedClientId, this::loadOf))
+                    .flatMap(clientSub -> {
+                        var copied = pubMsg.copied();
                         copied.setAppointedClientId(clientSub.getClientId());
-                    }
+                        return publish0(clientSub, copied, batch, isClusterMessage).doOnSuccess(unused -> {
+                            // 满足如下条件，则发送消息给集群
+                            // 1 集群模式开启
+                            // 2 订阅的客户端连接在其它实例上
+                            if (isClusterMode() && !ConnectionRegistry.contains(clientSub.getClientId())) {
+                                internalMessagePublish(copied, List.of(clientSub.getClientId()));
+                            }
+                        });
+                    });
+
+            // 普通订阅
+            var lst = new ArrayList<ClientSub>(route.subscribers().length);
+            for (var clientSub : route.subscribers()) {
+                if (!Objects.equals(clientSub.getClientId(), excludedClientId)) {
+                    lst.add(clientSub);
+                }
+            }
+            var f2 = Mono.defer(() -> {
+                // 如果只有一个客户端订阅，那么消息可以指定客户端
+                var copied = pubMsg.copied();
+                if (lst.size() == 1) {
+                    var clientSub = lst.get(0);
+                    copied.setAppointedClientId(clientSub.getClientId());
+                }
 
-                    // 将消息推送给集群中的 broker
-                    if (isClusterMode() && !isClusterMessage) {
-                        // 判断是否需要进行集群消息分发
-                        var flag = false;
-                        for (var clientSub : lst) {
-                            if (!ConnectHandler.CLIENT_MAP.containsKey(clientSub.getClientId())) {
-                                flag = true;
-                                break;
+                // 将消息推送给集群中的 broker
+                if (isClusterMode() && !isClusterMessage) {
+                    // 判断是否需要进行集群消息分发
+                    List<String> remoteClientIds = null;
+                    for (var clientSub : lst) {
+                        if (!ConnectionRegistry.contains(clientSub.getClientId())) {
+                            if (remoteClientIds == null) {
+                                remoteClientIds = new ArrayList<>();
                             }
+                            remoteClientIds.add(clientSub.getClientId());
                         }
-                        if (flag) {
-                            internalMessagePublish(copied);
-                        }
                     }
+                    if (remoteClientIds != null) {
+                        internalMessagePublish(copied, remoteClientIds);
+                    }
+                }
 
-                    return Flux.fromIterable(lst).flatMap(clientSub -> publish0(clientSub, copied.copied(), isClusterMessage)).then();
-                });
+                // 非 cleanSession 的 qos1,2 订阅者需要持久化消息, 批量保存
+                if (isClusterMessage) {
+                    return Flux.fromIterable(lst).flatMap(clientSub -> publish0(clientSub, copied.copied(), batch, true)).then();
+                }
+                var persistent = new ArrayList<ClientSub>();
+                var others = new ArrayList<ClientSub>();
+                for (var clientSub : lst) {
+                    if (!clientSub.isCleanSession() && Math.min(copied.getQoS(), clientSub.getQos()) > 0) {
+                        persistent.add(clientSub);
+                    } else {
+                        others.add(clientSub);
+                    }
+                }
+                return Mono.when(
+                        Flux.fromIterable(others).flatMap(clientSub -> publish0(clientSub, copied.copied(), batch, false)),
+                        publishPersistent(persistent, copied, batch)
+                );
+            });
+
+            return Mono.when(f1, f2).doFinally(unused -> batch.complete());
+        });
+    }
+
+    /**
+     * 同步发布消息, 仅当全部订阅者的投递都只涉及内存时执行, 否则不做任何投递并返回 false, 由调用方走异步流程.
+     * <p>
+     * 执行条件:
+     * <ol>
+     *     <li>qos2 消息的发布者为 cleanSession 会话且消息不是重复消息(需要保存 pubRel 状态到 redis 的情形除外)</li>
+     *     <li>每个订阅者(含共享订阅组全部成员)为 cleanSession 会话, 或者投递 qos 为 0</li>
+     * </ol>
+     *
+     * @param pubMsg   待发布消息
+     * @param ctx      发布者 {@link ChannelHandlerContext}
+     * @param packetId 发布报文标识符
+     * @return true 如果消息已同步投递
+     */
+    private boolean publishSync(PubMsg pubMsg, ChannelHandlerContext ctx, int packetId) {
+        final var pubQos = pubMsg.getQoS();
+        if (pubQos == MqttQoS.EXACTLY_ONCE.value() && (!isCleanSession(ctx) || getSession(ctx).isDupMsg(packetId))) {
+            return false;
+        }
+
+        final var topic = pubMsg.getTopic();
+        final var route = subscriptionService.searchSubscribeRouteSync(topic);
+        for (var clientSub : route.subscribers()) {
+            if (!isInMemoryDelivery(clientSub, pubQos)) {
+                return false;
+            }
+        }
+        for (var shareGroup : route.shareGroups()) {
+            for (var member : shareGroup.members()) {
+                if (!isInMemoryDelivery(member, pubQos)) {
+                    return false;
+                }
+            }
+        }
+
+        // 与 publish(PubMsg, ChannelHandlerContext, boolean) 保持一致; 未通过检查时由异步流程记录路由, 避免重复记录
+        BackpressureHandler.track(ctx.channel(), route);
+        final var publisherId = clientId(ctx);
+        final var excludedClientId = ignoreClientSelfPub ? publisherId : null;
+        final var shareKey = publisherId == null ? topic : publisherId;
+        final var batch = newFanoutBatch(pubMsg, route);
+        try {
+            for (var shareGroup : route.shareGroups()) {
+                var clientSub = shareGroup.choose(shareStrategy, shareKey, excludedClientId, this::loadOf);
+                if (clientSub != null) {
+                    deliverInMemory(clientSub, pubMsg, batch);
+                }
+            }
+            for (var clientSub : route.subscribers()) {
+                if (!Objects.equals(clientSub.getClientId(), excludedClientId)) {
+                    deliverInMemory(clientSub, pubMsg, batch);
+                }
+            }
+        } finally {
+            batch.complete();
+        }
+
+        if (pubQos == MqttQoS.EXACTLY_ONCE.value()) {
+            getSession(ctx).savePubRelInMsg(packetId);
+        }
+        return true;
+    }
+
+    /**
+     * 判断消息投递给 clientSub 是否只涉及内存
+     */
+    private static boolean isInMemoryDelivery(ClientSub clientSub, int pubQos) {
+        return clientSub.isCleanSession() || Math.min(pubQos, clientSub.getQos()) == 0;
+    }
+
+    /**
+     * 投递消息给 cleanSession 会话或 qos0 订阅者, 对应 {@link #publish0(ClientSub, PubMsg, FanoutBatch, boolean)} 中不涉及 IO 的分支
+     *
+     * @param clientSub 订阅者
+     * @param pubMsg    待发布消息
+     * @param batch     分发上下文
+     */
+    private void deliverInMemory(ClientSub clientSub, PubMsg pubMsg, FanoutBatch batch) {
+        final var connection = ConnectionRegistry.get(clientSub.getClientId());
+        if (connection == null) {
+            return;
+        }
+        final var channel = connection.channel();
+        connection.onDelivered();
+
+        final var qos = MqttQoS.valueOf(Math.min(pubMsg.getQoS(), clientSub.getQos()));
+        if (qos != MqttQoS.AT_MOST_ONCE) {
+            deliverQos12(channel, pubMsg, batch, qos, 0);
+            return;
+        }
+        write(batch, channel, newPublishMessage(pubMsg, batch, qos, 0, channel));
+    }
+
+    /**
+     * 下发 qos1,2 消息. 会话 inflight 窗口已满或存在等待下发的消息时, 消息进入会话等待队列, 由 PUBACK/PUBCOMP 按序释放.
+     *
+     * @param channel   订阅者 channel
+     * @param pubMsg    待发布消息
+     * @param batch     分发上下文, 为空时直接写入 channel
+     * @param qos       下发 qos
+     * @param messageId 报文标识符, 0 表示由会话分配(cleanSession)
+     */
+    private void deliverQos12(Channel channel, PubMsg pubMsg, @Nullable FanoutBatch batch, MqttQoS qos, int messageId) {
+        var session = getSession(channel);
+        if (!session.hasPending() && session.acquireInflight(maxInflight)) {
+            if (messageId == 0) {
+                messageId = nextMessageId(channel);
+                var stored = pubMsg.detached();
+                stored.setQoS(qos.value());
+                stored.setMessageId(messageId);
+                session.savePubMsg(messageId, stored);
+            }
+            write(batch, channel, newPublishMessage(pubMsg, batch, qos, messageId, channel));
+            retryScheduler.schedule(channel);
+            return;
+        }
+
+        INFLIGHT_QUEUED.increment();
+        var pending = new Session.Pending(pubMsg.detached(), qos.value(), messageId);
+        if (pendingOverflowPolicy == OverflowPolicy.drop_oldest) {
+            var evicted = session.offerPendingOrEvict(pending, maxPending);
+            if (evicted != null) {
+                dropPending(session, evicted);
+            }
+        } else if (!session.offerPending(pending, maxPending)) {
+            // 持久会话的消息已保存, 重连后下发; cleanSession 会话随连接结束
+            INFLIGHT_DISCONNECTED.increment();
+            log.warn("客户端[{}]会话等待队列已满({}), 断开连接", session.getClientId(), maxPending);
+            channel.close();
+            return;
+        }
+        // 入队期间窗口可能已释放
+        releasePending(channel, maxInflight);
+        retryScheduler.schedule(channel);
+    }
 
-        return Mono.when(f1, f2);
+    /**
+     * 丢弃等待队列中被移除的消息. 非 cleanSession 消息同时从消息存储中移除, 并释放其报文标识符
+     *
+     * @param session 订阅者会话
+     * @param evicted 被移除的消息
+     */
+    private void dropPending(Session session, Session.Pending evicted) {
+        INFLIGHT_DROPPED.increment();
+        final var messageId = evicted.messageId();
+        if (messageId != 0 && !Boolean.TRUE.equals(session.getCleanSession())) {
+            final var clientId = session.getClientId();
+            session.releaseMessageId(messageId);
+            publishMessageService.remove(clientId, messageId)
+                    .doOnError(t -> log.error(String.format("客户端[%s]消息[%d]移除失败", clientId, messageId), t))
+                    .subscribe();
+        }
     }
 
     /**
@@ -388,27 +641,21 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
      *
      * @param clientSub        {@link ClientSub}
      * @param pubMsg           待发布消息
+     * @param batch            分发上下文, 为空时直接写入 channel 并使用 {@link MqttPublishMessage}
      * @param isClusterMessage 内部消息flag，设计上由其它集群分发过来的消息
      */
-    private Mono<Void> publish0(ClientSub clientSub, PubMsg pubMsg, boolean isClusterMessage) {
-        // clientId, channel, topic
+    private Mono<Void> publish0(ClientSub clientSub, PubMsg pubMsg, @Nullable FanoutBatch batch, boolean isClusterMessage) {
+        // clientId, channel
         final var clientId = clientSub.getClientId();
         final var isCleanSession = clientSub.isCleanSession();
-        final var channel = Optional.of(clientId)
-                .map(ConnectHandler.CLIENT_MAP::get)
-                .map(BrokerHandler.CHANNELS::find)
-                .orElse(null);
-        final var topic = pubMsg.getTopic();
+        final var connection = ConnectionRegistry.get(clientId);
+        final var channel = connection == null ? null : connection.channel();
 
         // 计算Qos
         final var pubQos = pubMsg.getQoS();
         final var subQos = clientSub.getQos();
         final var qos = subQos >= pubQos ? MqttQoS.valueOf(pubQos) : MqttQoS.valueOf(subQos);
 
-        // payload, retained flag
-        final var payload = pubMsg.getPayload();
-        final var retained = pubMsg.isRetain();
-
         // 接下来的处理分四种情况
         // 1. channel == null && cleanSession  => 直接返回，由集群中其它的 broker 处理（pubMsg 无 messageId）
         // 2. channel == null && !cleanSession => 保存 pubMsg （pubMsg 有 messageId）
@@ -423,17 +670,16 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         // 2. channel == null && !cleanSession
         if (channel == null) {
             if ((qos == MqttQoS.EXACTLY_ONCE || qos == MqttQoS.AT_LEAST_ONCE) && !isClusterMessage) {
-                return sessionService.nextMessageId(clientId)
-                        .flatMap(messageId -> {
-                            pubMsg.setQoS(qos.value());
-                            pubMsg.setMessageId(messageId);
-                            return publishMessageService.save(clientId, pubMsg);
-                        });
+                // messageId 由存储在保存时分配
+                pubMsg.setQoS(qos.value());
+                return publishMessageService.saveBatch(pubMsg, Map.of(), List.of(clientId));
             }
             return Mono.empty();
         }
 
         // 处理 channel != null 的情况
+        connection.onDelivered();
+
         // 计算 messageId
         int messageId;
 
@@ -442,8 +688,8 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
             // cleanSession 状态下不判断消息是否为集群
             // 假设消息由集群内其它 broker 分发，而 cleanSession 状态下 broker 消息走的内存，为了实现 qos1,2 我们必须将消息保存到内存
             if ((qos == MqttQoS.EXACTLY_ONCE || qos == MqttQoS.AT_LEAST_ONCE)) {
-                messageId = nextMessageId(channel);
-                getSession(channel).savePubMsg(messageId, pubMsg);
+                deliverQos12(channel, pubMsg, batch, qos, 0);
+                return Mono.empty();
             } else {
                 // qos0
                 messageId = 0;
@@ -451,29 +697,20 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
         } else {
             // 4. channel != null && !cleanSession
             if (qos == MqttQoS.EXACTLY_ONCE || qos == MqttQoS.AT_LEAST_ONCE) {
-                return sessionService.nextMessageId(clientId)
+                return nextMessageId(connection)
+                        .defaultIfEmpty(0)
                         .flatMap(e -> {
+                            if (e == 0) {
+                                return saveAndDisconnect(connection, pubMsg, qos.value(), isClusterMessage);
+                            }
                             if (isClusterMessage) {
-                                var mpm = new MqttPublishMessage(
-                                        new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, retained, 0),
-                                        new MqttPublishVariableHeader(topic, e),
-                                        Unpooled.wrappedBuffer(payload)
-                                );
-
-                                channel.writeAndFlush(mpm);
+                                deliverQos12(channel, pubMsg, batch, qos, e);
                                 return Mono.empty();
                             } else {
                                 pubMsg.setQoS(qos.value());
                                 pubMsg.setMessageId(e);
-                                return publishMessageService.save(clientId, pubMsg).doOnSuccess(unused -> {
-                                    var mpm = new MqttPublishMessage(
-                                            new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, retained, 0),
-                                            new MqttPublishVariableHeader(topic, e),
-                                            Unpooled.wrappedBuffer(payload)
-                                    );
-
-                                    channel.writeAndFlush(mpm);
-                                });
+                                return publishMessageService.save(clientId, pubMsg)
+                                        .doOnSuccess(unused -> deliverQos12(channel, pubMsg, batch, qos, e));
                             }
                         })
                         .then();
@@ -483,16 +720,249 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
             }
         }
 
-        // 发送报文给 client
-        // mqttx 只有 ConnectHandler#republish(ChannelHandlerContext) 方法有必要将 dup flag 设置为 true(qos > 0), 其它应该为 false.
-        var mpm = new MqttPublishMessage(
-                new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, retained, 0),
-                new MqttPublishVariableHeader(topic, messageId),
-                Unpooled.wrappedBuffer(payload)
+        // 发送 qos0 报文给 client
+        write(batch, channel, newPublishMessage(pubMsg, batch, qos, messageId, channel));
+        return Mono.empty();
+    }
+
+    /**
+     * 发布消息给多个非 cleanSession 的 qos1,2 订阅者, 对应 {@link #publish0(ClientSub, PubMsg, FanoutBatch, boolean)} 的
+     * 情形 2 和 4(非集群消息).
+     * <p>
+     * 在线订阅者从会话租用的区间分配 messageId, 离线订阅者的 messageId 由存储在保存时分配; 按下发 qos 分组通过
+     * {@link IPublishMessageService#saveBatch(PubMsg, Map, List)} 一次性保存, 全部保存完成后再下发给在线订阅者.
+     *
+     * @param clientSubs 订阅者
+     * @param pubMsg     待发布消息
+     * @param batch      分发上下文
+     */
+    private Mono<Void> publishPersistent(List<ClientSub> clientSubs, PubMsg pubMsg, FanoutBatch batch) {
+        if (clientSubs.isEmpty()) {
+            return Mono.empty();
+        }
+        if (clientSubs.size() == 1) {
+            return publish0(clientSubs.get(0), pubMsg.copied(), batch, false);
+        }
+
+        final var pubQos = pubMsg.getQoS();
+        return Flux.fromIterable(clientSubs)
+                .flatMap(clientSub -> {
+                    final var clientId = clientSub.getClientId();
+                    final var connection = ConnectionRegistry.get(clientId);
+                    final var qos = Math.min(pubQos, clientSub.getQos());
+                    if (connection == null) {
+                        return Mono.just(new Delivery(clientId, null, qos, 0));
+                    }
+                    // 无可用 messageId 时按离线保存, 保存完成后断开连接
+                    return nextMessageId(connection)
+                            .defaultIfEmpty(0)
+                            .map(e -> new Delivery(clientId, connection, qos, e));
+                })
+                .collectList()
+                .flatMap(deliveries -> {
+                    // qos -> (clientId -> messageId); 客户端存在重叠的订阅时会收到多条, 重复的部分单独保存
+                    var groups = new HashMap<Integer, Map<String, Integer>>(4);
+                    // qos -> 离线客户端, 重复的客户端分配多个 messageId
+                    var offline = new HashMap<Integer, List<String>>(4);
+                    var duplicates = new ArrayList<Delivery>();
+                    for (var delivery : deliveries) {
+                        var group = groups.computeIfAbsent(delivery.qos(), k -> new HashMap<>(deliveries.size()));
+                        if (delivery.messageId() == 0) {
+                            offline.computeIfAbsent(delivery.qos(), k -> new ArrayList<>()).add(delivery.clientId());
+                        } else if (group.putIfAbsent(delivery.clientId(), delivery.messageId()) != null) {
+                            duplicates.add(delivery);
+                        }
+                    }
+                    var m1 = Flux.fromIterable(groups.entrySet())
+                            .flatMap(e -> publishMessageService.saveBatch(pubMsg.copied().setQoS(e.getKey()), e.getValue(),
+                                    offline.getOrDefault(e.getKey(), List.of())));
+                    var m2 = Flux.fromIterable(duplicates)
+                            .flatMap(e -> publishMessageService.save(e.clientId(), pubMsg.copied().setQoS(e.qos()).setMessageId(e.messageId())));
+                    return Mono.when(m1, m2)
+                            .then(Mono.fromRunnable(() -> {
+                                for (var delivery : deliveries) {
+                                    var connection = delivery.connection();
+                                    if (connection != null && delivery.messageId() == 0) {
+                                        log.warn("客户端[{}]无可用 messageId, 消息已转为离线保存, 断开连接", delivery.clientId());
+                                        connection.channel().close();
+                                    } else if (connection != null) {
+                                        connection.onDelivered();
+                                        deliverQos12(connection.channel(), pubMsg, batch, MqttQoS.valueOf(delivery.qos()), delivery.messageId());
+                                    }
+                                }
+                            }));
+                });
+    }
+
+    /**
+     * 为连接在当前 broker 的非 cleanSession 会话分配 messageId. 优先从会话租用的区间中分配, 区间耗尽时通过
+     * {@link ISessionService#leaseMessageIds(String, int)} 租用新的区间, 每 {@link #messageIdLeaseSize} 个 messageId 访问一次 redis.
+     * <p>
+     * 新区间全部处于未确认状态时, 再租用一个长度为已分配数量 + 2 的区间, 该区间必然包含可用值, 因此最多访问两次 redis.
+     * 会话已分配全部 65535 个 messageId 时不访问 redis, 直接返回空, 由调用方按离线流程保存消息并断开连接.
+     *
+     * @param connection 订阅者连接
+     * @return messageId, 无可用 messageId 时为空
+     */
+    private Mono<Integer> nextMessageId(ClientConnection connection) {
+        final var clientId = connection.clientId();
+        if (messageIdLeaseSize <= 0) {
+            // 标记为已分配, PUBACK/PUBCOMP 据此判断是否释放 inflight 窗口
+            return sessionService.nextMessageId(clientId).doOnNext(connection.session()::markMessageId);
+        }
+        final var session = connection.session();
+        int messageId = session.nextLeasedMessageId();
+        if (messageId != 0) {
+            return Mono.just(messageId);
+        }
+        return leaseMessageId(connection, messageIdLeaseSize)
+                .switchIfEmpty(Mono.defer(() -> leaseMessageId(connection, session.allocatedMessageIds() + 2)));
+    }
+
+    /**
+     * 租用新的 messageId 区间并分配
+     *
+     * @param connection 订阅者连接
+     * @param size       区间长度
+     * @return messageId, 会话已分配全部 messageId 或区间内无可用值时为空
+     */
+    private Mono<Integer> leaseMessageId(ClientConnection connection, int size) {
+        final var session = connection.session();
+        if (session.allocatedMessageIds() >= MESSAGE_ID_SPACE) {
+            return Mono.empty();
+        }
+        return sessionService.leaseMessageIds(connection.clientId(), size)
+                .mapNotNull(end -> {
+                    session.lease(end, size);
+                    int leased = session.nextLeasedMessageId();
+                    return leased != 0 ? leased : null;
+                });
+    }
+
+    /**
+     * 订阅者无可用 messageId 时, 消息按离线流程保存(由存储分配 messageId), 保存完成后断开连接, 客户端重连后由会话恢复下发.
+     * 集群消息已由来源 broker 保存, 只断开连接.
+     *
+     * @param connection       订阅者连接
+     * @param pubMsg           待发布消息
+     * @param qos              下发 qos
+     * @param isClusterMessage 是否为集群消息
+     */
+    private Mono<Void> saveAndDisconnect(ClientConnection connection, PubMsg pubMsg, int qos, boolean isClusterMessage) {
+        final var clientId = connection.clientId();
+        log.warn("客户端[{}]无可用 messageId, 消息转为离线保存, 断开连接", clientId);
+        var save = isClusterMessage ?
+                Mono.<Void>empty() :
+                publishMessageService.saveBatch(pubMsg.copied().setQoS(qos), Map.of(), List.of(clientId));
+        return save.doFinally(unused -> connection.channel().close());
+    }
+
+    /**
+     * 创建单条消息分发的上下文, 订阅路由不为空时预编码报文
+     */
+    private FanoutBatch newFanoutBatch(PubMsg pubMsg, TopicRoute route) {
+        final var frames = encodeOnce && pubMsg.payloadBuf() != null && !route.isEmpty() ?
+                new PublishFrames(pubMsg.getTopic(), pubMsg.isRetain(), pubMsg.payloadBuf()) : null;
+        return new FanoutBatch(frames, eventLoopBatching);
+    }
+
+    /**
+     * 写出报文, 存在分发上下文时按 event loop 聚合
+     */
+    private static void write(@Nullable FanoutBatch batch, Channel channel, Object msg) {
+        if (batch != null) {
+            batch.write(channel, msg);
+        } else {
+            channel.writeAndFlush(msg);
+        }
+    }
+
+    /**
+     * 创建发送给订阅者的 PUBLISH 报文. 存在预编码报文时返回 {@link com.jun.mqttx.broker.codec.EncodedPublish},
+     * 否则返回 {@link MqttPublishMessage}.
+     * <p>
+     * mqttx 只有 ConnectHandler#republish(ChannelHandlerContext) 方法有必要将 dup flag 设置为 true(qos > 0), 其它应该为 false.
+     *
+     * @param pubMsg    待发布消息
+     * @param batch     分发上下文, 可能持有预编码报文
+     * @param qos       订阅者 qos
+     * @param messageId 报文标识符
+     * @param channel   订阅者 channel
+     */
+    private Object newPublishMessage(PubMsg pubMsg, @Nullable FanoutBatch batch, MqttQoS qos, int messageId, Channel channel) {
+        final var frames = batch == null ? null : batch.frames();
+        if (frames != null) {
+            return frames.encode(qos, messageId, channel.alloc());
+        }
+        return new MqttPublishMessage(
+                new MqttFixedHeader(MqttMessageType.PUBLISH, false, qos, pubMsg.isRetain(), 0),
+                new MqttPublishVariableHeader(pubMsg.getTopic(), messageId),
+                pubMsg.payloadForWrite()
         );
+    }
 
-        channel.writeAndFlush(mpm);
-        return Mono.empty();
+    /**
+     * 评估客户端负载, 用于 {@link ShareStrategy#least_loaded} 策略.
+     * <p>
+     * 负载 = 未确认的 qos1,2 消息数 + 待写出字节数(见 {@link OutboundQueueHandler#pendingBytes(Channel)}, 每
+     * {@value #PENDING_BYTES_PER_LOAD} 字节计 1); channel 不可写时额外加上
+     * {@value #UNWRITABLE_LOAD}. 客户端未连接到当前 broker 时负载未知, 返回 {@value #UNKNOWN_LOAD}, 仅在所有成员负载都未知时被选中.
+     *
+     * @param clientSub 共享订阅组成员
+     * @return 负载值, 越小越空闲
+     */
+    private long loadOf(ClientSub clientSub) {
+        var connection = ConnectionRegistry.get(clientSub.getClientId());
+        if (connection == null) {
+            return UNKNOWN_LOAD;
+        }
+        var channel = connection.channel();
+        var session = connection.session();
+
+        long load = session.inflight() + OutboundQueueHandler.pendingBytes(channel) / PENDING_BYTES_PER_LOAD;
+        if (!channel.isWritable()) {
+            load += UNWRITABLE_LOAD;
+        }
+        return load;
+    }
+
+    /**
+     * 出站队列溢出, 未能写出的消息退回会话等待队列, 见 {@link OutboundQueueHandler.SpilledEvent}. 与 {@link #deliverQos12}
+     * 入队相同, 受 {@link #maxPending} 及 {@link #pendingOverflowPolicy} 约束; 出站队列排空前会话暂停下发等待队列.
+     *
+     * @param channel 订阅者 channel
+     * @param pending 退回的消息
+     */
+    public void spillPending(Channel channel, Session.Pending pending) {
+        var session = getSession(channel);
+        if (session == null) {
+            return;
+        }
+        if (pendingOverflowPolicy == OverflowPolicy.drop_oldest) {
+            var evicted = session.offerSpilledOrEvict(pending, maxPending);
+            if (evicted != null) {
+                dropPending(session, evicted);
+            }
+        } else if (!session.offerSpilled(pending, maxPending)) {
+            // 持久会话的消息已保存, 重连后下发; cleanSession 会话随连接结束
+            INFLIGHT_DISCONNECTED.increment();
+            log.warn("客户端[{}]会话等待队列已满({}), 断开连接", session.getClientId(), maxPending);
+            channel.close();
+        }
+    }
+
+    /**
+     * 出站队列溢出后已排空, 恢复并继续下发会话等待队列中的消息, 见 {@link OutboundQueueHandler.DrainedEvent}
+     *
+     * @param channel 订阅者 channel
+     */
+    public void resumePending(Channel channel) {
+        var session = getSession(channel);
+        if (session == null) {
+            return;
+        }
+        session.resumePending();
+        releasePending(channel, maxInflight);
     }
 
     /**
@@ -530,13 +1000,39 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
     }
 
     /**
-     * 集群内部消息发布
+     * 集群内部消息发布. 订阅者均位于已知的 broker 时仅定向转发给这些 broker, 否则广播
      *
-     * @param pubMsg {@link PubMsg}
+     * @param pubMsg    {@link PubMsg}
+     * @param clientIds 未连接到当前 broker 的订阅者
      */
-    private void internalMessagePublish(PubMsg pubMsg) {
+    private void internalMessagePublish(PubMsg pubMsg, List<String> clientIds) {
+        // 序列化前确保 byte[] 载荷存在
+        pubMsg.getPayload();
         var im = new InternalMessage<>(pubMsg, System.currentTimeMillis(), brokerId);
-        internalMessagePublishService.publish(im, InternalMessageEnum.PUB.getChannel());
+        if (!targetedPublish) {
+            CLUSTER_PUB_BROADCAST.increment();
+            internalMessagePublishService.publish(im, InternalMessageEnum.PUB.getChannel());
+            return;
+        }
+
+        var targets = new HashSet<String>();
+        for (var clientId : clientIds) {
+            var target = sessionLocationService.locate(clientId);
+            if (target == null) {
+                // 位置未知, 回退到广播
+                CLUSTER_PUB_BROADCAST.increment();
+                internalMessagePublishService.publish(im, InternalMessageEnum.PUB.getChannel());
+                return;
+            }
+            // 客户端最近连接的是当前 broker, 说明已离线, 无需转发
+            if (!brokerId.equals(target)) {
+                targets.add(target);
+            }
+        }
+        for (var target : targets) {
+            CLUSTER_PUB_TARGETED.increment();
+            internalMessagePublishService.publish(im, ClusterTopic.PUB_TARGETED + target);
+        }
     }
 
     @Override
@@ -550,38 +1046,13 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
             im = serializer.deserialize(msg, InternalMessage.class);
         }
         PubMsg data = im.getData();
+        CLUSTER_PUB_RECEIVED.increment();
         publish(data, null, true).subscribe();
     }
 
     @Override
     public boolean support(String channel) {
-        return InternalMessageEnum.PUB.getChannel().equals(channel);
-    }
-
-    /**
-     * 共享订阅选择客户端, 支持的策略如下：
-     * <ol>
-     *     <li>随机: {@link ShareStrategy#random}</li>
-     *     <li>轮询: {@link ShareStrategy#round}</li>
-     * </ol>
-     *
-     * @param clientSubList 接收客户端列表
-     * @return 按规则选择的客户端
-     */
-    private ClientSub chooseClient(List<ClientSub> clientSubList, String topic) {
-        // 集合排序
-        clientSubList.sort(ClientSub::compareTo);
-        final var size = clientSubList.size();
-
-        if (random == shareStrategy) {
-            int key = ThreadLocalRandom.current().nextInt(0, size);
-            return clientSubList.get(key % size);
-        } else if (round == shareStrategy) {
-            int i = roundMap.computeIfAbsent(topic, s -> new AtomicInteger(0)).getAndIncrement();
-            return clientSubList.get(i % size);
-        }
-
-        throw new IllegalArgumentException("不可能到达的代码, strategy:" + shareStrategy);
+        return InternalMessageEnum.PUB.getChannel().equals(channel) || targetedChannel.equals(channel);
     }
 
     /**
@@ -593,4 +1064,15 @@ public class PublishHandler extends AbstractMqttTopicSecureHandler implements Wa
     private Mono<Boolean> isCleanSession(String clientId) {
         return sessionService.hasKey(clientId).map(e -> !e);
     }
+
+    /**
+     * 非 cleanSession 订阅者的一次投递
+     *
+     * @param clientId   订阅者 id
+     * @param connection 订阅者连接, 离线时为 null
+     * @param qos        下发 qos
+     * @param messageId  报文标识符, 为 0 时由存储在保存时分配(离线, 或在线但无可用 messageId)
+     */
+    private record Delivery(String clientId, @Nullable ClientConnection connection, int qos, int messageId) {
+    }
 }
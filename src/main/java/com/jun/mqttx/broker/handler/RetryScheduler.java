@@ -0,0 +1,266 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.broker.handler;
+
+import com.jun.mqttx.broker.ClientConnection;
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.entity.Session;
+import com.jun.mqttx.service.IPubRelMessageService;
+import com.jun.mqttx.service.IPublishMessageService;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.AttributeKey;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.util.function.Tuple2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 未确认 qos1,2 消息重发调度.
+ * <p>
+ * 每个 event loop 持有一个时间轮, 时间轮的 tick 任务运行在 event loop 上; 时间轮的元素是存在未确认消息的客户端 channel,
+ * 而不是单条消息. 到期时如果客户端在重发间隔内没有任何确认(PUBACK/PUBREC/PUBCOMP), 则将其全部未确认的 PUBLISH(dup = 1)
+ * 及 PUBREL 报文批量重发并 flush 一次, 然后重新放入时间轮; 连续重发达到上限后断开连接, 持久会话的消息在重连后由
+ * {@link ConnectHandler} 重新下发.
+ * <ul>
+ *     <li>cleanSession: 重发 {@link Session#getPubMsgStore()} 及 {@link Session#getOutPubRelMsgStore()}</li>
+ *     <li>非 cleanSession: 重发 {@link IPublishMessageService} 及 {@link IPubRelMessageService} 中的消息, 跳过仍在会话等待队列中的消息</li>
+ * </ul>
+ *
+ * @since 1.2.4
+ */
+@Slf4j
+@Component
+public class RetryScheduler {
+    //@formatter:off
+
+    /** 重发的报文数量 */
+    public static final LongAdder RETRIED = new LongAdder();
+    /** 重发次数达到上限而断开的连接数量 */
+    public static final LongAdder EXHAUSTED = new LongAdder();
+    /** 每个重发间隔划分的 tick 数 */
+    private static final int TICKS_PER_INTERVAL = 16;
+    private static final AttributeKey<RetryState> KEY = AttributeKey.valueOf("retryState");
+    private final IPublishMessageService publishMessageService;
+    private final IPubRelMessageService pubRelMessageService;
+    private final boolean enable;
+    private final long intervalNanos;
+    private final int maxAttempts;
+    private final Map<EventLoop, Wheel> wheels = new ConcurrentHashMap<>();
+
+    //@formatter:on
+
+    public RetryScheduler(IPublishMessageService publishMessageService, IPubRelMessageService pubRelMessageService,
+                          MqttxConfig config) {
+        var delivery = config.getDelivery();
+        this.publishMessageService = publishMessageService;
+        this.pubRelMessageService = pubRelMessageService;
+        this.enable = delivery.getRetryEnable();
+        this.intervalNanos = delivery.getRetryInterval().toNanos();
+        this.maxAttempts = delivery.getRetryMaxAttempts();
+    }
+
+    /**
+     * 下发 qos1,2 消息后调用, 将 channel 加入所属 event loop 的时间轮; channel 已在时间轮中时忽略. 可在任意线程调用.
+     *
+     * @param channel 订阅者 channel
+     */
+    public void schedule(Channel channel) {
+        if (!enable) {
+            return;
+        }
+        var state = state(channel);
+        if (state.scheduled.compareAndSet(false, true)) {
+            state.lastProgress = System.nanoTime();
+            var eventLoop = channel.eventLoop();
+            var wheel = wheels.computeIfAbsent(eventLoop, Wheel::new);
+            if (eventLoop.inEventLoop()) {
+                wheel.add(channel);
+            } else {
+                eventLoop.execute(() -> wheel.add(channel));
+            }
+        }
+    }
+
+    /**
+     * 收到 PUBACK/PUBREC/PUBCOMP 后调用, 重置连续重发次数
+     *
+     * @param channel 订阅者 channel
+     */
+    public static void acked(Channel channel) {
+        var state = channel.attr(KEY).get();
+        if (state != null) {
+            state.lastProgress = System.nanoTime();
+            state.attempts = 0;
+        }
+    }
+
+    private static RetryState state(Channel channel) {
+        var attr = channel.attr(KEY);
+        var state = attr.get();
+        if (state == null) {
+            var created = new RetryState();
+            state = attr.setIfAbsent(created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    /**
+     * 时间轮到期处理, 运行在 channel 所属 event loop
+     *
+     * @return true 如果 channel 需要重新放入时间轮
+     */
+    private boolean expire(Channel channel) {
+        var state = channel.attr(KEY).get();
+        var connection = ClientConnection.of(channel);
+        var session = connection == null ? null : connection.session();
+        if (!channel.isActive() || session == null || session.inflight() == 0) {
+            state.scheduled.set(false);
+            return false;
+        }
+
+        // 重发间隔内收到过确认, 链路正常
+        if (System.nanoTime() - state.lastProgress < intervalNanos) {
+            return true;
+        }
+        if (++state.attempts > maxAttempts) {
+            state.scheduled.set(false);
+            EXHAUSTED.increment();
+            log.warn("客户端[{}]连续 {} 次重发未收到确认, 断开连接", session.getClientId(), maxAttempts);
+            channel.close();
+            return false;
+        }
+
+        if (Boolean.TRUE.equals(session.getCleanSession())) {
+            resend(channel, new ArrayList<>(session.getPubMsgStore().values()),
+                    new ArrayList<>(session.getOutPubRelMsgStore()));
+        } else {
+            final var clientId = session.getClientId();
+            final var pendingIds = session.pendingMessageIds();
+            publishMessageService.search(clientId)
+                    .filter(pubMsg -> !pendingIds.contains(pubMsg.getMessageId()))
+                    .collectList()
+                    .zipWith(pubRelMessageService.searchOut(clientId).collectList())
+                    .subscribe(t -> channel.eventLoop().execute(() -> resend(channel, t)),
+                            t -> log.error(String.format("客户端[%s]重发消息查询失败", clientId), t));
+        }
+        return true;
+    }
+
+    private void resend(Channel channel, Tuple2<List<PubMsg>, List<Integer>> t) {
+        resend(channel, t.getT1(), t.getT2());
+    }
+
+    /**
+     * 批量重发, 全部写入后 flush 一次
+     */
+    private void resend(Channel channel, List<PubMsg> pubMsgs, List<Integer> pubRels) {
+        if (!channel.isActive() || (pubMsgs.isEmpty() && pubRels.isEmpty())) {
+            return;
+        }
+        for (var pubMsg : pubMsgs) {
+            // The DUP flag MUST be set to 1 by the Client or Server when it attempts to re-deliver a PUBLISH Packet [MQTT-3.3.1-1].
+            channel.write(MqttMessageFactory.newMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, true, MqttQoS.valueOf(pubMsg.getQoS()), false, 0),
+                    new MqttPublishVariableHeader(pubMsg.getTopic(), pubMsg.getMessageId()),
+                    Unpooled.wrappedBuffer(pubMsg.getPayload())
+            ));
+        }
+        for (var messageId : pubRels) {
+            channel.write(MqttMessageFactory.newMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBREL, false, MqttQoS.AT_LEAST_ONCE, false, 0),
+                    MqttMessageIdVariableHeader.from(messageId),
+                    null
+            ));
+        }
+        channel.flush();
+        RETRIED.add(pubMsgs.size() + pubRels.size());
+    }
+
+    /**
+     * channel 级重发状态
+     */
+    private static final class RetryState {
+
+        /** 是否已在时间轮中 */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /** 最近一次确认(或加入时间轮)的时间 */
+        private volatile long lastProgress;
+        /** 连续重发次数 */
+        private volatile int attempts;
+    }
+
+    /**
+     * 运行在单个 event loop 上的时间轮, 只在该 event loop 中访问.
+     * <p>
+     * 元素的延迟均为一个重发间隔, 间隔划分为 {@link #TICKS_PER_INTERVAL} 个 tick, 元素放入当前 tick 之后第 TICKS_PER_INTERVAL 个槽.
+     */
+    private final class Wheel implements Runnable {
+
+        private final EventLoop eventLoop;
+        private final ArrayDeque<Channel>[] slots;
+        private long tick;
+        private boolean started;
+
+        @SuppressWarnings("unchecked")
+        private Wheel(EventLoop eventLoop) {
+            this.eventLoop = eventLoop;
+            this.slots = new ArrayDeque[TICKS_PER_INTERVAL + 1];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = new ArrayDeque<>();
+            }
+        }
+
+        private void add(Channel channel) {
+            slots[(int) ((tick + TICKS_PER_INTERVAL) % slots.length)].add(channel);
+            if (!started) {
+                started = true;
+                var tickNanos = Math.max(intervalNanos / TICKS_PER_INTERVAL, TimeUnit.MILLISECONDS.toNanos(1));
+                eventLoop.scheduleAtFixedRate(this, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        @Override
+        public void run() {
+            var slot = slots[(int) (++tick % slots.length)];
+            for (int i = slot.size(); i > 0; i--) {
+                var channel = slot.poll();
+                try {
+                    if (expire(channel)) {
+                        add(channel);
+                    }
+                } catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
@@ -17,22 +17,25 @@
 package com.jun.mqttx.broker.handler;
 
 import com.jun.mqttx.broker.BrokerHandler;
+import com.jun.mqttx.broker.ConnectionRegistry;
+import com.jun.mqttx.broker.codec.PublishFrames;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.entity.BrokerStatus;
 import com.jun.mqttx.entity.ClientSub;
-import com.jun.mqttx.entity.ShareTopic;
+import com.jun.mqttx.entity.PubMsg;
 import com.jun.mqttx.service.IRetainMessageService;
 import com.jun.mqttx.service.ISubscriptionService;
+import com.jun.mqttx.service.impl.DefaultSubscriptionServiceImpl;
+import com.jun.mqttx.utils.PayloadCache;
+import com.jun.mqttx.utils.TopicFilter;
 import com.jun.mqttx.utils.TopicUtils;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.mqtt.*;
-import reactor.core.publisher.Flux;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
@@ -100,21 +103,16 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
         // 程序将校验 client 当前想要订阅的 topic 是否被授权
         List<Integer> grantedQosLevels = new ArrayList<>(mqttTopicSubscriptions.size());
         var needSave = new ArrayList<ClientSub>();
+        var retainFilters = new ArrayList<TopicFilter>();
         mqttTopicSubscriptions.forEach(mqttTopicSubscription -> {
-            String topic = mqttTopicSubscription.topicName();
             int qos = mqttTopicSubscription.qualityOfService().value();
-            final var isShareTopic = TopicUtils.isShare(topic);
-            String shareName = null;
-            if (isShareTopic) {
-                ShareTopic shareTopic = TopicUtils.parseFrom(topic);
-                topic = shareTopic.filter();
-                shareName = shareTopic.name();
-            }
-
-            if (!TopicUtils.isValid(topic)) {
+            if (!TopicUtils.isValid(mqttTopicSubscription.topicName())) {
                 // Failure
                 qos = 0x80;
             } else {
+                // 订阅时编译一次 topicFilter, 共享主题同时解析出 shareName
+                final var topicFilter = TopicFilter.compile(mqttTopicSubscription.topicName());
+                final var topic = topicFilter.filter();
                 if (enableTopicPubSubSecure && !hasAuthToSubTopic(ctx, topic)) {
                     // client 不允许订阅此 topic
                     qos = 0x80;
@@ -128,8 +126,13 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
                         if (TopicUtils.isSys(topic)) {
                             qos = 0x80;
                         } else {
-                            ClientSub clientSub = ClientSub.of(clientId, qos, topic, isCleanSession(ctx), shareName);
+                            ClientSub clientSub = ClientSub.of(clientId, qos, topic, isCleanSession(ctx), topicFilter.shareName());
                             needSave.add(clientSub);
+
+                            // 共享订阅不发送保留消息
+                            if (!topicFilter.isShare()) {
+                                retainFilters.add(topicFilter);
+                            }
                         }
                     }
                 }
@@ -138,9 +141,8 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
         });
 
         // 开始订阅
-        Flux.fromIterable(needSave)
-                .flatMap(subscriptionService::subscribe)
-                .doOnComplete(() -> {
+        subscriptionService.subscribe(needSave)
+                .doOnSuccess(unused -> {
                     // acknowledge
                     MqttMessage mqttMessage = MqttMessageFactory.newMessage(
                             new MqttFixedHeader(MqttMessageType.SUBACK, false, MqttQoS.AT_MOST_ONCE, false, 0),
@@ -150,9 +152,8 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
 
                     // When a new subscription is established, the last retained message, if any,
                     // on each matching topic name MUST be sent to the subscriber [MQTT-3.3.1-6]
-                    // 获取所有存在保留消息的 topic, 当 TopicUtils.match(topic, newSubTopic) = true 时，将保留消息发送给客户端
-                    mqttTopicSubscriptions.forEach(mqttTopicSubscription -> {
-                        String topicFilter = mqttTopicSubscription.topicName();
+                    // 获取所有存在保留消息的 topic, 当 topicFilter.matches(topic) = true 时，将保留消息发送给客户端
+                    retainFilters.forEach(topicFilter -> {
                         retainMessageService.searchListByTopicFilter(topicFilter)
                                 .flatMap(pubMsg -> {
                                     // When sending a PUBLISH Packet to a Client the Server MUST set the RETAIN flag to 1 if a
@@ -226,7 +227,7 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
             }
             case TopicUtils.BROKER_CLIENTS_ACTIVE_CONNECTED_COUNT -> {
                 byte[] activeConnected = BrokerStatus.builder()
-                        .activeConnectCount(BrokerHandler.CHANNELS.size())
+                        .activeConnectCount(BrokerHandler.ACTIVE_SIZE.get())
                         .build().toJsonBytes();
 
                 MqttPublishMessage timeResponse = MqttMessageBuilders.publish()
@@ -321,10 +322,43 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
             // broker 状态
             LocalDateTime now = LocalDateTime.now();
             byte[] bytes = BrokerStatus.builder()
-                    .activeConnectCount(BrokerHandler.CHANNELS.size())
+                    .activeConnectCount(BrokerHandler.ACTIVE_SIZE.get())
                     .maxActiveConnectCount(BrokerHandler.MAX_ACTIVE_SIZE.get())
                     .receivedMsg(ProbeHandler.IN_MSG_SIZE.intValue())
                     .sendMsg(ProbeHandler.OUT_MSG_SIZE.intValue())
+                    .routeCacheHit(DefaultSubscriptionServiceImpl.ROUTE_CACHE_HIT.sum())
+                    .routeCacheMiss(DefaultSubscriptionServiceImpl.ROUTE_CACHE_MISS.sum())
+                    .subscriptionLoadMillis(DefaultSubscriptionServiceImpl.CACHE_LOAD_MILLIS.get())
+                    .subscriptionReconcileMillis(DefaultSubscriptionServiceImpl.CACHE_RECONCILE_MILLIS.get())
+                    .clusterPubBroadcast(PublishHandler.CLUSTER_PUB_BROADCAST.sum())
+                    .clusterPubTargeted(PublishHandler.CLUSTER_PUB_TARGETED.sum())
+                    .clusterPubReceived(PublishHandler.CLUSTER_PUB_RECEIVED.sum())
+                    .payloadCopy(PubMsg.PAYLOAD_COPY.sum())
+                    .payloadCopyBytes(PubMsg.PAYLOAD_COPY_BYTES.sum())
+                    .payloadShared(PubMsg.PAYLOAD_SHARED.sum())
+                    .payloadWrapped(PubMsg.PAYLOAD_WRAPPED.sum())
+                    .frameShared(PublishFrames.SHARED.sum())
+                    .framePatched(PublishFrames.PATCHED.sum())
+                    .flushRequested(FlushCoalescingHandler.FLUSH_REQUESTED.sum())
+                    .flushIssued(FlushCoalescingHandler.FLUSH_ISSUED.sum())
+                    .slowConsumerDropped(OutboundQueueHandler.DROPPED.sum())
+                    .slowConsumerSpilled(OutboundQueueHandler.SPILLED.sum())
+                    .slowConsumerDisconnected(OutboundQueueHandler.DISCONNECTED.sum())
+                    .outboundBacklog(OutboundQueueHandler.BACKLOG.sum())
+                    .backpressurePaused(BackpressureHandler.PAUSED.sum())
+                    .backpressurePausedChannels(BackpressureHandler.PAUSED_CHANNELS.sum())
+                    .inflightQueued(PublishHandler.INFLIGHT_QUEUED.sum())
+                    .inflightDropped(PublishHandler.INFLIGHT_DROPPED.sum())
+                    .inflightDisconnected(PublishHandler.INFLIGHT_DISCONNECTED.sum())
+                    .retried(RetryScheduler.RETRIED.sum())
+                    .retryExhausted(RetryScheduler.EXHAUSTED.sum())
+                    .fanoutTasks(FanoutBatch.TASKS.sum())
+                    .fanoutWrites(FanoutBatch.WRITES.sum())
+                    .payloadCacheHit(PayloadCache.HIT.sum())
+                    .payloadCacheMiss(PayloadCache.MISS.sum())
+                    .payloadCacheEvicted(PayloadCache.EVICTED.sum())
+                    .payloadCacheBytes(PayloadCache.BYTES.get())
+                    .payloadCacheEntries(PayloadCache.ENTRIES.get())
                     .timestamp(now.toString())
                     .uptime((int) ((System.currentTimeMillis() - BrokerHandler.START_TIME) / 1000))
                     .version(this.version)
@@ -341,9 +375,7 @@ public class SubscribeHandler extends AbstractMqttTopicSecureHandler {
             subscriptionService.searchSysTopicClients(brokerStatusTopic)
                     .doOnNext(clientSub -> {
                         // 发布消息
-                        Optional.ofNullable(ConnectHandler.CLIENT_MAP.get(clientSub.getClientId()))
-                                .map(BrokerHandler.CHANNELS::find)
-                                .ifPresent(channel -> channel.writeAndFlush(mpm.retain()));
+                        ConnectionRegistry.ifConnected(clientSub.getClientId(), channel -> channel.writeAndFlush(mpm.retain()));
                     })
                     .doOnComplete(mpm::release).subscribe();
         }, 0, interval, TimeUnit.SECONDS);
@@ -16,6 +16,7 @@
 
 package com.jun.mqttx.config;
 
+import com.jun.mqttx.constants.ClusterTopic;
 import com.jun.mqttx.consumer.DefaultInternalMessageSubscriber;
 import com.jun.mqttx.consumer.KafkaInternalMessageSubscriber;
 import com.jun.mqttx.consumer.Watcher;
@@ -91,14 +92,17 @@ public class ClusterConfig {
      *
      * @param redisConnectionFactory {@link RedisConnectionFactory}
      * @param subscriber             {@link DefaultInternalMessageSubscriber}
+     * @param mqttxConfig            {@link MqttxConfig}
      */
     @Bean
     @ConditionalOnProperty(name = "mqttx.cluster.type", havingValue = REDIS, matchIfMissing = true)
     public ReactiveRedisMessageListenerContainer redisMessageListenerContainer(ReactiveRedisConnectionFactory redisConnectionFactory,
-                                                                               DefaultInternalMessageSubscriber subscriber) {
+                                                                               DefaultInternalMessageSubscriber subscriber,
+                                                                               MqttxConfig mqttxConfig) {
         var redisMessageListenerContainer = new ReactiveRedisMessageListenerContainer(redisConnectionFactory);
         var channelTopics = List.of(
                 new ChannelTopic(PUB.getChannel()),
+                new ChannelTopic(ClusterTopic.PUB_TARGETED + mqttxConfig.getBrokerId()),
                 new ChannelTopic(PUB_ACK.getChannel()),
                 new ChannelTopic(PUB_REC.getChannel()),
                 new ChannelTopic(PUB_COM.getChannel()),
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.config;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.storage.LocalStore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.Assert;
+
+import java.nio.file.Path;
+
+/**
+ * 本地存储配置, {@code mqttx.storage.type = local} 时生效, 仅支持单机模式
+ *
+ * @since 1.2.4
+ */
+@Configuration
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.LOCAL)
+public class LocalStorageConfig {
+
+    @Bean(destroyMethod = "close")
+    public LocalStore localStore(MqttxConfig mqttxConfig) {
+        Assert.isTrue(!mqttxConfig.getCluster().getEnable(), "本地存储不支持集群模式");
+
+        var storage = mqttxConfig.getStorage();
+        return new LocalStore(Path.of(storage.getPath()), storage.getSegmentSize(), storage.getSyncInterval());
+    }
+}
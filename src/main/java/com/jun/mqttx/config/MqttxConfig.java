@@ -16,8 +16,10 @@
 
 package com.jun.mqttx.config;
 
+import com.jun.mqttx.constants.OverflowPolicy;
 import com.jun.mqttx.constants.SerializeStrategy;
 import com.jun.mqttx.constants.ShareStrategy;
+import com.jun.mqttx.constants.StorageType;
 import com.jun.mqttx.entity.TopicRateLimit;
 import io.netty.handler.codec.mqtt.MqttConstant;
 import io.netty.handler.ssl.ClientAuth;
@@ -113,6 +115,24 @@ public class MqttxConfig {
     /** 共享载荷 */
     private SharablePayload sharablePayload = new SharablePayload();
 
+    /** 发布主题路由缓存 */
+    private RouteCache routeCache = new RouteCache();
+
+    /** 订阅关系缓存加载 */
+    private SubscriptionCache subscriptionCache = new SubscriptionCache();
+
+    /** 消息投递 */
+    private Delivery delivery = new Delivery();
+
+    /** 慢消费者 */
+    private SlowConsumer slowConsumer = new SlowConsumer();
+
+    /** 离线消息日志 */
+    private MessageLog messageLog = new MessageLog();
+
+    /** 存储 */
+    private Storage storage = new Storage();
+
     /**
      * redis 配置
      * <p>
@@ -167,6 +187,12 @@ public class MqttxConfig {
 
         /** 处理集群消息的中间件类型 */
         private String type = ClusterConfig.REDIS;
+
+        /**
+         * publish 消息定向转发开关. 开启后消息仅转发给订阅者所在的 broker, 订阅者位置未知时回退到广播;
+         * 集群内存在不支持定向转发的旧版本 broker 时需关闭.
+         */
+        private Boolean targetedPublish = true;
     }
 
     /**
@@ -202,6 +228,9 @@ public class MqttxConfig {
 
         /** 监听端口 */
         private Integer port = 1883;
+
+        /** 发布者背压 */
+        private Backpressure backpressure = new Backpressure();
     }
 
     /**
@@ -218,13 +247,39 @@ public class MqttxConfig {
 
         /** uri */
         private String path = "/mqtt";
+
+        /** 发布者背压 */
+        private Backpressure backpressure = new Backpressure();
+    }
+
+    /**
+     * 发布者背压配置, 按监听器(socket, websocket)分别配置, 实现见 {@link com.jun.mqttx.broker.handler.BackpressureHandler}
+     * <p>
+     * 发布者最近消息的订阅者待写出字节数之和超过阈值时, 暂停读取发布者报文, 直至积压消除.
+     */
+    @Data
+    public static class Backpressure {
+
+        /** 开关 */
+        private Boolean enable = false;
+
+        /** 暂停读取阈值, 单位字节 */
+        private Long pauseThreshold = 8L * 1024 * 1024;
+
+        /** 恢复读取阈值, 单位字节 */
+        private Long resumeThreshold = 2L * 1024 * 1024;
+
+        /** 记录的发布者最近发布主题数量 */
+        private Integer recentTopics = 8;
+
+        /** 积压检查间隔 */
+        private Duration checkInterval = Duration.ofMillis(100);
     }
 
     /**
      * 共享 topic 配置
      * <p>
-     * 共享 topic 支持, 实现参考 MQTT v5, 默认关。目前仅支持根据发送端 clientId 进行 hash 后的共享策略，
-     * 实现见 {@link com.jun.mqttx.broker.handler.PublishHandler} <code>chooseClient(List,String)</code> 方法.
+     * 共享 topic 支持, 实现参考 MQTT v5. 共享订阅组由订阅索引预先维护, 成员选取实现见 {@link com.jun.mqttx.entity.ShareGroup}.
      */
     @Data
     public static class ShareTopic {
@@ -234,6 +289,8 @@ public class MqttxConfig {
          * <ul>
          *     <li>{@link ShareStrategy#random} 随机</li>
          *     <li>{@link ShareStrategy#round} 轮询</li>
+         *     <li>{@link ShareStrategy#hash} 按发布者 clientId 哈希, 同一发布者的消息保持顺序</li>
+         *     <li>{@link ShareStrategy#least_loaded} 最小负载, 依据未确认消息数与 channel 待写出字节数</li>
          * </ul>
          * @see ShareStrategy
          */
@@ -313,5 +370,189 @@ public class MqttxConfig {
 
         /** 当 pub msg 阈值大于指定值时，报文采用二级寻址方式处理 */
         private int thresholdInMessage = 128;
+
+        /** 共享载荷本地缓存字节数上限, 超出后按引用计数及 LRU 淘汰, 未命中时从 redis 读取 */
+        private long cacheMaxBytes = 64 * 1024 * 1024;
+
+        /** 本地保存的 clientId + messageId -> 载荷关联数量上限, 超出后移除最早的关联 */
+        private int cacheMaxRefs = 100_000;
+    }
+
+    /**
+     * 发布主题 -> 订阅者路由缓存配置, 实现见 {@link com.jun.mqttx.service.impl.DefaultSubscriptionServiceImpl}
+     */
+    @Data
+    public static class RouteCache {
+
+        /** 开关 */
+        private Boolean enable = true;
+
+        /** 缓存的发布主题数量上限, 超出上限后按近似 LRU 淘汰 */
+        private Integer maxSize = 100_000;
+    }
+
+    /**
+     * 订阅关系缓存加载配置, 实现见 {@link com.jun.mqttx.service.impl.DefaultSubscriptionServiceImpl}
+     * <p>
+     * 开启快照后, 应用定时及关闭时将订阅索引写入本地快照, 启动时优先加载快照, 再异步与 redis 对账.
+     */
+    @Data
+    public static class SubscriptionCache {
+
+        /** 快照开关 */
+        private Boolean snapshotEnable = false;
+
+        /** 快照文件路径 */
+        private String snapshotPath = "./data/mqttx-subscription.snapshot";
+
+        /** 快照定时写入间隔 */
+        private Duration snapshotInterval = Duration.ofMinutes(5);
+
+        /** 从 redis 加载订阅关系时, 并发请求的 topic 数量 */
+        private Integer loadConcurrency = 64;
+    }
+
+    /**
+     * 消息投递配置, 实现见 {@link com.jun.mqttx.broker.handler.PublishHandler}
+     */
+    @Data
+    public static class Delivery {
+
+        /**
+         * PUBLISH 报文预编码开关. 开启后同一条消息的固定报头与主题只编码一次, 所有订阅者共享报头与载荷缓冲,
+         * 见 {@link com.jun.mqttx.broker.codec.PublishFrames}
+         */
+        private Boolean encodeOnce = true;
+
+        /**
+         * 同步投递开关. 单机模式下, 如果消息投递只涉及内存中的会话(订阅者均为 cleanSession 或投递 qos 为 0),
+         * 则直接在 event loop 上完成投递及响应, 不再经过 reactor 调度; 涉及持久化时仍走异步流程.
+         */
+        private Boolean syncDelivery = true;
+
+        /**
+         * 分发写操作按 event loop 聚合开关. 开启后单条消息分发至多个订阅者时, 每个 event loop 只提交一个写任务,
+         * 见 {@link com.jun.mqttx.broker.handler.FanoutBatch}
+         */
+        private Boolean eventLoopBatching = true;
+
+        /**
+         * flush 合并开关. 开启后同一次读取、同一轮分发写入同一 channel 的报文合并为一次 flush,
+         * 见 {@link com.jun.mqttx.broker.handler.FlushCoalescingHandler}
+         */
+        private Boolean flushCoalescing = true;
+
+        /** 单次合并的 flush 数量上限, 达到上限立即 flush */
+        private Integer flushMaxPending = 256;
+
+        /** 非读取过程中 flush 的最大延迟, 0 表示在 event loop 的下一个任务中 flush */
+        private Duration flushMaxDelay = Duration.ZERO;
+
+        /**
+         * 每个会话已下发未确认的 qos1,2 消息数量上限(inflight 窗口), 超出的消息按序进入会话等待队列, 收到 PUBACK/PUBCOMP 后释放.
+         * 小于等于 0 表示不限制
+         */
+        private Integer maxInflight = 32;
+
+        /** 每个会话等待队列长度上限, 已满时按 {@link #pendingOverflowPolicy} 处理. 小于等于 0 表示不限制 */
+        private Integer maxPending = 1000;
+
+        /**
+         * 等待队列已满时的处理策略:
+         * <ul>
+         *     <li>{@link OverflowPolicy#disconnect}: 断开订阅者连接, 持久会话的消息在重连后下发</li>
+         *     <li>{@link OverflowPolicy#drop_oldest}: 丢弃队列中最早的消息, qos1,2 消息会丢失, 持久会话的消息同时从存储中移除</li>
+         * </ul>
+         */
+        private OverflowPolicy pendingOverflowPolicy = OverflowPolicy.disconnect;
+
+        /**
+         * 非 cleanSession 会话每次从 redis 租用的 messageId 数量. 客户端连接在当前 broker 时, messageId 从租用的区间在内存中分配,
+         * 区间耗尽时再次租用. 小于等于 0 表示每条消息执行一次 redis INCR
+         */
+        private Integer messageIdLeaseSize = 64;
+
+        /** 未确认 qos1,2 消息重发开关, 见 {@link com.jun.mqttx.broker.handler.RetryScheduler} */
+        private Boolean retryEnable = true;
+
+        /** 重发间隔, 客户端在该间隔内没有任何确认时重发其全部未确认消息 */
+        private Duration retryInterval = Duration.ofSeconds(20);
+
+        /** 连续重发次数上限, 超过后断开连接 */
+        private Integer retryMaxAttempts = 3;
+    }
+
+    /**
+     * 慢消费者处理配置, 实现见 {@link com.jun.mqttx.broker.handler.OutboundQueueHandler}
+     * <p>
+     * channel 待写出字节数超过高水位后变为不可写, 之后的 PUBLISH 报文进入有界队列, 低于低水位后恢复写出.
+     */
+    @Data
+    public static class SlowConsumer {
+
+        /** 出站队列开关 */
+        private Boolean enable = true;
+
+        /** channel 写缓冲低水位, 单位字节 */
+        private Integer writeBufferLowWaterMark = 32 * 1024;
+
+        /** channel 写缓冲高水位, 单位字节 */
+        private Integer writeBufferHighWaterMark = 64 * 1024;
+
+        /** 每个连接出站队列的报文数量上限 */
+        private Integer queueSize = 1000;
+
+        /** qos0 报文溢出策略, 可选 drop_oldest, drop_newest */
+        private OverflowPolicy qos0Policy = OverflowPolicy.drop_oldest;
+
+        /** qos1,2 报文溢出策略, 可选 spill, disconnect */
+        private OverflowPolicy qos12Policy = OverflowPolicy.spill;
+    }
+
+    /**
+     * 离线消息日志配置, 实现见 {@link com.jun.mqttx.service.impl.LogPublishMessageServiceImpl}
+     * <p>
+     * 非 cleanSession 客户端的离线消息每条只在日志中保存一份, 客户端只保存引用.
+     */
+    @Data
+    public static class MessageLog {
+
+        /** 开关, 关闭时使用 {@link com.jun.mqttx.service.impl.DefaultPublishMessageServiceImpl} */
+        private Boolean enable = false;
+
+        /** 日志分段 redis key 前缀 */
+        private String keyPrefix = "mqttx:msglog:";
+
+        /** 日志分段时长, 每个分段为一个 redis hash */
+        private Duration segmentDuration = Duration.ofHours(1);
+
+        /**
+         * 消息保留时长, 默认为空即分段只在其中的引用全部释放后删除. 设置后分段最迟在 {@code segmentDuration + retention} 后整段删除,
+         * 作为客户端长期离线时的上限, 客户端离线超过该时长后未确认的消息可能已被删除
+         */
+        private Duration retention;
+    }
+
+    /**
+     * 存储配置. 会话、离线消息、pubRel 消息、保留消息及订阅关系的存储方式:
+     * <ol>
+     *     <li>{@link StorageType#REDIS}: 默认项</li>
+     *     <li>{@link StorageType#LOCAL}: 嵌入式本地存储 {@link com.jun.mqttx.storage.LocalStore}, 仅支持单机模式</li>
+     * </ol>
+     */
+    @Data
+    public static class Storage {
+
+        /** 存储类型 */
+        private String type = StorageType.REDIS;
+
+        /** 本地存储段文件目录 */
+        private String path = "./data/store";
+
+        /** 本地存储段文件大小, 单位字节, 单条记录不能超过该值 */
+        private Integer segmentSize = 64 * 1024 * 1024;
+
+        /** 本地存储刷盘间隔, 同一间隔内的写入合并为一次 fsync */
+        private Duration syncInterval = Duration.ofMillis(10);
     }
 }
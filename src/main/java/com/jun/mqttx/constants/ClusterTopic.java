@@ -23,6 +23,9 @@ public interface ClusterTopic {
 
     String PUB = "MQTTX_INTERNAL_PUB";
 
+    /** 定向发布, 仅由指定 broker 消费, 完整主题为 {@code PUB_TARGETED + brokerId} */
+    String PUB_TARGETED = "MQTTX_INTERNAL_PUB_TO_";
+
     String PUB_ACK = "MQTTX_INTERNAL_PUBACK";
 
     String PUB_REC = "MQTTX_INTERNAL_PUBREC";
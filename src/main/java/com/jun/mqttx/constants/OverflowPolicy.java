@@ -0,0 +1,36 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.constants;
+
+/**
+ * 慢消费者出站队列及会话等待队列溢出策略.
+ * <ul>
+ *     <li>{@link #drop_oldest}: 出站队列: 丢弃队列中最早的 qos0 消息, 仅适用于 qos0; 会话等待队列: 丢弃最早的消息</li>
+ *     <li>{@link #drop_newest}: 丢弃新到达的消息, 仅适用于 qos0</li>
+ *     <li>{@link #spill}: 不再写入 channel, 释放 inflight 窗口并将消息退回会话等待队列(受等待队列长度上限及溢出策略约束),
+ *     出站队列排空前暂停下发, 排空后继续投递, 仅适用于 qos1,2</li>
+ *     <li>{@link #disconnect}: 断开客户端连接, 适用于出站队列 qos1,2 及会话等待队列</li>
+ * </ul>
+ *
+ * @since 1.2.4
+ */
+public enum OverflowPolicy {
+    drop_oldest,
+    drop_newest,
+    spill,
+    disconnect;
+}
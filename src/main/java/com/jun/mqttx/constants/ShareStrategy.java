@@ -17,12 +17,18 @@
 package com.jun.mqttx.constants;
 
 /**
- * 共享订阅策略, 分别支持随机、轮询机制.
+ * 共享订阅策略, 分别支持随机、轮询、哈希、最小负载机制.
+ * <p>
+ * {@link #hash} 以消息发布者 clientId 为 key(集群消息等无发布者时取 topic), 同一发布者的消息总是分发给组内同一成员, 从而保持顺序.
+ * <p>
+ * {@link #least_loaded} 选取未确认 qos1,2 消息数与待写出字节数最少的成员, 避免慢消费者积压而其它成员空闲.
  *
  * @author Jun
  * @since 1.0.4
  */
 public enum ShareStrategy {
     random,
-    round;
+    round,
+    hash,
+    least_loaded;
 }
@@ -49,7 +49,7 @@ public abstract class AbstractInnerChannel {
      * 分发集群消息，当前处理类别：
      * <ol>
      *     <li>客户端连接断开 {@link InternalMessageEnum#DISCONNECT}</li>
-     *     <li>发布消息_qos012 {@link InternalMessageEnum#PUB}</li>
+     *     <li>发布消息_qos012 {@link InternalMessageEnum#PUB}, 包括定向发布给当前 broker 的消息</li>
      *     <li>发布消息响应_qos1 {@link InternalMessageEnum#PUB_ACK}</li>
      *     <li>发布消息接收响应_qos2 {@link InternalMessageEnum#PUB_REC}</li>
      *     <li>发布消息释放_qos2 {@link InternalMessageEnum#PUB_REL}</li>
@@ -50,6 +50,7 @@ public class KafkaInternalMessageSubscriber extends AbstractInnerChannel impleme
      */
     @KafkaListener(topics = {
             ClusterTopic.PUB,
+            ClusterTopic.PUB_TARGETED + "${mqttx.broker-id}",
             ClusterTopic.PUB_ACK,
             ClusterTopic.PUB_REC,
             ClusterTopic.PUB_REL,
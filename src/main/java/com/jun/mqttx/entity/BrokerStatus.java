@@ -48,6 +48,105 @@ public class BrokerStatus {
 
     private final Integer uptime;
 
+    /** @see com.jun.mqttx.service.impl.DefaultSubscriptionServiceImpl#ROUTE_CACHE_HIT */
+    private final Long routeCacheHit;
+
+    /** @see com.jun.mqttx.service.impl.DefaultSubscriptionServiceImpl#ROUTE_CACHE_MISS */
+    private final Long routeCacheMiss;
+
+    /** @see com.jun.mqttx.service.impl.DefaultSubscriptionServiceImpl#CACHE_LOAD_MILLIS */
+    private final Long subscriptionLoadMillis;
+
+    /** @see com.jun.mqttx.service.impl.DefaultSubscriptionServiceImpl#CACHE_RECONCILE_MILLIS */
+    private final Long subscriptionReconcileMillis;
+
+    /** @see com.jun.mqttx.broker.handler.PublishHandler#CLUSTER_PUB_BROADCAST */
+    private final Long clusterPubBroadcast;
+
+    /** @see com.jun.mqttx.broker.handler.PublishHandler#CLUSTER_PUB_TARGETED */
+    private final Long clusterPubTargeted;
+
+    /** @see com.jun.mqttx.broker.handler.PublishHandler#CLUSTER_PUB_RECEIVED */
+    private final Long clusterPubReceived;
+
+    /** @see PubMsg#PAYLOAD_COPY */
+    private final Long payloadCopy;
+
+    /** @see PubMsg#PAYLOAD_COPY_BYTES */
+    private final Long payloadCopyBytes;
+
+    /** @see PubMsg#PAYLOAD_SHARED */
+    private final Long payloadShared;
+
+    /** @see PubMsg#PAYLOAD_WRAPPED */
+    private final Long payloadWrapped;
+
+    /** @see com.jun.mqttx.broker.codec.PublishFrames#SHARED */
+    private final Long frameShared;
+
+    /** @see com.jun.mqttx.broker.codec.PublishFrames#PATCHED */
+    private final Long framePatched;
+
+    /** @see com.jun.mqttx.broker.handler.FlushCoalescingHandler#FLUSH_REQUESTED */
+    private final Long flushRequested;
+
+    /** @see com.jun.mqttx.broker.handler.FlushCoalescingHandler#FLUSH_ISSUED */
+    private final Long flushIssued;
+
+    /** @see com.jun.mqttx.broker.handler.OutboundQueueHandler#DROPPED */
+    private final Long slowConsumerDropped;
+
+    /** @see com.jun.mqttx.broker.handler.OutboundQueueHandler#SPILLED */
+    private final Long slowConsumerSpilled;
+
+    /** @see com.jun.mqttx.broker.handler.OutboundQueueHandler#DISCONNECTED */
+    private final Long slowConsumerDisconnected;
+
+    /** @see com.jun.mqttx.broker.handler.OutboundQueueHandler#BACKLOG */
+    private final Long outboundBacklog;
+
+    /** @see com.jun.mqttx.broker.handler.BackpressureHandler#PAUSED */
+    private final Long backpressurePaused;
+
+    /** @see com.jun.mqttx.broker.handler.BackpressureHandler#PAUSED_CHANNELS */
+    private final Long backpressurePausedChannels;
+
+    /** @see com.jun.mqttx.broker.handler.PublishHandler#INFLIGHT_QUEUED */
+    private final Long inflightQueued;
+
+    /** @see com.jun.mqttx.broker.handler.PublishHandler#INFLIGHT_DROPPED */
+    private final Long inflightDropped;
+
+    /** @see com.jun.mqttx.broker.handler.PublishHandler#INFLIGHT_DISCONNECTED */
+    private final Long inflightDisconnected;
+
+    /** @see com.jun.mqttx.broker.handler.RetryScheduler#RETRIED */
+    private final Long retried;
+
+    /** @see com.jun.mqttx.broker.handler.RetryScheduler#EXHAUSTED */
+    private final Long retryExhausted;
+
+    /** @see com.jun.mqttx.broker.handler.FanoutBatch#TASKS */
+    private final Long fanoutTasks;
+
+    /** @see com.jun.mqttx.broker.handler.FanoutBatch#WRITES */
+    private final Long fanoutWrites;
+
+    /** @see com.jun.mqttx.utils.PayloadCache#HIT */
+    private final Long payloadCacheHit;
+
+    /** @see com.jun.mqttx.utils.PayloadCache#MISS */
+    private final Long payloadCacheMiss;
+
+    /** @see com.jun.mqttx.utils.PayloadCache#EVICTED */
+    private final Long payloadCacheEvicted;
+
+    /** @see com.jun.mqttx.utils.PayloadCache#BYTES */
+    private final Long payloadCacheBytes;
+
+    /** @see com.jun.mqttx.utils.PayloadCache#ENTRIES */
+    private final Long payloadCacheEntries;
+
     //@formatter:on
 
     /**
@@ -55,4 +55,11 @@ public class ClientSubOrUnsubMsg {
      * </ol>
      */
     private int type;
+
+    /**
+     * 当 {@code type} == 1 且不为空时, 代表同一个 SUBSCRIBE 报文中的全部订阅, 此时忽略 {@code topic}, {@code qos}
+     *
+     * @since 1.2.4
+     */
+    private List<ClientSub> clientSubs;
 }
@@ -17,12 +17,23 @@
 package com.jun.mqttx.entity;
 
 import com.jun.mqttx.utils.Uuids;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import lombok.experimental.Accessors;
-import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 发布的消息
+ * <p>
+ * 客户端发布的消息载荷以入站报文的 {@link ByteBuf} 形式在分发链路中传递, 每个订阅者写出时通过
+ * {@link ByteBuf#retainedDuplicate()} 共享同一块内存; 仅当消息需要持久化或发往集群时才通过 {@link #getPayload()} 复制为 byte[].
  *
  * @author Jun
  * @since 1.0.4
@@ -32,6 +43,15 @@ import lombok.extern.slf4j.Slf4j;
 public class PubMsg {
     //@formatter:off
 
+    /** 载荷由 ByteBuf 复制为 byte[] 的次数 */
+    public static final LongAdder PAYLOAD_COPY = new LongAdder();
+    /** 载荷复制字节数 */
+    public static final LongAdder PAYLOAD_COPY_BYTES = new LongAdder();
+    /** 写出时共享 ByteBuf 的次数 */
+    public static final LongAdder PAYLOAD_SHARED = new LongAdder();
+    /** 写出时包装 byte[] 的次数, 即消息无 ByteBuf 载荷(保留消息、集群消息、持久化消息等) */
+    public static final LongAdder PAYLOAD_WRAPPED = new LongAdder();
+
     /**
      * 共享主题钦定的客户端 id, 如果此字段不为空，表明消息只能发给指定的 client
      */
@@ -63,6 +83,12 @@ public class PubMsg {
 
     private byte[] payload;
 
+    /** 载荷的 ByteBuf 形式, 由消息发布者持有引用并在发布完成后释放, 不参与序列化 */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient ByteBuf payloadBuf;
+
     /** 基于时间戳的 uuid str, 用于标记消息 */
     private String uuid;
 
@@ -86,6 +112,75 @@ public class PubMsg {
                 .setUuid(uuid);
     }
 
+    /**
+     * 以 ByteBuf 载荷创建消息, 调用方负责在发布完成后调用 {@link #release()}.
+     *
+     * @param payloadBuf 载荷, 由调用方 retain
+     */
+    public static PubMsg of(int qos, String topic, boolean retain, ByteBuf payloadBuf) {
+        var pubMsg = of(qos, topic, retain, (byte[]) null);
+        pubMsg.payloadBuf = payloadBuf;
+        return pubMsg;
+    }
+
+    /**
+     * 获取 byte[] 形式的载荷, 载荷仅以 ByteBuf 形式存在时复制一次并缓存.
+     * <p>
+     * 注意: kryo 序列化直接读取字段, 序列化前必须调用此方法.
+     */
+    public byte[] getPayload() {
+        var buf = payloadBuf;
+        if (payload == null && buf != null) {
+            payload = ByteBufUtil.getBytes(buf);
+            PAYLOAD_COPY.increment();
+            PAYLOAD_COPY_BYTES.add(payload.length);
+        }
+        return payload;
+    }
+
+    /**
+     * 获取用于写出的载荷, 由写出方(编码器)负责释放. 存在 ByteBuf 载荷时共享内存, 否则包装 byte[].
+     */
+    public ByteBuf payloadForWrite() {
+        var buf = payloadBuf;
+        if (buf != null) {
+            PAYLOAD_SHARED.increment();
+            return buf.retainedDuplicate();
+        }
+        PAYLOAD_WRAPPED.increment();
+        return Unpooled.wrappedBuffer(getPayload());
+    }
+
+    /**
+     * @return ByteBuf 形式的载荷, 仅在消息发布期间有效, 不存在时返回 null
+     */
+    public ByteBuf payloadBuf() {
+        return payloadBuf;
+    }
+
+    /**
+     * 释放 ByteBuf 载荷
+     */
+    public void release() {
+        var buf = payloadBuf;
+        if (buf != null) {
+            payloadBuf = null;
+            buf.release();
+        }
+    }
+
+    /**
+     * 不含 ByteBuf 载荷的拷贝, 用于生命周期超出本次发布的场景(如保存到会话)
+     *
+     * @return copy of this instance
+     */
+    public PubMsg detached() {
+        var copy = copied();
+        copy.setPayload(getPayload());
+        copy.payloadBuf = null;
+        return copy;
+    }
+
     /**
      * 消息唯一 id.
      */
@@ -108,6 +203,12 @@ public class PubMsg {
                 .setWillFlag(willFlag)
                 .setDup(dup)
                 .setPayload(payload)
-                .setUuid(uuid);
+                .setUuid(uuid)
+                .setPayloadBuf(payloadBuf);
+    }
+
+    private PubMsg setPayloadBuf(ByteBuf payloadBuf) {
+        this.payloadBuf = payloadBuf;
+        return this;
     }
 }
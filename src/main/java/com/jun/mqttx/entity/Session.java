@@ -18,12 +18,18 @@ package com.jun.mqttx.entity;
 
 import com.jun.mqttx.utils.MessageIdUtils;
 import io.netty.handler.codec.mqtt.MqttVersion;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 /**
  * MQTT 会话
@@ -35,7 +41,7 @@ import java.util.Set;
 public class Session {
 
     //@formatter:off
-    public static final String KEY = "session";
+    private static final AtomicIntegerFieldUpdater<Session> INFLIGHT_UPDATER = AtomicIntegerFieldUpdater.newUpdater(Session.class, "inflight");
 
     /**
      * mqtt 协议版本
@@ -64,6 +70,50 @@ public class Session {
 
     /** 用于生成 msgId */
     private int messageId = -1;
+
+    /**
+     * 已下发给客户端但尚未完成确认(PUBACK/PUBCOMP)的 qos1,2 消息数量, 用于共享订阅评估客户端负载.
+     * 不参与序列化, 也不生成 getter/setter
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient volatile int inflight;
+
+    /**
+     * 超出 inflight 窗口、等待下发的 qos1,2 消息, 按到达顺序排列. 不参与序列化, 也不生成 getter/setter
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient ArrayDeque<Pending> pending;
+
+    /**
+     * 出站队列溢出时退回的 qos1,2 消息, 下发时间早于 {@link #pending} 中的消息, 所以优先下发. 与 {@link #pending} 共用长度上限.
+     * 不参与序列化, 也不生成 getter/setter
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient ArrayDeque<Pending> spilled;
+
+    /**
+     * 出站队列溢出后暂停下发等待队列, 出站队列排空后恢复. 不参与序列化, 也不生成 getter/setter
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient boolean pendingPaused;
+
+    /**
+     * 非 cleanSession 会话从 redis 租用的报文标识符区间 (leaseNext, leaseEnd]. 不参与序列化, 也不生成 getter/setter
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient long leaseNext, leaseEnd;
+
+    /**
+     * 非 cleanSession 会话已分配、尚未确认的报文标识符, 分配时跳过. 不参与序列化, 也不生成 getter/setter
+     */
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private transient Set<Integer> allocatedIds;
     //@formatter:on
 
     private Session() {
@@ -94,7 +144,8 @@ public class Session {
         session.setCleanSession(cleanSession);
         session.setVersion(version);
         if (cleanSession) {
-            session.setPubMsgStore(new HashMap<>());
+            // 消息分发时可能在发布者线程写入
+            session.setPubMsgStore(new ConcurrentHashMap<>());
             session.setOutPubRelMsgStore(new HashSet<>());
             session.setInPubRelMsgStore(new HashSet<>());
         }
@@ -102,11 +153,11 @@ public class Session {
     }
 
     /**
-     * session 绑定 channel, 而 channel 绑定 EventLoop 线程，这个方法是线程安全的（如果没有额外的配置）。
+     * 消息分发时可能在发布者线程调用, 与订阅者 EventLoop 线程并发, 所以需要同步.
      *
      * @return {@link #messageId}
      */
-    public int increaseAndGetMessageId() {
+    public synchronized int increaseAndGetMessageId() {
         // SUBSCRIBE, UNSUBSCRIBE, and PUBLISH (in cases where QoS > 0) Control Packets MUST contain a
         // non-zero 16-bit Packet Identifier [MQTT-2.3.1-1].
         if ((++messageId & 0xffff) != 0) {
@@ -116,6 +167,65 @@ public class Session {
         return MessageIdUtils.trimMessageId(++messageId);
     }
 
+    /**
+     * 保存租用的报文标识符区间, 替换当前区间
+     *
+     * @param end  区间上界(包含)
+     * @param size 区间长度
+     */
+    public synchronized void lease(long end, int size) {
+        leaseNext = end - size;
+        leaseEnd = end;
+    }
+
+    /**
+     * 从租用的区间中分配报文标识符, 跳过 0 及已分配尚未确认的标识符
+     *
+     * @return 报文标识符, 区间耗尽时返回 0
+     */
+    public synchronized int nextLeasedMessageId() {
+        while (leaseNext < leaseEnd) {
+            int id = MessageIdUtils.trimMessageId(++leaseNext);
+            if (id != 0 && allocatedIds().add(id)) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 标记报文标识符已被占用, 用于补发的离线消息
+     *
+     * @param messageId 报文标识符
+     */
+    public synchronized void markMessageId(int messageId) {
+        allocatedIds().add(messageId);
+    }
+
+    /**
+     * 收到 PUBACK/PUBCOMP 后释放报文标识符
+     *
+     * @param messageId 报文标识符
+     * @return true 如果标识符已分配且尚未释放, 重复确认时为 false
+     */
+    public synchronized boolean releaseMessageId(int messageId) {
+        return allocatedIds != null && allocatedIds.remove(messageId);
+    }
+
+    /**
+     * @return 已分配尚未确认的报文标识符数量
+     */
+    public synchronized int allocatedMessageIds() {
+        return allocatedIds == null ? 0 : allocatedIds.size();
+    }
+
+    private Set<Integer> allocatedIds() {
+        if (allocatedIds == null) {
+            allocatedIds = new HashSet<>();
+        }
+        return allocatedIds;
+    }
+
     /**
      * 清理遗嘱消息
      */
@@ -139,11 +249,13 @@ public class Session {
      * 移除 {@link PubMsg}
      *
      * @param messageId 消息id
+     * @return true 如果消息存在
      */
-    public void removePubMsg(int messageId) {
+    public boolean removePubMsg(int messageId) {
         if (cleanSession) {
-            pubMsgStore.remove(messageId);
+            return pubMsgStore.remove(messageId) != null;
         }
+        return false;
     }
 
     /**
@@ -183,14 +295,199 @@ public class Session {
      * 移除 {@link PubRelMsg}
      *
      * @param messageId 消息id
+     * @return true 如果消息存在
      */
-    public void removePubRelOutMsg(int messageId) {
+    public boolean removePubRelOutMsg(int messageId) {
         if (cleanSession) {
-            outPubRelMsgStore.remove(messageId);
+            return outPubRelMsgStore.remove(messageId);
         }
+        return false;
+    }
+
+    /**
+     * 下发 qos1,2 消息后调用
+     */
+    public void increaseInflight() {
+        INFLIGHT_UPDATER.incrementAndGet(this);
+    }
+
+    /**
+     * 尝试占用 inflight 窗口, 成功时 inflight 计数加一
+     *
+     * @param maxInflight 窗口大小, 小于等于 0 表示不限制
+     * @return true 如果窗口未满
+     */
+    public boolean acquireInflight(int maxInflight) {
+        if (maxInflight <= 0) {
+            INFLIGHT_UPDATER.incrementAndGet(this);
+            return true;
+        }
+        int current;
+        do {
+            current = inflight;
+            if (current >= maxInflight) {
+                return false;
+            }
+        } while (!INFLIGHT_UPDATER.compareAndSet(this, current, current + 1));
+        return true;
+    }
+
+    /**
+     * 将消息加入等待队列
+     *
+     * @param msg        等待下发的消息
+     * @param maxPending 队列长度上限, 小于等于 0 表示不限制
+     * @return false 如果队列已满, 消息未入队
+     */
+    public synchronized boolean offerPending(Pending msg, int maxPending) {
+        if (isPendingFull(maxPending)) {
+            return false;
+        }
+        pending().add(msg);
+        return true;
+    }
+
+    /**
+     * 将消息加入等待队列, 队列已满时移除最早的消息
+     *
+     * @param msg        等待下发的消息
+     * @param maxPending 队列长度上限, 小于等于 0 表示不限制
+     * @return 被移除的消息, 未移除时为 null
+     */
+    public synchronized Pending offerPendingOrEvict(Pending msg, int maxPending) {
+        var evicted = isPendingFull(maxPending) ? pollOldest() : null;
+        pending().add(msg);
+        return evicted;
+    }
+
+    /**
+     * 出站队列溢出, 将未能写出的消息退回等待队列并暂停下发, 直至 {@link #resumePending()}. 退回的消息排在等待队列之前
+     *
+     * @param msg        退回的消息
+     * @param maxPending 队列长度上限, 小于等于 0 表示不限制
+     * @return false 如果队列已满, 消息未入队
+     */
+    public synchronized boolean offerSpilled(Pending msg, int maxPending) {
+        pendingPaused = true;
+        if (isPendingFull(maxPending)) {
+            return false;
+        }
+        spilled().add(msg);
+        return true;
+    }
+
+    /**
+     * 出站队列溢出, 将未能写出的消息退回等待队列并暂停下发, 队列已满时移除最早的消息
+     *
+     * @param msg        退回的消息
+     * @param maxPending 队列长度上限, 小于等于 0 表示不限制
+     * @return 被移除的消息, 未移除时为 null
+     * @see #offerSpilled(Pending, int)
+     */
+    public synchronized Pending offerSpilledOrEvict(Pending msg, int maxPending) {
+        pendingPaused = true;
+        var evicted = isPendingFull(maxPending) ? pollOldest() : null;
+        spilled().add(msg);
+        return evicted;
+    }
+
+    /**
+     * 出站队列排空, 恢复下发等待队列
+     */
+    public synchronized void resumePending() {
+        pendingPaused = false;
+    }
+
+    /**
+     * @return 等待队列中最早的消息, 队列为空或暂停下发时为 null
+     */
+    public synchronized Pending pollPending() {
+        return pendingPaused ? null : pollOldest();
+    }
+
+    /**
+     * @return 等待队列中已分配的报文标识符(非 cleanSession 消息)
+     */
+    public synchronized Set<Integer> pendingMessageIds() {
+        if (pendingSize() == 0) {
+            return Set.of();
+        }
+        var ids = new HashSet<Integer>();
+        for (var queue : List.of(spilled(), pending())) {
+            for (var p : queue) {
+                if (p.messageId() != 0) {
+                    ids.add(p.messageId());
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return true 如果存在等待下发的消息或已暂停下发, 此时新消息应进入等待队列
+     */
+    public synchronized boolean hasPending() {
+        return pendingPaused || pendingSize() > 0;
+    }
+
+    private boolean isPendingFull(int maxPending) {
+        return maxPending > 0 && pendingSize() >= maxPending;
+    }
+
+    private int pendingSize() {
+        return (spilled == null ? 0 : spilled.size()) + (pending == null ? 0 : pending.size());
+    }
+
+    private Pending pollOldest() {
+        var msg = spilled == null ? null : spilled.poll();
+        return msg != null ? msg : pending == null ? null : pending.poll();
+    }
+
+    private ArrayDeque<Pending> pending() {
+        if (pending == null) {
+            pending = new ArrayDeque<>();
+        }
+        return pending;
+    }
+
+    private ArrayDeque<Pending> spilled() {
+        if (spilled == null) {
+            spilled = new ArrayDeque<>();
+        }
+        return spilled;
+    }
+
+    /**
+     * 收到未完成消息的 PUBACK/PUBCOMP 后调用, 重复确认不调用. 计数最小为 0
+     */
+    public void decreaseInflight() {
+        int current;
+        do {
+            current = inflight;
+            if (current <= 0) {
+                return;
+            }
+        } while (!INFLIGHT_UPDATER.compareAndSet(this, current, current - 1));
+    }
+
+    /**
+     * @return 已下发但尚未完成确认的 qos1,2 消息数量
+     */
+    public int inflight() {
+        return inflight;
     }
 
     public boolean isDupMsg(int messageId) {
         return outPubRelMsgStore.contains(messageId);
     }
+
+    /**
+     * 等待下发的 qos1,2 消息
+     *
+     * @param pubMsg    消息, 载荷已复制为 byte[]
+     * @param qos       下发 qos
+     * @param messageId 报文标识符, 0 表示下发时由会话分配(cleanSession), 否则为已持久化消息的标识符
+     */
+    public record Pending(PubMsg pubMsg, int qos, int messageId) {
+    }
 }
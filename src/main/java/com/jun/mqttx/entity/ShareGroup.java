@@ -0,0 +1,109 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.entity;
+
+import com.jun.mqttx.constants.ShareStrategy;
+import org.springframework.lang.Nullable;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * 共享订阅组, 由 topicFilter 与 ShareName 唯一确定.
+ * <p>
+ * 成员按 clientId 排序后保存为不可变数组, 组成员变更时由订阅索引整体替换并沿用原轮询游标, 因此分发时选取成员无需排序也不产生对象分配.
+ *
+ * @param shareName 共享订阅 ShareName
+ * @param filter    topicFilter, 不含共享前缀
+ * @param members   组成员, 按 clientId 排序
+ * @param cursor    轮询游标
+ * @since 1.2.4
+ */
+public record ShareGroup(String shareName, String filter, ClientSub[] members, AtomicInteger cursor) {
+
+    public ShareGroup {
+        members = members.clone();
+        Arrays.sort(members);
+    }
+
+    /**
+     * 按分发策略选取一个组成员
+     *
+     * @param strategy        共享订阅策略
+     * @param hashKey         {@link ShareStrategy#hash} 策略使用的 key
+     * @param excludeClientId 需要排除的客户端(如消息发布者本身), 可为空
+     * @param loadFunction    {@link ShareStrategy#least_loaded} 策略使用的成员负载评估函数
+     * @return 选中的组成员, 组内无可用成员时返回 null
+     */
+    @Nullable
+    public ClientSub choose(ShareStrategy strategy, String hashKey, @Nullable String excludeClientId,
+                            ToLongFunction<ClientSub> loadFunction) {
+        final var size = members.length;
+        if (size == 0) {
+            return null;
+        }
+        if (strategy == ShareStrategy.least_loaded) {
+            return leastLoaded(excludeClientId, loadFunction);
+        }
+
+        final var idx = switch (strategy) {
+            case random -> ThreadLocalRandom.current().nextInt(size);
+            case round -> Math.floorMod(cursor.getAndIncrement(), size);
+            case hash -> Math.floorMod(hashKey.hashCode(), size);
+            case least_loaded -> throw new IllegalStateException("unreachable");
+        };
+        var chosen = members[idx];
+
+        // 选中被排除的客户端, 顺延至下一个成员
+        if (excludeClientId != null && excludeClientId.equals(chosen.getClientId())) {
+            if (size == 1) {
+                return null;
+            }
+            chosen = members[(idx + 1) % size];
+        }
+        return chosen;
+    }
+
+    /**
+     * 选取负载最小的成员. 遍历起点按轮询游标移动, 负载相同时成员轮流被选中
+     */
+    @Nullable
+    private ClientSub leastLoaded(@Nullable String excludeClientId, ToLongFunction<ClientSub> loadFunction) {
+        final var size = members.length;
+        final var start = Math.floorMod(cursor.getAndIncrement(), size);
+        ClientSub chosen = null;
+        var minLoad = Long.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            var member = members[(start + i) % size];
+            if (excludeClientId != null && excludeClientId.equals(member.getClientId())) {
+                continue;
+            }
+
+            var load = loadFunction.applyAsLong(member);
+            if (chosen == null || load < minLoad) {
+                chosen = member;
+                minLoad = load;
+                if (load == 0) {
+                    break;
+                }
+            }
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.entity;
+
+/**
+ * 发布主题的订阅路由, 由订阅索引一次性解析得到, 调用方不可修改其中的数组.
+ *
+ * @param subscribers 普通订阅者
+ * @param shareGroups 共享订阅组, 每组仅需选取一个成员分发
+ * @since 1.2.4
+ */
+public record TopicRoute(ClientSub[] subscribers, ShareGroup[] shareGroups) {
+
+    public static final TopicRoute EMPTY = new TopicRoute(new ClientSub[0], new ShareGroup[0]);
+
+    public boolean isEmpty() {
+        return subscribers.length == 0 && shareGroups.length == 0;
+    }
+}
@@ -20,6 +20,9 @@ import com.jun.mqttx.entity.PubMsg;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * publish msg service
  *
@@ -36,6 +39,27 @@ public interface IPublishMessageService {
      */
     Mono<Void> save(String clientId, PubMsg pubMsg);
 
+    /**
+     * 批量保存同一条消息, 用于一条消息分发给多个非 cleanSession 订阅者, 所有订阅者均已分配 messageId.
+     *
+     * @param pubMsg     publish 消息体, qos 为各客户端的下发 qos, 实现类不可修改
+     * @param messageIds clientId -> messageId
+     * @see #saveBatch(PubMsg, Map, List)
+     */
+    default Mono<Void> saveBatch(PubMsg pubMsg, Map<String, Integer> messageIds) {
+        return saveBatch(pubMsg, messageIds, List.of());
+    }
+
+    /**
+     * 批量保存同一条消息, 用于一条消息分发给多个非 cleanSession 订阅者. 离线订阅者的 messageId 由实现类分配, 与
+     * {@link ISessionService#nextMessageId(String)} 共用计数器; 实现类应在一次 IO 中完成分配与保存, 避免逐个客户端访问存储.
+     *
+     * @param pubMsg           publish 消息体, qos 为各客户端的下发 qos, 实现类不可修改
+     * @param messageIds       已分配 messageId 的订阅者, clientId -> messageId
+     * @param offlineClientIds 需分配 messageId 的离线订阅者, 同一客户端出现多次时分配多个 messageId
+     */
+    Mono<Void> saveBatch(PubMsg pubMsg, Map<String, Integer> messageIds, List<String> offlineClientIds);
+
     /**
      * 清理与客户相关连的 publish 消息
      *
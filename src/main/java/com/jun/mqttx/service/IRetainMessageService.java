@@ -17,6 +17,7 @@
 package com.jun.mqttx.service;
 
 import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.utils.TopicFilter;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -31,10 +32,10 @@ public interface IRetainMessageService {
     /**
      * 搜索匹配 topicFilter 的 retain 消息列表
      *
-     * @param newSubTopic 客户端新订阅主题
+     * @param topicFilter 客户端新订阅主题
      * @return 匹配的消息列表
      */
-    Flux<PubMsg> searchListByTopicFilter(String newSubTopic);
+    Flux<PubMsg> searchListByTopicFilter(TopicFilter topicFilter);
 
     /**
      * 存储当前 topic 的 retain 消息
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service;
+
+import org.springframework.lang.Nullable;
+
+/**
+ * 集群会话位置服务, 记录客户端最近一次连接的 broker, 用于集群内定向转发 publish 消息.
+ * <p>
+ * 位置信息仅保存在内存中, 由集群消息(客户端上线通知、订阅)驱动更新, 因此可能滞后或缺失, 调用方需在位置未知时回退到广播.
+ *
+ * @since 1.2.4
+ */
+public interface ISessionLocationService {
+
+    /**
+     * 获取客户端最近一次连接的 broker
+     *
+     * @param clientId 客户端 id
+     * @return brokerId, 未知时返回 null
+     */
+    @Nullable
+    String locate(String clientId);
+
+    /**
+     * 更新客户端所在的 broker
+     *
+     * @param clientId 客户端 id
+     * @param brokerId broker id
+     */
+    void relocate(String clientId, String brokerId);
+
+    /**
+     * 移除客户端位置
+     *
+     * @param clientId 客户端 id
+     */
+    void remove(String clientId);
+}
@@ -65,4 +65,14 @@ public interface ISessionService {
      * @return next message id
      */
     Mono<Integer> nextMessageId(String clientId);
+
+    /**
+     * 租用 client 的一段连续 messageId, 与 {@link #nextMessageId(String)} 共用计数器, 因此两者分配的 messageId 不会重叠
+     * (65536 个之内)
+     *
+     * @param clientId 客户端ID
+     * @param size     租用数量
+     * @return 区间上界(包含), 租用区间为 (上界 - size, 上界]
+     */
+    Mono<Long> leaseMessageIds(String clientId, int size);
 }
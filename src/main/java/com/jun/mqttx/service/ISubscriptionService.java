@@ -17,6 +17,7 @@
 package com.jun.mqttx.service;
 
 import com.jun.mqttx.entity.ClientSub;
+import com.jun.mqttx.entity.TopicRoute;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -41,6 +42,13 @@ public interface ISubscriptionService {
      */
     Mono<Void> subscribe(ClientSub clientSub);
 
+    /**
+     * 批量保存客户订阅的主题, 用于单个 SUBSCRIBE 报文包含多个主题的情形
+     *
+     * @param clientSubs 客户订阅列表
+     */
+    Mono<Void> subscribe(List<ClientSub> clientSubs);
+
     /**
      * 解除订阅
      *
@@ -50,12 +58,20 @@ public interface ISubscriptionService {
     Mono<Void> unsubscribe(String clientId, boolean cleanSession, List<String> topics);
 
     /**
-     * 获取订阅了 topic 的客户id
+     * 获取订阅了 topic 的客户端路由, 共享订阅按 (topicFilter, ShareName) 分组返回
+     *
+     * @param topic 主题
+     * @return 订阅了主题的普通订阅者及共享订阅组
+     */
+    Mono<TopicRoute> searchSubscribeRoute(String topic);
+
+    /**
+     * 同步获取订阅了 topic 的客户端路由, 仅查询内存中的订阅索引, 不涉及 IO
      *
      * @param topic 主题
-     * @return 订阅了主题的客户id列表
+     * @return 订阅了主题的普通订阅者及共享订阅组
      */
-    Flux<ClientSub> searchSubscribeClientList(String topic);
+    TopicRoute searchSubscribeRouteSync(String topic);
 
     /**
      * 移除客户订阅
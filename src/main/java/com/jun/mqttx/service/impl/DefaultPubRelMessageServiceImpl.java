@@ -17,7 +17,9 @@
 package com.jun.mqttx.service.impl;
 
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.StorageType;
 import com.jun.mqttx.service.IPubRelMessageService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
@@ -33,6 +35,7 @@ import java.util.Arrays;
  * @since 1.0.4
  */
 @Component
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.REDIS, matchIfMissing = true)
 public class DefaultPubRelMessageServiceImpl implements IPubRelMessageService {
 
     private static final String IN = "_IN";
@@ -19,22 +19,29 @@ package com.jun.mqttx.service.impl;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.entity.PubMsg;
 import com.jun.mqttx.service.IPublishMessageService;
+import com.jun.mqttx.utils.PayloadCache;
 import com.jun.mqttx.utils.Serializer;
 import com.jun.mqttx.utils.Uuids;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
 import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -43,27 +50,62 @@ import java.util.concurrent.atomic.AtomicLong;
  * publish message store by redis.
  *
  * @author Jun
+ * @see LogPublishMessageServiceImpl
  * @since 1.0.4
  */
 @Slf4j
 @Service
+@ConditionalOnExpression("!${mqttx.message-log.enable:false} && '${mqttx.storage.type:redis}' == 'redis'")
 public class DefaultPublishMessageServiceImpl implements IPublishMessageService, Runnable {
     //@formatter:off
 
     private static final DateTimeFormatter DF = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     private static final ZoneId EAST_8 = ZoneOffset.ofHours(8);
     private static final int REDIS_SCAN_COUNT = 10;
+    private static final byte[] EMPTY = new byte[0];
+    /**
+     * 批量保存同一条消息. KEYS[1]: 共享载荷关联客户端集合, KEYS[2]: 共享载荷, KEYS[3..n+2]: 客户端 publish 消息 hash,
+     * KEYS[n+3..]: 离线客户端 messageId 计数器; ARGV[1]: 共享载荷, 非共享载荷或载荷已保存时为空; ARGV[2]: n; ARGV 之后每三个一组
+     * 对应 KEYS[3..n+2]: hash field(为空时由计数器分配, 规则同 {@link com.jun.mqttx.service.ISessionService#nextMessageId(String)}),
+     * hash value, clientId(非共享载荷时为空)
+     */
+    private static final RedisScript<Long> SAVE_BATCH_SCRIPT = RedisScript.of("""
+            local n = tonumber(ARGV[2])
+            local c = n + 3
+            for i = 1, n do
+                local j = (i - 1) * 3 + 3
+                local field = ARGV[j]
+                if field == '' then
+                    local id = redis.call('INCR', KEYS[c])
+                    if id % 65536 == 0 then
+                        id = redis.call('INCR', KEYS[c])
+                    end
+                    field = tostring(id % 65536)
+                    c = c + 1
+                end
+                redis.call('HSET', KEYS[i + 2], field, ARGV[j + 1])
+                if ARGV[j + 2] ~= '' then
+                    redis.call('SADD', KEYS[1], ARGV[j + 2])
+                end
+            end
+            if ARGV[1] ~= '' then
+                redis.call('SET', KEYS[2], ARGV[1])
+            end
+            return n
+            """, Long.class);
     private final ReactiveRedisTemplate<String, byte[]> redisTemplate;
     private final ReactiveStringRedisTemplate stringRedisTemplate;
     private final Serializer serializer;
     private final String pubMsgSetPrefix;
+    private final String messageIdPrefix;
 
+    /** 共享载荷本地缓存 */
+    private final PayloadCache payloadCache;
     /**
-     * key: {@link PubMsg#uniqueId()}
-     * value: 报文内容
+     * clientId + messageId -> {@link PubMsg#uniqueId()}, 每个关联持有一个载荷引用. 数量超出上限时移除最早的关联并释放引用,
+     * 被移除关联的消息在 {@link #remove(String, int)} 时从 redis 读取 uniqueId.
      */
-    private final Map<String, byte[]> uniqueIdAndPayloadMap = new ConcurrentHashMap<>();
-    private final Map<String, String> clientIdMessageIdAndUniqueIdMap = new ConcurrentHashMap<>();
+    private final Map<String, String> clientIdMessageIdAndUniqueIdMap;
     /** 当 pub msg 阈值大于指定值时，报文采用二级寻址方式处理 */
     private final int thresholdInMessage;
     /** 共享载荷存储 key prefix */
@@ -85,12 +127,25 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
         this.brokerId = mqttxConfig.getBrokerId();
         var redisKey = mqttxConfig.getRedis();
         this.pubMsgSetPrefix = redisKey.getPubMsgSetPrefix();
+        this.messageIdPrefix = redisKey.getMessageIdPrefix();
 
         var sharableConfig = mqttxConfig.getSharablePayload();
         this.sharablePayloadKeyPrefix = sharableConfig.getPayloadKeyPrefix();
         this.thresholdInMessage = sharableConfig.getThresholdInMessage();
         this.uniqueIdClientIdsSetPrefix = sharableConfig.getUniqueIdClientIdsSetPrefix();
         this.payloadCleanWorkInterval = sharableConfig.getCleanWorkInterval();
+        this.payloadCache = new PayloadCache(sharableConfig.getCacheMaxBytes());
+        final var cacheMaxRefs = sharableConfig.getCacheMaxRefs();
+        this.clientIdMessageIdAndUniqueIdMap = Collections.synchronizedMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                if (size() > cacheMaxRefs) {
+                    payloadCache.release(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        });
 
         Assert.hasText(brokerId, "brokerId can't be null");
 
@@ -131,18 +186,73 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
         var uniqueId = pubMsg.uniqueId();
         var m1 = redisTemplate.opsForHash().put(key(clientId), String.valueOf(messageId), serializer.serialize(pubMsg));
         var m2 = stringRedisTemplate.opsForSet().add(uniqueIdClientIdsSetKey(uniqueId), clientId);
-        if (uniqueIdAndPayloadMap.containsKey(uniqueId)) {
-            clientIdMessageIdAndUniqueIdMap.put(clientIdMessageIdKey(clientId, messageId), uniqueId);
+        final var cached = payloadCache.contains(uniqueId);
+        payloadCache.retain(uniqueId, payload, 1);
+        clientIdMessageIdAndUniqueIdMap.put(clientIdMessageIdKey(clientId, messageId), uniqueId);
+        if (cached) {
             return Mono.when(m1, m2);
         } else {
-            uniqueIdAndPayloadMap.put(uniqueId, payload);
-            clientIdMessageIdAndUniqueIdMap.put(clientIdMessageIdKey(clientId, messageId), uniqueId);
-
+            // 载荷未缓存(首次保存或已被淘汰), 写入 redis
             var m3 = redisTemplate.opsForValue().set(sharablePayloadKey(uniqueId), payload);
             return Mono.when(m1, m2, m3);
         }
     }
 
+    /**
+     * 批量保存同一条消息, 全部客户端的 publish 消息、共享载荷及其关联客户端集合通过一次 redis 脚本调用保存, 离线客户端的 messageId
+     * 在脚本中分配.
+     * <p>
+     * 离线客户端的 publish 消息保存时 messageId 尚未分配, hash value 中 messageId 为 0, {@link #search(String)} 以 hash field
+     * 为准. 离线客户端不持有本地载荷引用, 消息在客户端重连后按需从 redis 读取载荷.
+     *
+     * @param pubMsg           publish 消息体
+     * @param messageIds       clientId -> messageId
+     * @param offlineClientIds 离线客户端
+     */
+    @Override
+    public Mono<Void> saveBatch(PubMsg pubMsg, Map<String, Integer> messageIds, List<String> offlineClientIds) {
+        final var size = messageIds.size() + offlineClientIds.size();
+        if (size == 0) {
+            return Mono.empty();
+        }
+
+        final var shared = isPayloadShouldShare(pubMsg);
+        final var uniqueId = shared ? pubMsg.uniqueId() : null;
+        final var payload = pubMsg.getPayload();
+        var keys = new ArrayList<String>(size + offlineClientIds.size() + 2);
+        var args = new ArrayList<byte[]>(size * 3 + 2);
+        keys.add(shared ? uniqueIdClientIdsSetKey(uniqueId) : "");
+        keys.add(shared ? sharablePayloadKey(uniqueId) : "");
+        args.add(shared && !payloadCache.contains(uniqueId) ? payload : EMPTY);
+        args.add(String.valueOf(size).getBytes(StandardCharsets.UTF_8));
+        if (shared && !messageIds.isEmpty()) {
+            payloadCache.retain(uniqueId, payload, messageIds.size());
+        }
+        messageIds.forEach((clientId, messageId) -> {
+            if (shared) {
+                clientIdMessageIdAndUniqueIdMap.put(clientIdMessageIdKey(clientId, messageId), uniqueId);
+            }
+            keys.add(key(clientId));
+            args.add(String.valueOf(messageId).getBytes(StandardCharsets.UTF_8));
+            args.add(serializer.serialize(stored(pubMsg, shared).setMessageId(messageId)));
+            args.add(shared ? clientId.getBytes(StandardCharsets.UTF_8) : EMPTY);
+        });
+        if (!offlineClientIds.isEmpty()) {
+            // 离线客户端的 hash value 相同, 只序列化一次
+            final var value = serializer.serialize(stored(pubMsg, shared).setMessageId(0));
+            for (var clientId : offlineClientIds) {
+                keys.add(key(clientId));
+                args.add(EMPTY);
+                args.add(value);
+                args.add(shared ? clientId.getBytes(StandardCharsets.UTF_8) : EMPTY);
+            }
+            for (var clientId : offlineClientIds) {
+                keys.add(messageIdPrefix + clientId);
+            }
+        }
+        return redisTemplate.execute(SAVE_BATCH_SCRIPT, keys, args).then();
+    }
+
     @Override
     public Mono<Void> remove(String clientId, int messageId) {
         // 客户端 publish message 存储移除
@@ -152,6 +262,7 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
         // 检查 clientId + messageId 是否存在本地关联的 uniqueId
         String uniqueId = clientIdMessageIdAndUniqueIdMap.remove(clientIdMessageIdKey(clientId, messageId));
         if (uniqueId != null) {
+            payloadCache.release(uniqueId);
             var m2 = stringRedisTemplate.opsForSet()
                     .remove(uniqueIdClientIdsSetKey(uniqueId), clientId);
             return Mono.when(m1, m2);
@@ -180,7 +291,11 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
                     if (pubMsg.isPayloadSharable()) {
                         return stringRedisTemplate.opsForSet()
                                 .remove(uniqueIdClientIdsSetKey(pubMsg.uniqueId()), clientId)
-                                .doOnSuccess(unused -> clientIdMessageIdAndUniqueIdMap.remove(clientIdMessageIdKey(clientId, pubMsg.getMessageId())))
+                                .doOnSuccess(unused -> {
+                                    if (clientIdMessageIdAndUniqueIdMap.remove(clientIdMessageIdKey(clientId, pubMsg.getMessageId())) != null) {
+                                        payloadCache.release(pubMsg.uniqueId());
+                                    }
+                                })
                                 .then();
                     }
                     return Mono.empty();
@@ -192,14 +307,18 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
     @Override
     public Flux<PubMsg> search(String clientId) {
         return redisTemplate.opsForHash()
-                .values(key(clientId))
+                .entries(key(clientId))
                 .flatMap(e -> {
-                    final var pubMsg = serializer.deserialize((byte[]) e, PubMsg.class);
+                    // 批量保存的离线消息 messageId 由脚本分配, 只保存在 hash field 中
+                    final var pubMsg = serializer.deserialize((byte[]) e.getValue(), PubMsg.class)
+                            .setMessageId(Integer.parseInt((String) e.getKey()));
                     final var uniqueId = pubMsg.uniqueId();
                     if (pubMsg.isPayloadSharable()) {
-                        byte[] bytes = uniqueIdAndPayloadMap.get(uniqueId);
+                        byte[] bytes = payloadCache.get(uniqueId);
                         if (bytes == null) {
-                            return redisTemplate.opsForValue().get(sharablePayloadKey(uniqueId)).map(pubMsg::setPayload);
+                            return redisTemplate.opsForValue().get(sharablePayloadKey(uniqueId))
+                                    .doOnNext(payload -> payloadCache.put(uniqueId, payload))
+                                    .map(pubMsg::setPayload);
                         }
                         pubMsg.setPayload(bytes);
                     }
@@ -208,6 +327,22 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
                 });
     }
 
+    /**
+     * 客户端 hash 中保存的消息: 共享载荷时不含载荷, 否则不含 uuid
+     *
+     * @param pubMsg 消息
+     * @param shared 是否共享载荷
+     */
+    private PubMsg stored(PubMsg pubMsg, boolean shared) {
+        var copied = pubMsg.copied();
+        if (shared) {
+            copied.setPayloadSharable(true).setPayload(null);
+        } else {
+            copied.setUuid(null);
+        }
+        return copied;
+    }
+
     private String key(String clientId) {
         return pubMsgSetPrefix + clientId;
     }
@@ -297,6 +432,7 @@ public class DefaultPublishMessageServiceImpl implements IPublishMessageService,
                                     .filter(l -> l <= 0)
                                     .flatMap(unused -> redisTemplate.delete(key)
                                             .doOnSuccess(l -> {
+                                                payloadCache.invalidate(uniqueId);
                                                 var ts = Uuids.unixTimestamp(uniqueId);
                                                 log.debug("创建于[{}]的共享载荷[{}]已删除", dateTimeFormat(ts), key);
                                             })
@@ -17,10 +17,12 @@
 package com.jun.mqttx.service.impl;
 
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.StorageType;
 import com.jun.mqttx.entity.PubMsg;
 import com.jun.mqttx.service.IRetainMessageService;
 import com.jun.mqttx.utils.Serializer;
-import com.jun.mqttx.utils.TopicUtils;
+import com.jun.mqttx.utils.TopicFilter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
@@ -37,6 +39,7 @@ import java.util.function.Function;
  * @since 1.0.4
  */
 @Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.REDIS, matchIfMissing = true)
 public class DefaultRetainMessageServiceImpl implements IRetainMessageService {
 
     //@formatter:off
@@ -55,10 +58,10 @@ public class DefaultRetainMessageServiceImpl implements IRetainMessageService {
     }
 
     @Override
-    public Flux<PubMsg> searchListByTopicFilter(String newSubTopic) {
+    public Flux<PubMsg> searchListByTopicFilter(TopicFilter topicFilter) {
         return redisTemplate.opsForHash()
                 .keys(retainMessageHashKey)
-                .filter(t -> TopicUtils.match((String) t, newSubTopic))
+                .filter(t -> topicFilter.matches((String) t))
                 .collectList()
                 .flatMap(t -> {
                     if (!ObjectUtils.isEmpty(t)) {
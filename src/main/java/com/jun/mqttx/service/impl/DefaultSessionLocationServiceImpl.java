@@ -0,0 +1,50 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.service.ISessionLocationService;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 集群会话位置服务, 内存实现
+ *
+ * @since 1.2.4
+ */
+@Service
+public class DefaultSessionLocationServiceImpl implements ISessionLocationService {
+
+    /** clientId -> brokerId */
+    private final Map<String, String> locations = new ConcurrentHashMap<>();
+
+    @Override
+    public String locate(String clientId) {
+        return locations.get(clientId);
+    }
+
+    @Override
+    public void relocate(String clientId, String brokerId) {
+        locations.put(clientId, brokerId);
+    }
+
+    @Override
+    public void remove(String clientId) {
+        locations.remove(clientId);
+    }
+}
@@ -17,10 +17,12 @@
 package com.jun.mqttx.service.impl;
 
 import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.constants.StorageType;
 import com.jun.mqttx.entity.Session;
 import com.jun.mqttx.service.ISessionService;
 import com.jun.mqttx.utils.MessageIdUtils;
 import com.jun.mqttx.utils.Serializer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.ReactiveRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
@@ -35,6 +37,7 @@ import java.util.Objects;
  * @since 1.0.4
  */
 @Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.REDIS, matchIfMissing = true)
 public class DefaultSessionServiceImpl implements ISessionService {
 
     private final String clusterSessionHashKey;
@@ -89,4 +92,9 @@ public class DefaultSessionServiceImpl implements ISessionService {
                 })
                 .map(MessageIdUtils::trimMessageId);
     }
+
+    @Override
+    public Mono<Long> leaseMessageIds(String clientId, int size) {
+        return redisTemplate.opsForValue().increment(messageIdPrefix + clientId, size);
+    }
 }
@@ -17,17 +17,28 @@
 package com.jun.mqttx.service.impl;
 
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.jun.mqttx.config.MqttxConfig;
 import com.jun.mqttx.constants.InternalMessageEnum;
 import com.jun.mqttx.consumer.Watcher;
 import com.jun.mqttx.entity.*;
 import com.jun.mqttx.service.IInternalMessagePublishService;
+import com.jun.mqttx.service.ISessionLocationService;
 import com.jun.mqttx.service.ISubscriptionService;
+import com.jun.mqttx.storage.LocalStore;
 import com.jun.mqttx.utils.JsonSerializer;
 import com.jun.mqttx.utils.Serializer;
+import com.jun.mqttx.utils.SubscriptionSnapshot;
+import com.jun.mqttx.utils.TopicFilter;
+import com.jun.mqttx.utils.TopicIndex;
+import com.jun.mqttx.utils.TopicTrie;
 import com.jun.mqttx.utils.TopicUtils;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.data.redis.core.ReactiveStringRedisTemplate;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.lang.Nullable;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
@@ -36,48 +47,115 @@ import org.springframework.util.StringUtils;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * <h1>主题订阅服务</h1>
  * <p>
  * 为了优化 cleanSession = 1 会话的性能，所有与之相关的状态均保存在内存当中.
+ * <p>
+ * 发布主题解析出的订阅者列表会缓存在路由缓存中, 仅当订阅、解除订阅(含集群 SUB_UNSUB 消息)影响到匹配的 topicFilter 时失效.
+ * <p>
+ * 使用本地存储({@link LocalStore})时, 持久订阅关系保存于本地存储而非 redis, 此时不使用订阅快照.
  *
  * @author Jun
  * @since 1.0.4
  */
 @Slf4j
 @Service
-public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Watcher {
+public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Watcher, DisposableBean {
     //@formatter:off
 
     /** 用于分割字符，刻意设计成这样，防止与 clientId 中的字符重合 */
     private static final String COMPLEX_SEPARATOR = "<!>";
     private static final String COMMA_SEPARATOR = ",";
     private static final int ASSUME_COUNT = 100_000;
+    /** redis SSCAN 每批数量 */
+    private static final int SCAN_COUNT = 1000;
     /** 按顺序 -> 订阅、解除订阅 */
     private static final int SUB = 1, UN_SUB = 2;
+    /** 本地存储订阅关系 key 前缀, key: sub:{clientId}\0{topicFilter}, value: qos,cleanSession */
+    private static final String LOCAL_SUB_PREFIX = "sub:";
+    /** 关闭时等待进行中的快照写入完成的秒数 */
+    private static final int SNAPSHOT_SHUTDOWN_TIMEOUT = 30;
+    /** 路由缓存命中次数 */
+    public static final LongAdder ROUTE_CACHE_HIT = new LongAdder();
+    /** 路由缓存未命中次数 */
+    public static final LongAdder ROUTE_CACHE_MISS = new LongAdder();
+    /** 订阅缓存加载耗时(ms), 即应用启动时订阅索引可用前的阻塞时长 */
+    public static final AtomicLong CACHE_LOAD_MILLIS = new AtomicLong();
+    /** 订阅快照与 redis 对账耗时(ms), 未使用快照时为 0 */
+    public static final AtomicLong CACHE_RECONCILE_MILLIS = new AtomicLong();
+    /**
+     * 批量保存订阅关系. KEYS[1]: 主题集合, KEYS[2]: 客户端订阅主题集合, KEYS[3..n]: 主题订阅者 hash;
+     * ARGV 每三个一组对应 KEYS[3..n]: hash field, hash value, topicFilter
+     */
+    private static final RedisScript<Long> SUBSCRIBE_SCRIPT = RedisScript.of("""
+            for i = 3, #KEYS do
+                local j = (i - 3) * 3
+                redis.call('HSET', KEYS[i], ARGV[j + 1], ARGV[j + 2])
+                redis.call('SADD', KEYS[1], ARGV[j + 3])
+                redis.call('SADD', KEYS[2], ARGV[j + 3])
+            end
+            return #KEYS - 2
+            """, Long.class);
+    /**
+     * 批量移除订阅关系, 主题订阅者 hash 为空时同步从主题集合中移除. KEYS 同 {@link #SUBSCRIBE_SCRIPT};
+     * ARGV 每三个一组对应 KEYS[3..n]: hash field, topicFilter(可能含共享前缀), filter
+     */
+    private static final RedisScript<Long> UNSUBSCRIBE_SCRIPT = RedisScript.of("""
+            for i = 3, #KEYS do
+                local j = (i - 3) * 3
+                redis.call('HDEL', KEYS[i], ARGV[j + 1])
+                redis.call('SREM', KEYS[2], ARGV[j + 2])
+                if redis.call('HLEN', KEYS[i]) == 0 then
+                    redis.call('SREM', KEYS[1], ARGV[j + 2], ARGV[j + 3])
+                end
+            end
+            return #KEYS - 2
+            """, Long.class);
     private final ReactiveStringRedisTemplate stringRedisTemplate;
     private final Serializer serializer;
     private final IInternalMessagePublishService internalMessagePublishService;
+    private final ISessionLocationService sessionLocationService;
+    /** 本地存储, 未启用时为 null */
+    private final LocalStore localStore;
     /** client订阅主题, 订阅主题前缀, 主题集合 */
     private final String clientTopicsPrefix, topicSetKey, topicPrefix;
     private final boolean enableCluster;
     private final String brokerId;
     /**
-     * cleanSession == true 的主 client -> topics 关系集合.
+     * client -> 订阅关系反向索引, 与 {@link #topicTrie} 同步维护, 包含 cleanSession 为 true 与 false 的全部客户端.
      * <p>
-     * 此集合仅用于保存与当前 mqttx 实例存在 tcp 链接的客户端
+     * 用于按客户端清理订阅, 避免遍历全部 topicFilter
      */
-    private final Map<String, HashSet<String>> inMemClientTopicsMap = new ConcurrentHashMap<>(ASSUME_COUNT);
-    /** 不含通配符的全部主题 */
-    private final Set<String> noneWildcardTopics = ConcurrentHashMap.newKeySet(ASSUME_COUNT);
-    /** 包含通配符的全部主题 */
-    private final Set<String> hasWildcardTopics = ConcurrentHashMap.newKeySet(ASSUME_COUNT);
-    /** topic -> clients 映射关系集合. */
-    private final Map<String, Set<ClientSub>> topicClientsMap = new ConcurrentHashMap<>(ASSUME_COUNT);
+    private final Map<String, Set<ClientSub>> clientSubsMap = new ConcurrentHashMap<>(ASSUME_COUNT);
+    /** topicFilter -> clients 订阅前缀树, 包含通配符与不含通配符的全部主题 */
+    private final TopicTrie topicTrie = new TopicTrie();
+    /** 发布主题 -> 订阅者路由缓存, 超出上限后按近似 LRU 淘汰 */
+    private final Cache<String, TopicRoute> routeCache;
+    /** 路由缓存中的发布主题索引, 含通配符的 filter 变更时据此定位受影响的主题, 无需遍历整个缓存 */
+    private final TopicIndex routeIndex = new TopicIndex();
+    private final boolean enableRouteCache;
+    /** 订阅关系版本号, 前缀树每次变更后递增, 防止并发查找将过期的路由写入缓存 */
+    private final AtomicLong routeVersion = new AtomicLong();
+    /** 订阅快照 */
+    private final boolean enableSnapshot;
+    private final Path snapshotPath;
+    private final int loadConcurrency;
+    private ScheduledExecutorService snapshotExecutor;
+    /** 快照对账期间实时变更的订阅, 非对账期间为 null */
+    private volatile Set<ClientSub> reconcileTouched;
     /** 系统主题 -> clients map */
     private final Map<String, ConcurrentHashMap.KeySetView<ClientSub, Boolean>> sysTopicClientsMap = new ConcurrentHashMap<>();
 
@@ -86,9 +164,13 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
     public DefaultSubscriptionServiceImpl(ReactiveStringRedisTemplate stringRedisTemplate,
                                           MqttxConfig mqttxConfig,
                                           Serializer serializer,
-                                          @Nullable IInternalMessagePublishService internalMessagePublishService) {
+                                          ISessionLocationService sessionLocationService,
+                                          @Nullable IInternalMessagePublishService internalMessagePublishService,
+                                          @Nullable LocalStore localStore) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.localStore = localStore;
         this.serializer = serializer;
+        this.sessionLocationService = sessionLocationService;
         this.internalMessagePublishService = internalMessagePublishService;
         var redisKey = mqttxConfig.getRedis();
         this.clientTopicsPrefix = redisKey.getClientTopicSetPrefix();
@@ -99,8 +181,33 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
         this.enableCluster = cluster.getEnable();
         this.brokerId = mqttxConfig.getBrokerId();
 
+        var routeCacheConfig = mqttxConfig.getRouteCache();
+        this.enableRouteCache = routeCacheConfig.getEnable();
+        this.routeCache = Caffeine.newBuilder()
+                .maximumSize(routeCacheConfig.getMaxSize())
+                // 淘汰通知在执行淘汰的线程上同步完成, 索引与缓存保持一致
+                .executor(Runnable::run)
+                .<String, TopicRoute>removalListener((topic, route, cause) -> {
+                    if (cause.wasEvicted()) {
+                        unindexRoute(topic);
+                    }
+                })
+                .build();
+
+        var subscriptionCache = mqttxConfig.getSubscriptionCache();
+        this.enableSnapshot = localStore == null && subscriptionCache.getSnapshotEnable();
+        this.snapshotPath = Path.of(subscriptionCache.getSnapshotPath());
+        this.loadConcurrency = subscriptionCache.getLoadConcurrency();
+
         // 内部缓存初始化
         initInnerCache(stringRedisTemplate);
+
+        // 定时写入订阅快照
+        if (enableSnapshot) {
+            var interval = subscriptionCache.getSnapshotInterval().toMillis();
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor();
+            snapshotExecutor.scheduleWithFixedDelay(this::writeSnapshot, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
@@ -110,7 +217,17 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
      */
     @Override
     public Mono<Void> subscribe(ClientSub clientSub) {
-        return subscribe(clientSub, false);
+        return subscribe(List.of(clientSub), false);
+    }
+
+    /**
+     * 批量订阅主题, 同一客户端的订阅关系通过一次 redis 脚本调用保存, 集群内仅广播一条消息
+     *
+     * @param clientSubs 客户订阅列表
+     */
+    @Override
+    public Mono<Void> subscribe(List<ClientSub> clientSubs) {
+        return subscribe(clientSubs, false);
     }
 
     /**
@@ -126,51 +243,45 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
 
 
     /**
-     * 返回订阅主题的客户列表。考虑到 pub 类别的消息最为频繁且每次 pub 都会触发 <code>searchSubscribeClientList(String topic)</code>
+     * 返回订阅主题的路由。考虑到 pub 类别的消息最为频繁且每次 pub 都会触发 <code>searchSubscribeRoute(String topic)</code>
      * 方法，所以增加内部缓存以优化该方法的执行逻辑。
+     * <p>
+     * 订阅关系保存在 {@link TopicTrie} 中, 查找开销取决于 topic 层级深度而非通配符主题数量; 查找结果再以发布主题为 key 缓存,
+     * 热点主题的重复发布无需再次查找.
      *
      * @param topic 主题, 此为 publish message 中包含的 topic.
-     * @return 客户端订阅信息
+     * @return 普通订阅者及共享订阅组
      */
     @Override
-    public Flux<ClientSub> searchSubscribeClientList(String topic) {
-        // result
-        var clientSubList = new ArrayList<ClientSub>();
-
-        // 这里需要注意的几点
-        // 1 通配符集合必须都遍历一遍，因为你不确定哪个通配符主题匹配当前主题
-        // 2 非通配符集合，先判断是否存在
-
-        // 1 含通配符主题集合
-        for (var t : hasWildcardTopics) {
-            if (TopicUtils.match(topic, t)) {
-                topicClientsMap.computeIfPresent(t, (k, v) -> {
-                    clientSubList.addAll(v);
-                    return v;
-                });
-            }
-        }
-
-        // 2 不含通配符主题集合
-        if (noneWildcardTopics.contains(topic)) {
-            topicClientsMap.computeIfPresent(topic, (k, v) -> {
-                clientSubList.addAll(v);
-                return v;
-            });
-        }
+    public Mono<TopicRoute> searchSubscribeRoute(String topic) {
+        return Mono.just(route(topic));
+    }
 
-        return Flux.fromIterable(clientSubList);
+    @Override
+    public TopicRoute searchSubscribeRouteSync(String topic) {
+        return route(topic);
     }
 
     @Override
     public Mono<Void> clearClientSubscriptions(String clientId, boolean cleanSession) {
-        Set<String> keys;
         if (cleanSession) {
-            keys = inMemClientTopicsMap.remove(clientId);
-            if (CollectionUtils.isEmpty(keys)) {
+            var topics = new ArrayList<String>();
+            var clientSubs = clientSubsMap.get(clientId);
+            if (clientSubs != null) {
+                for (var clientSub : clientSubs) {
+                    if (clientSub.isCleanSession()) {
+                        topics.add(topicFilterOf(clientSub));
+                    }
+                }
+            }
+            if (topics.isEmpty()) {
                 return Mono.empty();
             }
-            return unsubscribe(clientId, true, new ArrayList<>(keys));
+            return unsubscribe(clientId, true, topics);
+        } else if (localStore != null) {
+            var prefix = localSubPrefix(clientId);
+            var topics = localStore.scanKeys(prefix).stream().map(k -> k.substring(prefix.length())).toList();
+            return unsubscribe(clientId, false, topics);
         } else {
             return stringRedisTemplate.opsForSet().members(clientTopicsPrefix + clientId)
                     .collectList()
@@ -182,18 +293,26 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
 
     @Override
     public Mono<Void> clearUnAuthorizedClientSub(String clientId, List<String> authorizedSub) {
-        var collect = new ArrayList<String>();
-        for (var topic : noneWildcardTopics) {
-            if (!authorizedSub.contains(topic)) {
-                collect.add(topic);
-            }
+        var clientSubs = clientSubsMap.get(clientId);
+        if (CollectionUtils.isEmpty(clientSubs)) {
+            return Mono.empty();
         }
-        for (var topic : hasWildcardTopics) {
-            if (!authorizedSub.contains(topic)) {
-                collect.add(topic);
+
+        // 仅比对客户端自身的订阅
+        var authorized = authorizedSub == null ? Collections.<String>emptySet() : new HashSet<>(authorizedSub);
+        var cleanTopics = new ArrayList<String>();
+        var topics = new ArrayList<String>();
+        for (var clientSub : clientSubs) {
+            if (authorized.contains(clientSub.getTopic())) {
+                continue;
+            }
+            if (clientSub.isCleanSession()) {
+                cleanTopics.add(topicFilterOf(clientSub));
+            } else {
+                topics.add(topicFilterOf(clientSub));
             }
         }
-        return Mono.when(unsubscribe(clientId, false, collect), unsubscribe(clientId, true, collect));
+        return Mono.when(unsubscribe(clientId, false, topics), unsubscribe(clientId, true, cleanTopics));
     }
 
 
@@ -226,12 +345,22 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
 
         switch (type) {
             case SUB -> {
-                var clientSub = ClientSub.of(clientId, data.getQos(), filter, cleanSession, shareName);
-                subscribe(clientSub, true).subscribe();
+                // 批量订阅消息, 兼容旧版本的单主题消息
+                var clientSubs = CollectionUtils.isEmpty(data.getClientSubs()) ?
+                        List.of(ClientSub.of(clientId, data.getQos(), filter, cleanSession, shareName)) : data.getClientSubs();
+
+                // 订阅者连接在消息来源 broker 上
+                clientSubs.forEach(t -> sessionLocationService.relocate(t.getClientId(), im.getBrokerId()));
+                subscribe(clientSubs, true).subscribe();
             }
             case UN_SUB -> {
                 var topics = data.getTopics();
                 unsubscribe(clientId, cleanSession, topics, true).subscribe();
+
+                // 客户端已无订阅, 不再是 publish 消息的转发目标
+                if (!clientSubsMap.containsKey(clientId)) {
+                    sessionLocationService.remove(clientId);
+                }
             }
             default -> log.error("非法的 ClientSubOrUnsubMsg: [{}] ", data);
         }
@@ -242,14 +371,180 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
         return InternalMessageEnum.SUB_UNSUB.getChannel().equals(channel);
     }
 
+    /**
+     * 获取发布主题的订阅者路由, 优先从路由缓存中获取
+     *
+     * @param topic 发布主题
+     * @return 订阅路由, 调用方不可修改
+     */
+    private TopicRoute route(String topic) {
+        if (!enableRouteCache) {
+            return resolveRoute(topic);
+        }
+
+        var route = routeCache.getIfPresent(topic);
+        if (route != null) {
+            ROUTE_CACHE_HIT.increment();
+            return route;
+        }
+        ROUTE_CACHE_MISS.increment();
+
+        final var version = routeVersion.get();
+        route = resolveRoute(topic);
+        routeCache.put(topic, route);
+        routeIndex.add(topic);
+
+        // 查找期间订阅关系发生了变更, 结果可能已过期, 移除以等待下次查找
+        if (routeVersion.get() != version && routeCache.asMap().remove(topic, route)) {
+            unindexRoute(topic);
+        }
+        return route;
+    }
+
+    /**
+     * 将已移出路由缓存的主题移出索引. 其它线程可能已重新缓存该主题, 移除后再次确认, 保证缓存中的主题始终在索引中.
+     */
+    private void unindexRoute(String topic) {
+        routeIndex.remove(topic);
+        if (routeCache.asMap().containsKey(topic)) {
+            routeIndex.add(topic);
+        }
+    }
+
+    private TopicRoute resolveRoute(String topic) {
+        var clientSubList = new ArrayList<ClientSub>();
+        var shareGroupList = new ArrayList<ShareGroup>();
+        topicTrie.match(topic, clientSubList::add, shareGroupList::add);
+        if (clientSubList.isEmpty() && shareGroupList.isEmpty()) {
+            return TopicRoute.EMPTY;
+        }
+        return new TopicRoute(clientSubList.toArray(new ClientSub[0]), shareGroupList.toArray(new ShareGroup[0]));
+    }
+
+    /**
+     * 移除受 topicFilter 变更影响的路由缓存, 必须在前缀树变更之后调用.
+     * <p>
+     * 不含通配符的 filter 只影响同名发布主题; 含通配符的 filter 通过 {@link #routeIndex} 查找候选主题, 只访问可能命中的分支.
+     *
+     * @param filter 发生订阅变更的 topicFilter, 不含共享前缀
+     */
+    private void invalidateRoute(String filter) {
+        routeVersion.incrementAndGet();
+        if (!enableRouteCache) {
+            return;
+        }
+
+        if (!TopicUtils.isTopicContainWildcard(filter)) {
+            routeCache.invalidate(filter);
+            unindexRoute(filter);
+            return;
+        }
+        var topicFilter = TopicFilter.compile(filter);
+        var topics = new ArrayList<String>();
+        routeIndex.forEachCandidate(filter, topic -> {
+            if (topicFilter.matches(topic)) {
+                topics.add(topic);
+            }
+        });
+        for (var topic : topics) {
+            routeCache.invalidate(topic);
+            unindexRoute(topic);
+        }
+    }
+
     /**
      * 缓存初始化.
+     * <p>
+     * 开启快照时优先从本地快照恢复订阅索引, 随后异步加载 redis 中的订阅关系进行对账; 快照不可用时阻塞加载 redis.
      */
     private void initInnerCache(final ReactiveStringRedisTemplate redisTemplate) {
         log.info("开始加载缓存...");
+        final var start = System.currentTimeMillis();
+
+        if (localStore != null) {
+            var count = loadFromLocal();
+            CACHE_LOAD_MILLIS.set(System.currentTimeMillis() - start);
+            log.info("本地存储订阅加载完成, 订阅数: {}, 耗时: {}ms", count, CACHE_LOAD_MILLIS.get());
+            return;
+        }
+
+        if (enableSnapshot) {
+            var snapshotSubs = new HashMap<ClientSub, ClientSub>();
+            var createdAt = SubscriptionSnapshot.read(snapshotPath, clientSub -> snapshotSubs.put(clientSub, clientSub));
+            if (createdAt > 0) {
+                loadSubscriptions(snapshotSubs.keySet());
+                CACHE_LOAD_MILLIS.set(System.currentTimeMillis() - start);
+                log.info("订阅快照加载完成, 快照时间: {}, 订阅数: {}, 耗时: {}ms", createdAt, snapshotSubs.size(), CACHE_LOAD_MILLIS.get());
+
+                // 异步对账
+                reconcile(redisTemplate, snapshotSubs);
+                return;
+            }
+        }
 
         // inDisk 订阅关系加载
-        redisTemplate.opsForSet().scan(topicSetKey)
+        var loaded = new ArrayList<ClientSub>();
+        loadFromRedis(redisTemplate, loaded::add)
+                .doOnError(t -> log.error(t.getMessage(), t))
+                // 这里我们应该阻塞
+                .block();
+        loadSubscriptions(loaded);
+
+        CACHE_LOAD_MILLIS.set(System.currentTimeMillis() - start);
+        log.info("缓存加载完成, 耗时: {}ms", CACHE_LOAD_MILLIS.get());
+    }
+
+    /**
+     * 加载本地存储中的全部订阅关系
+     *
+     * @return 订阅数量
+     */
+    private int loadFromLocal() {
+        var entries = localStore.scan(LOCAL_SUB_PREFIX);
+        var loaded = new ArrayList<ClientSub>(entries.size());
+        entries.forEach((k, v) -> {
+            var idx = k.indexOf('\0');
+            var clientId = k.substring(LOCAL_SUB_PREFIX.length(), idx);
+            var topic = k.substring(idx + 1);
+            String shareName = null;
+            if (TopicUtils.isShare(topic)) {
+                var shareTopic = TopicUtils.parseFrom(topic);
+                topic = shareTopic.filter();
+                shareName = shareTopic.name();
+            }
+
+            // v: qos,cleanSession
+            var value = new String(v, StandardCharsets.UTF_8);
+            loaded.add(ClientSub.of(clientId, value.charAt(0) - '0', topic, value.charAt(2) == '1', shareName));
+        });
+        loadSubscriptions(loaded);
+        return entries.size();
+    }
+
+    /**
+     * 启动时批量加载订阅关系. 此时尚无客户端连接, 无需按客户端串行化; 前缀树按 topicFilter 分组批量写入.
+     *
+     * @param clientSubs 客户端订阅集合
+     */
+    private void loadSubscriptions(Collection<ClientSub> clientSubs) {
+        topicTrie.subscribeAll(clientSubs);
+        for (var clientSub : clientSubs) {
+            var subs = clientSubsMap.computeIfAbsent(clientSub.getClientId(), k -> ConcurrentHashMap.newKeySet());
+            // ClientSub#equals 不含 qos, 需先移除再添加才能完成替换
+            subs.remove(clientSub);
+            subs.add(clientSub);
+        }
+        routeCache.invalidateAll();
+    }
+
+    /**
+     * 加载 redis 中的全部订阅关系. topic 维度并发获取, 命令由 lettuce 在共享连接上流水线发送.
+     *
+     * @param redisTemplate {@link ReactiveStringRedisTemplate}
+     * @param consumer      订阅关系处理, 串行调用
+     */
+    private Mono<Void> loadFromRedis(final ReactiveStringRedisTemplate redisTemplate, Consumer<ClientSub> consumer) {
+        return redisTemplate.opsForSet().scan(topicSetKey, ScanOptions.scanOptions().count(SCAN_COUNT).build())
                 .map(topic -> {
                     if (TopicUtils.isShare(topic)) {
                         topic = TopicUtils.parseFrom(topic).filter();
@@ -257,97 +552,113 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
                     return topic;
                 })
                 .distinct()
-                .collectList()
-                .doOnSuccess(topics -> {
-                    for (var topic : topics) {
-                        if (TopicUtils.isTopicContainWildcard(topic)) {
-                            hasWildcardTopics.add(topic);
-                        } else {
-                            noneWildcardTopics.add(topic);
-                        }
-                    }
-                })
-                .flatMapIterable(Function.identity())
-                .flatMap(topic -> redisTemplate.opsForHash().entries(topicPrefix + topic).map(e -> new Tuple2<>(topic, e)))
+                .flatMap(topic -> redisTemplate.opsForHash().entries(topicPrefix + topic).map(e -> new Tuple2<>(topic, e)), loadConcurrency)
                 .doOnNext(e -> {
                     var topic = e.t0();
-                    // k
+                    // k: clientId 或 clientId<!>shareName
                     var k = (String) e.t1().getKey();
-                    var k_s = k.split(COMPLEX_SEPARATOR);
+                    var idx = k.indexOf(COMPLEX_SEPARATOR);
+                    var clientId = idx < 0 ? k : k.substring(0, idx);
+                    var shareName = idx < 0 ? null : k.substring(idx + COMPLEX_SEPARATOR.length());
 
-                    // v
+                    // v: qos 或 qos,cleanSession
                     var v = (String) e.t1().getValue();
-                    var v_s = v.split(COMMA_SEPARATOR);
-                    var qosStr = v_s[0];
-                    var cs = "0";
-                    if (v_s.length > 1) {
-                        cs = v_s[1];
-                    }
-                    var cleanSession = "1".equals(cs);
-
-                    if (k_s.length == 1) {
-                        topicClientsMap.compute(topic, (j, z) -> {
-                            if (z == null) {
-                                z = new HashSet<>();
-                            }
-
-                            z.add(ClientSub.of(k, Integer.parseInt(qosStr), topic, cleanSession));
-                            return z;
-                        });
-                    } else {
-                        var shareName = k_s[1];
-                        topicClientsMap.compute(topic, (j, z) -> {
-                            if (z == null) {
-                                z = new HashSet<>();
-                            }
-
-                            z.add(ClientSub.of(k_s[0], Integer.parseInt(qosStr), topic, cleanSession, shareName));
-                            return z;
-                        });
-                    }
+                    var qos = v.charAt(0) - '0';
+                    var cleanSession = v.length() > 2 && v.charAt(2) == '1';
+
+                    consumer.accept(ClientSub.of(clientId, qos, topic, cleanSession, shareName));
                 })
-                .then()
-                .doOnError(t -> log.error(t.getMessage(), t))
-                // 这里我们应该阻塞
-                .block();
+                .then();
+    }
+
+    /**
+     * 快照加载后与 redis 对账: redis 中存在而快照缺失(或 qos 变化)的订阅补充到索引, 快照中存在而 redis 已删除的订阅从索引移除.
+     * <p>
+     * 对账期间实时发生的订阅变更会被记录, 对账不会覆盖这些订阅.
+     *
+     * @param redisTemplate {@link ReactiveStringRedisTemplate}
+     * @param snapshotSubs  快照中的订阅关系
+     */
+    private void reconcile(final ReactiveStringRedisTemplate redisTemplate, final Map<ClientSub, ClientSub> snapshotSubs) {
+        final var start = System.currentTimeMillis();
+        final Set<ClientSub> touched = ConcurrentHashMap.newKeySet();
+        reconcileTouched = touched;
+
+        var added = new AtomicInteger();
+        loadFromRedis(redisTemplate, clientSub -> {
+            var old = snapshotSubs.remove(clientSub);
+            if (old == null || old.getQos() != clientSub.getQos() || old.isCleanSession() != clientSub.isCleanSession()) {
+                addSubscription(clientSub, touched);
+                added.incrementAndGet();
+            }
+        })
+                .doOnSuccess(unused -> {
+                    // 剩余的为 redis 中已不存在的订阅
+                    snapshotSubs.keySet().forEach(clientSub -> removeSubscription(clientSub, touched));
+                    CACHE_RECONCILE_MILLIS.set(System.currentTimeMillis() - start);
+                    log.info("订阅快照对账完成, 新增/更新: {}, 移除: {}, 耗时: {}ms", added.get(), snapshotSubs.size(), CACHE_RECONCILE_MILLIS.get());
+                })
+                .doOnError(t -> log.error("订阅快照对账失败: " + t.getMessage(), t))
+                .doFinally(unused -> reconcileTouched = null)
+                .subscribe();
+    }
+
+    /**
+     * 写入订阅快照. cleanSession = 1 的订阅在单机模式下仅属于当前连接, 重启后必然失效, 不写入快照.
+     * <p>
+     * 定时任务与 {@link #destroy()} 共用同一临时文件, 写入需串行.
+     */
+    private synchronized void writeSnapshot() {
+        if (reconcileTouched != null) {
+            // 对账未完成, 索引可能不完整
+            return;
+        }
 
-        log.info("缓存加载完成.");
+        var clientSubs = new ArrayList<ClientSub>();
+        for (var subs : clientSubsMap.values()) {
+            for (var clientSub : subs) {
+                if (enableCluster || !clientSub.isCleanSession()) {
+                    clientSubs.add(clientSub);
+                }
+            }
+        }
+        try {
+            SubscriptionSnapshot.write(snapshotPath, clientSubs);
+            log.debug("订阅快照写入完成, 订阅数: {}", clientSubs.size());
+        } catch (Exception e) {
+            log.error("订阅快照写入失败: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (snapshotExecutor != null) {
+            // 不中断进行中的写入: 中断会关闭文件通道, 留下不完整的临时文件
+            snapshotExecutor.shutdown();
+            try {
+                if (!snapshotExecutor.awaitTermination(SNAPSHOT_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                    log.warn("等待订阅快照任务结束超时");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writeSnapshot();
+        }
     }
 
     /**
      * 客户端订阅主题
      *
-     * @param clientSub        客户端订阅信息
+     * @param clientSubs       客户端订阅信息
      * @param isClusterMessage 调用消息是否源自集群
      */
-    private Mono<Void> subscribe(ClientSub clientSub, boolean isClusterMessage) {
-        final var topic = clientSub.getTopic();
-        final var clientId = clientSub.getClientId();
-        final var qos = clientSub.getQos();
-        final var cleanSession = clientSub.isCleanSession();
-        final var shareName = clientSub.getShareName();
-        var filter = topic;
-        if (StringUtils.hasText(shareName)) {
-            filter = String.format("%s/%s/%s", TopicUtils.SHARE_TOPIC, shareName, topic);
+    private Mono<Void> subscribe(List<ClientSub> clientSubs, boolean isClusterMessage) {
+        if (CollectionUtils.isEmpty(clientSubs)) {
+            return Mono.empty();
         }
-        final var topicFilter = filter;
 
         // 保存订阅关系到应用缓存
-        topicClientsMap.compute(topic, (k, v) -> {
-            if (v == null) {
-                v = new HashSet<>();
-                v.add(clientSub);
-                return v;
-            }
-            v.remove(clientSub);
-            v.add(clientSub);
-            return v;
-        });
-        if (TopicUtils.isTopicContainWildcard(topic)) {
-            hasWildcardTopics.add(topic);
-        } else {
-            noneWildcardTopics.add(topic);
-        }
+        clientSubs.forEach(this::addSubscription);
 
         // 集群消息，直接返回
         if (isClusterMessage) {
@@ -355,35 +666,47 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
         }
 
         // 针对客户端 cleanSession == true 的会话，如果 mqttx 是单机模式，那么订阅数据仅保存到缓存中.
-        if (cleanSession) {
-            inMemClientTopicsMap.compute(clientId, (k, v) -> {
-                if (v == null) {
-                    v = new HashSet<>();
-                }
-                v.add(topicFilter);
-                return v;
-            });
-            if (!enableCluster) {
-                return Mono.empty();
-            }
+        var needSave = enableCluster ? clientSubs : clientSubs.stream().filter(t -> !t.isCleanSession()).toList();
+        if (needSave.isEmpty()) {
+            return Mono.empty();
         }
 
-        // 订阅关系保存到 redis
-        return Mono.when(
-                stringRedisTemplate.opsForHash().put(topicPrefix + topic, topicClientSubKey(clientId, shareName), topicClientSubValue(qos, cleanSession)),
-                stringRedisTemplate.opsForSet().add(topicSetKey, topicFilter),
-                // 类似 inMemClientTopicsMap#key, 这里也必须存 topicFilter
-                stringRedisTemplate.opsForSet().add(clientTopicsPrefix + clientId, topicFilter)
-        ).then(Mono.fromRunnable(() -> {
-            if (enableCluster) {
-                var im = new InternalMessage<>(
-                        new ClientSubOrUnsubMsg(clientId, qos, topicFilter, cleanSession, null, SUB),
-                        System.currentTimeMillis(),
-                        brokerId
-                );
-                internalMessagePublishService.publish(im, InternalMessageEnum.SUB_UNSUB.getChannel());
-            }
-        }));
+        // 本地存储模式仅支持单机, 无需广播
+        if (localStore != null) {
+            return Mono.when(needSave.stream()
+                    .map(t -> Mono.fromFuture(() -> localStore.put(localSubPrefix(t.getClientId()) + topicFilterOf(t),
+                            topicClientSubValue(t.getQos(), t.isCleanSession()).getBytes(StandardCharsets.UTF_8))))
+                    .toList());
+        }
+
+        // 订阅关系保存到 redis, 按客户端分组, 每个客户端一次脚本调用
+        var groups = new HashMap<String, List<ClientSub>>();
+        needSave.forEach(t -> groups.computeIfAbsent(t.getClientId(), k -> new ArrayList<>()).add(t));
+        return Flux.fromIterable(groups.entrySet())
+                .flatMap(e -> {
+                    var subs = e.getValue();
+                    var keys = new ArrayList<String>(subs.size() + 2);
+                    var args = new ArrayList<String>(subs.size() * 3);
+                    keys.add(topicSetKey);
+                    keys.add(clientTopicsPrefix + e.getKey());
+                    for (var clientSub : subs) {
+                        keys.add(topicPrefix + clientSub.getTopic());
+                        args.add(topicClientSubKey(clientSub.getClientId(), clientSub.getShareName()));
+                        args.add(topicClientSubValue(clientSub.getQos(), clientSub.isCleanSession()));
+                        // 类似 clientSubsMap, 这里也必须存 topicFilter
+                        args.add(topicFilterOf(clientSub));
+                    }
+                    return stringRedisTemplate.execute(SUBSCRIBE_SCRIPT, keys, args);
+                })
+                .then(Mono.fromRunnable(() -> {
+                    if (enableCluster) {
+                        var clientSubOrUnsubMsg = new ClientSubOrUnsubMsg();
+                        clientSubOrUnsubMsg.setType(SUB);
+                        clientSubOrUnsubMsg.setClientSubs(needSave);
+                        var im = new InternalMessage<>(clientSubOrUnsubMsg, System.currentTimeMillis(), brokerId);
+                        internalMessagePublishService.publish(im, InternalMessageEnum.SUB_UNSUB.getChannel());
+                    }
+                }));
     }
 
     /**
@@ -398,11 +721,8 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
             return Mono.empty();
         }
 
-        // 待删除的主题(当主题没有客户端订阅后)
-        // 减少 redis 中无效的 key
-        var waitToDel = new ArrayList<String>();
-
         // 先移除缓存
+        var clientSubs = new ArrayList<ClientSub>(topics.size());
         topics.forEach(topic -> {
             // 共享主题判断
             String shareName = null;
@@ -411,24 +731,11 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
                 topic = shareTopic.filter();
                 shareName = shareTopic.name();
             }
-            final var fixTopic = topic;
-            final var fixShareName = shareName;
-
-            // 移除主题关联关系
-            topicClientsMap.computeIfPresent(fixTopic, (k, v) -> {
-                v.remove(ClientSub.of(clientId, 0, fixTopic, cleanSession, fixShareName));
-                if (v.isEmpty()) {
-                    waitToDel.add(fixTopic);
-
-                    // 移除关联的 inMemTopic
-                    if (TopicUtils.isTopicContainWildcard(fixTopic)) {
-                        hasWildcardTopics.remove(fixTopic);
-                    } else {
-                        noneWildcardTopics.remove(fixTopic);
-                    }
-                }
-                return v;
-            });
+
+            // 移除主题关联关系, 主题无订阅者后前缀树同步移除对应节点
+            var clientSub = ClientSub.of(clientId, 0, topic, cleanSession, shareName);
+            removeSubscription(clientSub);
+            clientSubs.add(clientSub);
         });
 
         // 集群消息，直接返回
@@ -437,47 +744,37 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
         }
 
         // 与 this#subscribe 对应
-        if (cleanSession) {
-            inMemClientTopicsMap.computeIfPresent(clientId, (k, v) -> {
-                topics.forEach(v::remove);
-                return v;
-            });
-            if (!enableCluster) {
-                return Mono.empty();
-            }
+        if (cleanSession && !enableCluster) {
+            return Mono.empty();
         }
 
+        if (localStore != null) {
+            var prefix = localSubPrefix(clientId);
+            return Mono.when(topics.stream().map(t -> Mono.fromFuture(() -> localStore.remove(prefix + t))).toList());
+        }
 
-        // 移除 redis 中的数据.
-        var monos = topics.stream()
-                .map(topic -> {
-                    if (TopicUtils.isShare(topic)) {
-                        ShareTopic shareTopic = TopicUtils.parseFrom(topic);
-                        var shareName = shareTopic.name();
-                        topic = shareTopic.filter();
-                        return stringRedisTemplate.opsForHash().remove(topicPrefix + topic, topicClientSubKey(clientId, shareName));
-                    }
-                    return stringRedisTemplate.opsForHash().remove(topicPrefix + topic, clientId);
-                })
-                .toList();
-        return Mono.when(monos)
-                .then(stringRedisTemplate.opsForSet().remove(clientTopicsPrefix + clientId, topics.toArray()))
-                .flatMap(t -> {
-                    if (waitToDel.isEmpty()) {
-                        return Mono.empty();
-                    }
-
-                    return stringRedisTemplate.opsForSet().remove(topicSetKey, waitToDel.toArray()).then();
-                })
+        // 移除 redis 中的数据, 主题无订阅者后由脚本一并从主题集合中移除, 减少 redis 中无效的 key
+        var keys = new ArrayList<String>(clientSubs.size() + 2);
+        var args = new ArrayList<String>(clientSubs.size() * 3);
+        keys.add(topicSetKey);
+        keys.add(clientTopicsPrefix + clientId);
+        for (int i = 0; i < clientSubs.size(); i++) {
+            var clientSub = clientSubs.get(i);
+            keys.add(topicPrefix + clientSub.getTopic());
+            args.add(topicClientSubKey(clientId, clientSub.getShareName()));
+            args.add(topics.get(i));
+            args.add(clientSub.getTopic());
+        }
+        return stringRedisTemplate.execute(UNSUBSCRIBE_SCRIPT, keys, args)
+                .then()
                 .doOnSuccess(unused -> {
                     // 集群广播
                     if (enableCluster) {
-                        var clientSubOrUnsubMsg = new ClientSubOrUnsubMsg(clientId, 0, null, cleanSession, topics, UN_SUB);
+                        var clientSubOrUnsubMsg = new ClientSubOrUnsubMsg(clientId, 0, null, cleanSession, topics, UN_SUB, null);
                         var im = new InternalMessage<>(clientSubOrUnsubMsg, System.currentTimeMillis(), brokerId);
                         internalMessagePublishService.publish(im, InternalMessageEnum.SUB_UNSUB.getChannel());
                     }
                 });
-
     }
 
     @Override
@@ -518,6 +815,105 @@ public class DefaultSubscriptionServiceImpl implements ISubscriptionService, Wat
         return Mono.empty();
     }
 
+    /**
+     * 保存订阅关系到前缀树及客户端反向索引, 并使受影响的路由缓存失效
+     *
+     * @param clientSub 客户端订阅
+     */
+    private void addSubscription(ClientSub clientSub) {
+        markTouched(clientSub);
+        addSubscription(clientSub, null);
+    }
+
+    /**
+     * 保存订阅关系. 同一客户端的订阅变更由 {@link #clientSubsMap} 的 compute 串行化, 保证对账与实时变更互不覆盖.
+     *
+     * @param clientSub 客户端订阅
+     * @param skipped   对账时传入, 集合中的订阅已被实时变更, 跳过
+     */
+    private void addSubscription(ClientSub clientSub, @Nullable Set<ClientSub> skipped) {
+        clientSubsMap.compute(clientSub.getClientId(), (k, v) -> {
+            if (skipped != null && skipped.contains(clientSub)) {
+                return v;
+            }
+            if (v == null) {
+                v = ConcurrentHashMap.newKeySet();
+            }
+            topicTrie.subscribe(clientSub);
+            // ClientSub#equals 不含 qos, 需先移除再添加才能完成替换
+            v.remove(clientSub);
+            v.add(clientSub);
+            return v;
+        });
+        invalidateRoute(clientSub.getTopic());
+    }
+
+    /**
+     * 从前缀树及客户端反向索引中移除订阅关系, 并使受影响的路由缓存失效
+     *
+     * @param clientSub 客户端订阅
+     * @return true 如果移除后该 filter 已无任何订阅者
+     */
+    private boolean removeSubscription(ClientSub clientSub) {
+        markTouched(clientSub);
+        return removeSubscription(clientSub, null);
+    }
+
+    /**
+     * 移除订阅关系
+     *
+     * @param clientSub 客户端订阅
+     * @param skipped   对账时传入, 集合中的订阅已被实时变更, 跳过
+     * @return true 如果移除后该 filter 已无任何订阅者
+     */
+    private boolean removeSubscription(ClientSub clientSub, @Nullable Set<ClientSub> skipped) {
+        var isFilterEmpty = new boolean[1];
+        clientSubsMap.compute(clientSub.getClientId(), (k, v) -> {
+            if (skipped != null && skipped.contains(clientSub)) {
+                return v;
+            }
+            isFilterEmpty[0] = topicTrie.unsubscribe(clientSub);
+            if (v == null) {
+                return null;
+            }
+            v.remove(clientSub);
+            return v.isEmpty() ? null : v;
+        });
+        invalidateRoute(clientSub.getTopic());
+        return isFilterEmpty[0];
+    }
+
+    /**
+     * 对账期间记录实时发生变更的订阅
+     */
+    private void markTouched(ClientSub clientSub) {
+        var touched = reconcileTouched;
+        if (touched != null) {
+            touched.add(clientSub);
+        }
+    }
+
+    /**
+     * 客户端订阅的完整 topicFilter, 共享订阅包含 <code>$share/{ShareName}/</code> 前缀
+     *
+     * @param clientSub 客户端订阅
+     */
+    private String topicFilterOf(ClientSub clientSub) {
+        if (clientSub.isShareSub()) {
+            return String.format("%s/%s/%s", TopicUtils.SHARE_TOPIC, clientSub.getShareName(), clientSub.getTopic());
+        }
+        return clientSub.getTopic();
+    }
+
+    /**
+     * 客户端订阅关系在本地存储中的 key 前缀
+     *
+     * @param clientId 客户端 id
+     */
+    private String localSubPrefix(String clientId) {
+        return LOCAL_SUB_PREFIX + clientId + '\0';
+    }
+
     /**
      * 主题关联的用户订阅信息 redis hashmap key
      *
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.service.IPubRelMessageService;
+import com.jun.mqttx.storage.LocalStore;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * 基于 {@link LocalStore} 的实现, key 格式: {@code pubRel:{clientId}\0{in|out}\0{messageId}}
+ *
+ * @since 1.2.4
+ */
+@Component
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.LOCAL)
+public class LocalPubRelMessageServiceImpl implements IPubRelMessageService {
+
+    private static final String PREFIX = "pubRel:";
+    private static final String IN = "in", OUT = "out";
+    private static final byte[] EMPTY = new byte[0];
+    private final LocalStore store;
+
+    public LocalPubRelMessageServiceImpl(LocalStore store) {
+        this.store = store;
+    }
+
+    @Override
+    public Mono<Void> saveOut(String clientId, int messageId) {
+        return Mono.fromFuture(() -> store.put(prefix(clientId, OUT) + messageId, EMPTY));
+    }
+
+    @Override
+    public Mono<Void> saveIn(String clientId, int messageId) {
+        return Mono.fromFuture(() -> store.put(prefix(clientId, IN) + messageId, EMPTY));
+    }
+
+    @Override
+    public Mono<Boolean> isInMsgDup(String clientId, int messageId) {
+        return Mono.fromCallable(() -> store.contains(prefix(clientId, IN) + messageId));
+    }
+
+    @Override
+    public Mono<Void> removeIn(String clientId, int messageId) {
+        return Mono.fromFuture(() -> store.remove(prefix(clientId, IN) + messageId));
+    }
+
+    @Override
+    public Mono<Void> removeOut(String clientId, int messageId) {
+        return Mono.fromFuture(() -> store.remove(prefix(clientId, OUT) + messageId));
+    }
+
+    @Override
+    public Flux<Integer> searchOut(String clientId) {
+        var prefix = prefix(clientId, OUT);
+        return Flux.defer(() -> Flux.fromIterable(store.scanKeys(prefix)))
+                .map(key -> Integer.parseInt(key.substring(prefix.length())));
+    }
+
+    @Override
+    public Mono<Void> clear(String clientId) {
+        return Mono.fromFuture(() -> store.removePrefix(PREFIX + clientId + '\0')).then();
+    }
+
+    private String prefix(String clientId, String direction) {
+        return PREFIX + clientId + '\0' + direction + '\0';
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.service.IPublishMessageService;
+import com.jun.mqttx.service.ISessionService;
+import com.jun.mqttx.storage.LocalStore;
+import com.jun.mqttx.utils.Serializer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * publish message store, 基于 {@link LocalStore} 的实现.
+ * <p>
+ * key 格式: {@code pubMsg:{clientId}\0{messageId}}, MQTT 规定 clientId 不能包含 U+0000, 可作为分隔符.
+ *
+ * @since 1.2.4
+ */
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.LOCAL)
+public class LocalPublishMessageServiceImpl implements IPublishMessageService {
+
+    private static final String PREFIX = "pubMsg:";
+    private final LocalStore store;
+    private final Serializer serializer;
+    private final ISessionService sessionService;
+
+    public LocalPublishMessageServiceImpl(LocalStore store, Serializer serializer, ISessionService sessionService) {
+        this.store = store;
+        this.serializer = serializer;
+        this.sessionService = sessionService;
+    }
+
+    @Override
+    public Mono<Void> save(String clientId, PubMsg pubMsg) {
+        return Mono.fromFuture(() -> store.put(prefix(clientId) + pubMsg.getMessageId(), serializer.serialize(pubMsg)));
+    }
+
+    /**
+     * 批量保存. 本地存储没有网络 IO, 离线客户端的 messageId 逐个通过 {@link ISessionService#nextMessageId(String)} 分配
+     *
+     * @param pubMsg           publish 消息体
+     * @param messageIds       clientId -> messageId
+     * @param offlineClientIds 离线客户端
+     */
+    @Override
+    public Mono<Void> saveBatch(PubMsg pubMsg, Map<String, Integer> messageIds, List<String> offlineClientIds) {
+        var m1 = Flux.fromIterable(messageIds.entrySet())
+                .flatMap(e -> save(e.getKey(), pubMsg.copied().setMessageId(e.getValue())));
+        var m2 = Flux.fromIterable(offlineClientIds)
+                .flatMap(clientId -> sessionService.nextMessageId(clientId)
+                        .flatMap(messageId -> save(clientId, pubMsg.copied().setMessageId(messageId))));
+        return Mono.when(m1, m2);
+    }
+
+    @Override
+    public Mono<Void> clear(String clientId) {
+        return Mono.fromFuture(() -> store.removePrefix(prefix(clientId))).then();
+    }
+
+    @Override
+    public Mono<Void> remove(String clientId, int messageId) {
+        return Mono.fromFuture(() -> store.remove(prefix(clientId) + messageId));
+    }
+
+    @Override
+    public Flux<PubMsg> search(String clientId) {
+        return Flux.defer(() -> Flux.fromIterable(store.scan(prefix(clientId)).values()))
+                .map(e -> serializer.deserialize(e, PubMsg.class));
+    }
+
+    private String prefix(String clientId) {
+        return PREFIX + clientId + '\0';
+    }
+}
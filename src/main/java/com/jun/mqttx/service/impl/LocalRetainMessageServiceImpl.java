@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.service.IRetainMessageService;
+import com.jun.mqttx.storage.LocalStore;
+import com.jun.mqttx.utils.Serializer;
+import com.jun.mqttx.utils.TopicFilter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * 存储通过 {@link LocalStore} 实现
+ *
+ * @since 1.2.4
+ */
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.LOCAL)
+public class LocalRetainMessageServiceImpl implements IRetainMessageService {
+
+    private static final String PREFIX = "retain:";
+    private final LocalStore store;
+    private final Serializer serializer;
+
+    public LocalRetainMessageServiceImpl(LocalStore store, Serializer serializer) {
+        this.store = store;
+        this.serializer = serializer;
+    }
+
+    @Override
+    public Flux<PubMsg> searchListByTopicFilter(TopicFilter topicFilter) {
+        // 先按 key 匹配主题，只读取命中的 value
+        return Flux.defer(() -> Flux.fromIterable(store.scanKeys(PREFIX)))
+                .filter(key -> topicFilter.matches(key.substring(PREFIX.length())))
+                .mapNotNull(store::get)
+                .map(e -> serializer.deserialize(e, PubMsg.class));
+    }
+
+    @Override
+    public Mono<Void> save(String topic, PubMsg pubMsg) {
+        return Mono.fromFuture(() -> store.put(PREFIX + topic, serializer.serialize(pubMsg)));
+    }
+
+    @Override
+    public Mono<Void> remove(String topic) {
+        return Mono.fromFuture(() -> store.remove(PREFIX + topic));
+    }
+
+    @Override
+    public Mono<PubMsg> get(String topic) {
+        return Mono.fromCallable(() -> store.get(PREFIX + topic))
+                .map(e -> serializer.deserialize(e, PubMsg.class));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.constants.StorageType;
+import com.jun.mqttx.entity.Session;
+import com.jun.mqttx.service.ISessionService;
+import com.jun.mqttx.storage.LocalStore;
+import com.jun.mqttx.utils.MessageIdUtils;
+import com.jun.mqttx.utils.Serializer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+/**
+ * 会话服务, 基于 {@link LocalStore} 的实现
+ *
+ * @since 1.2.4
+ */
+@Service
+@ConditionalOnProperty(name = "mqttx.storage.type", havingValue = StorageType.LOCAL)
+public class LocalSessionServiceImpl implements ISessionService {
+
+    private static final String SESSION_PREFIX = "session:";
+    private static final String MESSAGE_ID_PREFIX = "messageId:";
+    private final LocalStore store;
+    private final Serializer serializer;
+
+    public LocalSessionServiceImpl(LocalStore store, Serializer serializer) {
+        this.store = store;
+        this.serializer = serializer;
+    }
+
+    @Override
+    public Mono<Void> save(Session session) {
+        return Mono.fromFuture(() -> store.put(SESSION_PREFIX + session.getClientId(), serializer.serialize(session)));
+    }
+
+    @Override
+    public Mono<Session> find(String clientId) {
+        return Mono.fromCallable(() -> store.get(SESSION_PREFIX + clientId))
+                .map(e -> serializer.deserialize(e, Session.class));
+    }
+
+    @Override
+    public Mono<Boolean> clear(String clientId) {
+        return Mono.defer(() -> {
+            var exist = store.contains(SESSION_PREFIX + clientId);
+            return Mono.when(
+                    Mono.fromFuture(() -> store.remove(MESSAGE_ID_PREFIX + clientId)),
+                    Mono.fromFuture(() -> store.remove(SESSION_PREFIX + clientId))
+            ).thenReturn(exist);
+        });
+    }
+
+    @Override
+    public Mono<Boolean> hasKey(String clientId) {
+        return Mono.fromCallable(() -> store.contains(SESSION_PREFIX + clientId));
+    }
+
+    @Override
+    public Mono<Integer> nextMessageId(String clientId) {
+        return Mono.fromFuture(() -> store.increment(MESSAGE_ID_PREFIX + clientId, 1))
+                .flatMap(e -> {
+                    if ((e & 0xffff) == 0) {
+                        return Mono.fromFuture(() -> store.increment(MESSAGE_ID_PREFIX + clientId, 1));
+                    }
+                    return Mono.just(e);
+                })
+                .map(MessageIdUtils::trimMessageId);
+    }
+
+    @Override
+    public Mono<Long> leaseMessageIds(String clientId, int size) {
+        return Mono.fromFuture(() -> store.increment(MESSAGE_ID_PREFIX + clientId, size));
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.service.impl;
+
+import com.jun.mqttx.config.MqttxConfig;
+import com.jun.mqttx.entity.PubMsg;
+import com.jun.mqttx.service.IPublishMessageService;
+import com.jun.mqttx.utils.Serializer;
+import com.jun.mqttx.utils.Uuids;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * publish message store by redis, 基于分段消息日志.
+ * <p>
+ * {@link DefaultPublishMessageServiceImpl} 为每个离线客户端保存一份完整的 {@link PubMsg}, 同一条消息分发给 N 个离线客户端时存储
+ * N 份. 此实现将消息追加到当前 broker 的消息日志中, 每条消息只保存一份, 客户端 hash 中只保存消息在日志中的引用:
+ * <ul>
+ *     <li>日志: 按 {@code segmentDuration} 分段, 每段为一个 redis hash, field 为 {@link PubMsg#uniqueId()}, 另有 field
+ *     {@code #refs} 记录分段被客户端引用的次数</li>
+ *     <li>客户端: hash {@code pubMsgSetPrefix + clientId}, field 为 messageId, value 为引用(分段, qos, uniqueId), 即客户端未确认的消息列表</li>
+ * </ul>
+ * 回收: 保存引用时分段引用计数增加, {@link #remove(String, int)}、{@link #clear(String)} 删除引用时减少; 计数归零且分段已不是当前
+ * 分段时删除整个分段, 当前分段结束时计数已归零的由本 broker 在切换分段时删除. 引用计数与日志记录的存在检查在同一个脚本中执行,
+ * 分段被删除后追加缓存中的位置失效, 保存时重新追加. 配置了 {@code retention} 时分段另设置过期时间 {@code segmentDuration + retention},
+ * 作为客户端长期离线时的上限, 过期时其中客户端未确认的消息一并丢弃.
+ * {@link #search(String)} 按引用从日志中回放消息; 引用的分段已过期时丢弃该引用. 兼容切换前由
+ * {@link DefaultPublishMessageServiceImpl} 保存的非共享载荷消息.
+ *
+ * @since 1.2.4
+ */
+@Slf4j
+@Service
+@ConditionalOnExpression("${mqttx.message-log.enable:false} && '${mqttx.storage.type:redis}' == 'redis'")
+public class LogPublishMessageServiceImpl implements IPublishMessageService {
+    //@formatter:off
+
+    /** 引用标记, 序列化后的 {@link PubMsg} 不会以 0 开头 */
+    private static final byte[] REF_MARKER = {0, 'L'};
+    private static final String REF_DELIMITER = "|";
+    private static final byte[] EMPTY = new byte[0];
+    /** 最近追加到日志的消息数量上限 */
+    private static final int APPENDED_CACHE_SIZE = 1024;
+    /**
+     * 释放引用, 分段引用计数减一, 归零且分段已不是当前分段时删除分段. ARGV[1]: 日志 key 前缀, ARGV[2]: 当前分段
+     */
+    private static final String RELEASE_FUNCTION = """
+            local function release(ref)
+                if not ref or string.sub(ref, 1, 2) ~= '\\0L' then
+                    return
+                end
+                local location = string.match(ref, '^[^|]+', 3)
+                local log = ARGV[1] .. location
+                if redis.call('EXISTS', log) == 0 then
+                    return
+                end
+                local refs = redis.call('HINCRBY', log, '#refs', -1)
+                if refs <= 0 and tonumber(string.match(location, '%d+$')) < tonumber(ARGV[2]) then
+                    redis.call('DEL', log)
+                end
+            end
+            """;
+    /**
+     * 批量保存引用. KEYS[1..n]: 客户端 hash, KEYS[n+1..]: 离线客户端 messageId 计数器, 最后一个: 日志分段; ARGV[1..2] 同
+     * {@link #RELEASE_FUNCTION}, ARGV[3]: 引用, ARGV[4]: uniqueId, ARGV[5..n+4] 对应 KEYS[1..n]: hash field, 为空时由计数器分配
+     * (规则同 {@link com.jun.mqttx.service.ISessionService#nextMessageId(String)}). 被覆盖的引用一并释放.
+     * 返回 -1 表示日志记录已不存在(分段已删除)
+     */
+    private static final RedisScript<Long> SAVE_REFS_SCRIPT = RedisScript.of(RELEASE_FUNCTION + """
+            local log = KEYS[#KEYS]
+            if redis.call('HEXISTS', log, ARGV[4]) == 0 then
+                return -1
+            end
+            local n = #ARGV - 4
+            local c = n + 1
+            redis.call('HINCRBY', log, '#refs', n)
+            for i = 1, n do
+                local field = ARGV[i + 4]
+                if field == '' then
+                    local id = redis.call('INCR', KEYS[c])
+                    if id % 65536 == 0 then
+                        id = redis.call('INCR', KEYS[c])
+                    end
+                    field = tostring(id % 65536)
+                    c = c + 1
+                end
+                local old = redis.call('HGET', KEYS[i], field)
+                redis.call('HSET', KEYS[i], field, ARGV[3])
+                release(old)
+            end
+            return n
+            """, Long.class);
+    /**
+     * 删除引用. KEYS[1]: 客户端 hash; ARGV[1..2] 同 {@link #RELEASE_FUNCTION}, ARGV[3]: hash field
+     */
+    private static final RedisScript<Long> REMOVE_REF_SCRIPT = RedisScript.of(RELEASE_FUNCTION + """
+            local ref = redis.call('HGET', KEYS[1], ARGV[3])
+            if not ref then
+                return 0
+            end
+            redis.call('HDEL', KEYS[1], ARGV[3])
+            release(ref)
+            return 1
+            """, Long.class);
+    /**
+     * 删除客户端全部引用. KEYS[1]: 客户端 hash; ARGV[1..2] 同 {@link #RELEASE_FUNCTION}
+     */
+    private static final RedisScript<Long> CLEAR_REFS_SCRIPT = RedisScript.of(RELEASE_FUNCTION + """
+            local refs = redis.call('HVALS', KEYS[1])
+            redis.call('DEL', KEYS[1])
+            for _, ref in ipairs(refs) do
+                release(ref)
+            end
+            return #refs
+            """, Long.class);
+    /**
+     * 删除引用计数已归零的分段. KEYS[1]: 日志分段
+     */
+    private static final RedisScript<Long> SEAL_SCRIPT = RedisScript.of("""
+            if tonumber(redis.call('HGET', KEYS[1], '#refs') or '0') <= 0 then
+                return redis.call('DEL', KEYS[1])
+            end
+            return 0
+            """, Long.class);
+    private final ReactiveRedisTemplate<String, byte[]> redisTemplate;
+    private final Serializer serializer;
+    private final String pubMsgSetPrefix;
+    private final String messageIdPrefix;
+    private final String logKeyPrefix;
+    private final String brokerId;
+    private final long segmentMillis;
+    /** 分段过期时间, 为 null 时分段不过期 */
+    private final Duration segmentTtl;
+    /** 最近追加到日志的消息: uniqueId -> 日志位置, 同一条消息分发给多个客户端时只追加一次 */
+    private final Map<String, Mono<String>> appended = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Mono<String>> eldest) {
+            return size() > APPENDED_CACHE_SIZE;
+        }
+    });
+    /** 本 broker 当前追加的分段 */
+    private volatile long activeSegment = -1;
+
+    //@formatter:on
+
+    public LogPublishMessageServiceImpl(ReactiveRedisTemplate<String, byte[]> redisTemplate,
+                                        Serializer serializer,
+                                        MqttxConfig mqttxConfig) {
+        var messageLog = mqttxConfig.getMessageLog();
+        this.redisTemplate = redisTemplate;
+        this.serializer = serializer;
+        this.pubMsgSetPrefix = mqttxConfig.getRedis().getPubMsgSetPrefix();
+        this.messageIdPrefix = mqttxConfig.getRedis().getMessageIdPrefix();
+        this.logKeyPrefix = messageLog.getKeyPrefix();
+        this.brokerId = mqttxConfig.getBrokerId();
+        this.segmentMillis = messageLog.getSegmentDuration().toMillis();
+        var retention = messageLog.getRetention();
+        this.segmentTtl = retention == null || retention.isZero() || retention.isNegative() ?
+                null : messageLog.getSegmentDuration().plus(retention);
+
+        Assert.hasText(brokerId, "brokerId can't be null");
+        Assert.isTrue(segmentMillis > 0, "segmentDuration must be positive");
+    }
+
+    @Override
+    public Mono<Void> save(String clientId, PubMsg pubMsg) {
+        if (pubMsg.uniqueId() == null) {
+            pubMsg.setUuid(Uuids.timeBased());
+        }
+        return saveBatch(pubMsg, Map.of(clientId, pubMsg.getMessageId()), List.of());
+    }
+
+    /**
+     * 批量保存, 消息追加到日志后全部客户端的引用通过一次 redis 脚本调用保存, 离线客户端的 messageId 在脚本中分配
+     *
+     * @param pubMsg           publish 消息体
+     * @param messageIds       clientId -> messageId
+     * @param offlineClientIds 离线客户端
+     */
+    @Override
+    public Mono<Void> saveBatch(PubMsg pubMsg, Map<String, Integer> messageIds, List<String> offlineClientIds) {
+        final var size = messageIds.size() + offlineClientIds.size();
+        if (size == 0) {
+            return Mono.empty();
+        }
+
+        final var msg = pubMsg.uniqueId() == null ? pubMsg.copied().setUuid(Uuids.timeBased()) : pubMsg;
+        final var saveRefs = Mono.defer(() -> append(msg))
+                .flatMap(location -> {
+                    var keys = new ArrayList<String>(size + offlineClientIds.size() + 1);
+                    var args = new ArrayList<byte[]>(size + 4);
+                    args.add(bytes(logKeyPrefix));
+                    args.add(bytes(String.valueOf(currentSegment())));
+                    args.add(ref(location, msg.getQoS(), msg.uniqueId()));
+                    args.add(bytes(msg.uniqueId()));
+                    messageIds.forEach((clientId, messageId) -> {
+                        keys.add(key(clientId));
+                        args.add(bytes(String.valueOf(messageId)));
+                    });
+                    for (var clientId : offlineClientIds) {
+                        keys.add(key(clientId));
+                        args.add(EMPTY);
+                    }
+                    for (var clientId : offlineClientIds) {
+                        keys.add(messageIdPrefix + clientId);
+                    }
+                    keys.add(logKeyPrefix + location);
+                    return redisTemplate.execute(SAVE_REFS_SCRIPT, keys, args).next();
+                });
+        // 追加缓存中的分段已被删除, 重新追加
+        return saveRefs
+                .flatMap(n -> {
+                    if (n >= 0) {
+                        return Mono.just(n);
+                    }
+                    appended.remove(msg.uniqueId());
+                    return saveRefs;
+                })
+                .doOnNext(n -> {
+                    if (n < 0) {
+                        log.warn("消息[{}]日志记录写入后被删除, 引用未保存", msg.uniqueId());
+                    }
+                })
+                .then();
+    }
+
+    @Override
+    public Mono<Void> clear(String clientId) {
+        return redisTemplate.execute(CLEAR_REFS_SCRIPT, List.of(key(clientId)),
+                        List.of(bytes(logKeyPrefix), bytes(String.valueOf(currentSegment()))))
+                .then();
+    }
+
+    @Override
+    public Mono<Void> remove(String clientId, int messageId) {
+        return redisTemplate.execute(REMOVE_REF_SCRIPT, List.of(key(clientId)),
+                        List.of(bytes(logKeyPrefix), bytes(String.valueOf(currentSegment())), bytes(String.valueOf(messageId))))
+                .then();
+    }
+
+    @Override
+    public Flux<PubMsg> search(String clientId) {
+        return redisTemplate.opsForHash()
+                .entries(key(clientId))
+                .flatMap(entry -> {
+                    final var value = (byte[]) entry.getValue();
+                    if (!isRef(value)) {
+                        var pubMsg = serializer.deserialize(value, PubMsg.class);
+                        if (pubMsg.isPayloadSharable()) {
+                            log.warn("客户端[{}]消息[{}]为共享载荷消息, 日志存储不支持回放", clientId, pubMsg.getMessageId());
+                            return Mono.<PubMsg>empty();
+                        }
+                        return Mono.just(pubMsg);
+                    }
+
+                    // 引用: 分段|qos|uniqueId
+                    final var messageId = Integer.parseInt((String) entry.getKey());
+                    final var ref = new String(value, REF_MARKER.length, value.length - REF_MARKER.length, StandardCharsets.UTF_8)
+                            .split("\\" + REF_DELIMITER);
+                    return redisTemplate.opsForHash().get(logKeyPrefix + ref[0], ref[2])
+                            .map(bytes -> serializer.deserialize((byte[]) bytes, PubMsg.class)
+                                    .setQoS(Integer.parseInt(ref[1]))
+                                    .setMessageId(messageId))
+                            .switchIfEmpty(Mono.defer(() -> {
+                                log.warn("客户端[{}]消息[{}]所在日志分段[{}]已删除", clientId, messageId, ref[0]);
+                                return remove(clientId, messageId).then(Mono.empty());
+                            }));
+                });
+    }
+
+    /**
+     * 追加消息到日志, 最近已追加的消息直接返回其位置
+     *
+     * @param pubMsg 消息
+     * @return 日志位置, 即分段 key 去掉前缀
+     */
+    private Mono<String> append(PubMsg pubMsg) {
+        final var uniqueId = pubMsg.uniqueId();
+        return appended.computeIfAbsent(uniqueId, k -> {
+            final var segment = currentSegment();
+            final var location = brokerId + ":" + segment;
+            final var record = pubMsg.detached()
+                    .setMessageId(0)
+                    .setAppointedClientId(null)
+                    .setPayloadSharable(false);
+            var put = redisTemplate.opsForHash().put(logKeyPrefix + location, uniqueId, serializer.serialize(record));
+            final var previous = activeSegment;
+            if (segment != previous) {
+                put = put.flatMap(b -> rollover(location, segment, previous).thenReturn(b))
+                        .doOnSuccess(b -> activeSegment = segment);
+            }
+            return put.thenReturn(location)
+                    .doOnError(t -> appended.remove(uniqueId))
+                    .cache();
+        });
+    }
+
+    /**
+     * 开始追加新分段: 设置新分段的过期时间, 删除本 broker 上一分段中引用计数已归零的分段
+     *
+     * @param location 新分段位置
+     * @param segment  新分段
+     * @param previous 上一分段, 启动后首次追加时为 -1
+     */
+    private Mono<Void> rollover(String location, long segment, long previous) {
+        var rollover = segmentTtl == null ? Mono.<Void>empty() : redisTemplate.expire(logKeyPrefix + location, segmentTtl).then();
+        if (previous >= 0 && previous < segment) {
+            rollover = rollover.then(redisTemplate.execute(SEAL_SCRIPT, List.of(logKeyPrefix + brokerId + ":" + previous)).then());
+        }
+        return rollover;
+    }
+
+    private long currentSegment() {
+        return System.currentTimeMillis() / segmentMillis;
+    }
+
+    private byte[] ref(String location, int qos, String uniqueId) {
+        var body = (location + REF_DELIMITER + qos + REF_DELIMITER + uniqueId).getBytes(StandardCharsets.UTF_8);
+        var ref = new byte[REF_MARKER.length + body.length];
+        System.arraycopy(REF_MARKER, 0, ref, 0, REF_MARKER.length);
+        System.arraycopy(body, 0, ref, REF_MARKER.length, body.length);
+        return ref;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static boolean isRef(byte[] value) {
+        return value.length > REF_MARKER.length && value[0] == REF_MARKER[0] && value[1] == REF_MARKER[1];
+    }
+
+    private String key(String clientId) {
+        return pubMsgSetPrefix + clientId;
+    }
+}
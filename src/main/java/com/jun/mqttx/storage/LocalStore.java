@@ -0,0 +1,489 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * 嵌入式本地存储, 用于单机部署时替代 redis.
+ * <p>
+ * 日志结构的 key-value 存储:
+ * <ul>
+ *     <li>写入: 记录追加到内存映射(mmap)的段文件, 段文件写满后创建新段. 记录格式
+ *     {@code [长度 4][crc32 4][类型 1][key 长度 2][key][value]}, 删除写入墓碑记录</li>
+ *     <li>提交: 写入返回的 {@link CompletableFuture} 在记录 fsync 后完成. 刷盘线程每 {@code syncInterval} 对期间写入的段执行一次
+ *     {@link MappedByteBuffer#force()}, 同一间隔内的写入共享一次 fsync(group commit). future 在 {@link ForkJoinPool#commonPool()}
+ *     中完成, 调用方的后续处理不会占用刷盘线程</li>
+ *     <li>读取: 内存索引(有序, 支持前缀扫描)记录每个 key 最新记录的位置, 直接从映射内存中读取 value</li>
+ *     <li>恢复: 启动时按序重放全部段文件重建索引, 遇到长度或 crc 非法的记录(写入中断)时截断</li>
+ *     <li>回收: 全部段中失效记录的字节数超过一个段时, 将最早的段中仍有效的记录重新追加到当前段, 然后删除该段.
+ *     每个段维护其中有效记录的 key 集合, 回收只访问最早的段中的记录, 不遍历全部索引</li>
+ * </ul>
+ * 写操作串行执行, 读操作无锁.
+ *
+ * @since 1.2.4
+ */
+@Slf4j
+public class LocalStore implements AutoCloseable {
+    //@formatter:off
+
+    private static final String SUFFIX = ".seg";
+    /** 长度 + crc + 类型 + key 长度 */
+    private static final int HEADER = 4 + 4 + 1 + 2;
+    private static final byte PUT = 1, DELETE = 2;
+    private final Path dir;
+    private final int segmentSize;
+    private final long syncIntervalNanos;
+    /** key -> 最新记录位置, 仅在持有 {@link #lock} 时经 {@link #index(String, Location)}、{@link #unindex(String)} 修改 */
+    private final ConcurrentSkipListMap<String, Location> index = new ConcurrentSkipListMap<>();
+    private final Object lock = new Object();
+    /** 以下字段由 lock 保护 */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final Set<Segment> dirty = new HashSet<>();
+    private CompletableFuture<Void> commit = new CompletableFuture<>();
+    private Segment active;
+    private long deadBytes;
+    private final Thread syncThread;
+    private volatile boolean closed;
+
+    //@formatter:on
+
+    /**
+     * @param dir          段文件目录
+     * @param segmentSize  段文件大小, 单条记录不能超过该值
+     * @param syncInterval 刷盘间隔
+     */
+    public LocalStore(Path dir, int segmentSize, Duration syncInterval) {
+        Assert.isTrue(segmentSize > HEADER, "segmentSize too small");
+        Assert.isTrue(!syncInterval.isNegative() && !syncInterval.isZero(), "syncInterval must be positive");
+
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncIntervalNanos = syncInterval.toNanos();
+        try {
+            Files.createDirectories(dir);
+            recover();
+        } catch (IOException e) {
+            throw new UncheckedIOException("本地存储初始化失败: " + dir, e);
+        }
+
+        this.syncThread = new Thread(this::syncLoop, "local-store-sync");
+        this.syncThread.setDaemon(true);
+        this.syncThread.start();
+    }
+
+    /**
+     * @param key key
+     * @return value, 不存在时为 null
+     */
+    public byte[] get(String key) {
+        var location = index.get(key);
+        return location == null ? null : location.value();
+    }
+
+    /**
+     * @param key key
+     * @return true 如果 key 存在
+     */
+    public boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * 获取前缀匹配的全部 key-value, 按 key 排序
+     *
+     * @param prefix key 前缀
+     * @return key -> value
+     */
+    public Map<String, byte[]> scan(String prefix) {
+        var result = new LinkedHashMap<String, byte[]>();
+        for (var e : index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).entrySet()) {
+            result.put(e.getKey(), e.getValue().value());
+        }
+        return result;
+    }
+
+    /**
+     * 获取前缀匹配的全部 key, 按 key 排序, 不读取 value
+     *
+     * @param prefix key 前缀
+     * @return key 集合视图, 弱一致
+     */
+    public Set<String> scanKeys(String prefix) {
+        return index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet();
+    }
+
+    /**
+     * 写入 key-value
+     *
+     * @param key   key
+     * @param value value
+     * @return 记录 fsync 后完成
+     */
+    public CompletableFuture<Void> put(String key, byte[] value) {
+        synchronized (lock) {
+            index(key, append(PUT, key, value));
+            return commit;
+        }
+    }
+
+    /**
+     * 删除 key
+     *
+     * @param key key
+     * @return 记录 fsync 后完成, key 不存在时立即完成
+     */
+    public CompletableFuture<Void> remove(String key) {
+        synchronized (lock) {
+            return remove0(key) ? commit : CompletableFuture.completedFuture(null);
+        }
+    }
+
+    /**
+     * 删除前缀匹配的全部 key
+     *
+     * @param prefix key 前缀
+     * @return 删除的 key 数量, 记录 fsync 后完成
+     */
+    public CompletableFuture<Integer> removePrefix(String prefix) {
+        synchronized (lock) {
+            var keys = new ArrayList<>(index.subMap(prefix, true, prefix + Character.MAX_VALUE, false).keySet());
+            keys.forEach(this::remove0);
+            return keys.isEmpty() ? CompletableFuture.completedFuture(0) : commit.thenApply(unused -> keys.size());
+        }
+    }
+
+    /**
+     * 计数器原子递增, value 为 8 字节 long, key 不存在时从 0 开始
+     *
+     * @param key   key
+     * @param delta 增量
+     * @return 递增后的值, 记录 fsync 后完成
+     */
+    public CompletableFuture<Long> increment(String key, long delta) {
+        synchronized (lock) {
+            var current = get(key);
+            var next = (current == null ? 0 : ByteBuffer.wrap(current).getLong()) + delta;
+            index(key, append(PUT, key, ByteBuffer.allocate(8).putLong(next).array()));
+            return commit.thenApply(unused -> next);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        syncThread.interrupt();
+        try {
+            syncThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sync();
+        synchronized (lock) {
+            for (var segment : segments) {
+                try {
+                    segment.channel.close();
+                } catch (IOException e) {
+                    log.error("段文件关闭失败: " + segment.path, e);
+                }
+            }
+        }
+    }
+
+    private boolean remove0(String key) {
+        if (unindex(key) == null) {
+            return false;
+        }
+        // 墓碑本身也是失效记录
+        var tombstone = append(DELETE, key, new byte[0]);
+        tombstone.segment.deadBytes += tombstone.length;
+        deadBytes += tombstone.length;
+        return true;
+    }
+
+    /**
+     * 追加记录到当前段, 当前段空间不足时创建新段. 调用方持有 lock.
+     */
+    private Location append(byte type, String key, byte[] value) {
+        var keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        var length = HEADER + keyBytes.length + value.length;
+        Assert.isTrue(keyBytes.length <= Short.MAX_VALUE, "key too long");
+        Assert.isTrue(length <= segmentSize, "记录大小超过段文件大小");
+
+        if (active == null || active.position + length > segmentSize) {
+            active = createSegment(active == null ? 1 : active.id + 1);
+        }
+        var offset = active.position;
+        var crc = new CRC32();
+        crc.update(type);
+        crc.update(keyBytes.length >>> 8);
+        crc.update(keyBytes.length);
+        crc.update(keyBytes);
+        crc.update(value);
+
+        var buf = active.buffer.duplicate();
+        buf.position(offset);
+        buf.putInt(length)
+                .putInt((int) crc.getValue())
+                .put(type)
+                .putShort((short) keyBytes.length)
+                .put(keyBytes)
+                .put(value);
+        active.position += length;
+        dirty.add(active);
+        return new Location(active, offset, length, offset + HEADER + keyBytes.length, value.length);
+    }
+
+    /**
+     * 更新 key 的最新记录位置, 旧记录计入失效字节数. 调用方持有 lock.
+     */
+    private void index(String key, Location location) {
+        var old = index.put(key, location);
+        if (old != null) {
+            old.segment.keys.remove(key);
+            discard(old);
+        }
+        location.segment.keys.add(key);
+    }
+
+    /**
+     * 移除 key 的索引, 旧记录计入失效字节数. 调用方持有 lock.
+     *
+     * @return 旧记录位置, key 不存在时为 null
+     */
+    private Location unindex(String key) {
+        var old = index.remove(key);
+        if (old != null) {
+            old.segment.keys.remove(key);
+            discard(old);
+        }
+        return old;
+    }
+
+    /**
+     * 记录被覆盖或删除, 计入失效字节数. 调用方持有 lock.
+     */
+    private void discard(Location old) {
+        if (old != null) {
+            old.segment.deadBytes += old.length;
+            deadBytes += old.length;
+        }
+    }
+
+    private Segment createSegment(int id) {
+        try {
+            var segment = Segment.open(dir.resolve(String.format("%010d%s", id, SUFFIX)), id, segmentSize);
+            segments.add(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("段文件创建失败", e);
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(dir)) {
+            files = stream.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).sorted().toList();
+        }
+        var records = 0;
+        for (var file : files) {
+            var name = file.getFileName().toString();
+            var segment = Segment.open(file, Integer.parseInt(name.substring(0, name.length() - SUFFIX.length())),
+                    (int) Math.max(Files.size(file), segmentSize));
+            segments.add(segment);
+            active = segment;
+            records += replay(segment);
+        }
+        log.info("本地存储加载完成, 目录: {}, 段文件: {}, 记录: {}, key: {}", dir, files.size(), records, index.size());
+    }
+
+    /**
+     * 重放段文件中的记录, 遇到非法记录时截断
+     *
+     * @return 有效记录数
+     */
+    private int replay(Segment segment) {
+        var buf = segment.buffer.duplicate();
+        var records = 0;
+        var offset = 0;
+        while (offset + HEADER <= buf.capacity()) {
+            var length = buf.getInt(offset);
+            if (length < HEADER || offset + length > buf.capacity()) {
+                break;
+            }
+            var keyLength = buf.getShort(offset + 9);
+            var crc = new CRC32();
+            crc.update(buf.slice(offset + 8, length - 8));
+            if ((int) crc.getValue() != buf.getInt(offset + 4) || HEADER + keyLength > length) {
+                log.warn("段文件 {} 在偏移量 {} 处记录损坏, 截断", segment.path, offset);
+                break;
+            }
+            var keyBytes = new byte[keyLength];
+            buf.get(offset + HEADER, keyBytes);
+            var key = new String(keyBytes, StandardCharsets.UTF_8);
+            var location = new Location(segment, offset, length, offset + HEADER + keyLength, length - HEADER - keyLength);
+            if (buf.get(offset + 8) == PUT) {
+                index(key, location);
+            } else {
+                unindex(key);
+                discard(location);
+            }
+            offset += length;
+            records++;
+        }
+        segment.position = offset;
+        return records;
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(syncIntervalNanos);
+                sync();
+                compact();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) {
+                log.error("本地存储刷盘任务异常: " + t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * 刷盘并完成本批次的写入
+     */
+    private void sync() {
+        CompletableFuture<Void> batch;
+        List<Segment> toSync;
+        synchronized (lock) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+            batch = commit;
+            commit = new CompletableFuture<>();
+            toSync = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+        Throwable cause = null;
+        try {
+            toSync.forEach(segment -> segment.buffer.force());
+        } catch (Throwable t) {
+            cause = t;
+        }
+        final var error = cause;
+        ForkJoinPool.commonPool().execute(() -> {
+            if (error == null) {
+                batch.complete(null);
+            } else {
+                batch.completeExceptionally(error);
+            }
+        });
+    }
+
+    /**
+     * 失效字节数超过一个段时回收最早的段
+     */
+    private void compact() {
+        while (true) {
+            Segment oldest;
+            synchronized (lock) {
+                if (deadBytes < segmentSize || segments.size() < 2) {
+                    return;
+                }
+                oldest = segments.peekFirst();
+                // 有效记录重新追加到当前段
+                var keys = new ArrayList<>(oldest.keys);
+                for (var key : keys) {
+                    index(key, append(PUT, key, index.get(key).value()));
+                }
+                segments.pollFirst();
+                dirty.remove(oldest);
+                deadBytes -= oldest.deadBytes;
+                log.debug("回收段文件 {}, 迁移记录 {} 条", oldest.path, keys.size());
+            }
+
+            // 迁移的记录落盘后才能删除旧段
+            sync();
+            try {
+                oldest.channel.close();
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                log.error("段文件删除失败: " + oldest.path, e);
+            }
+        }
+    }
+
+    /**
+     * 段文件
+     */
+    private static final class Segment {
+
+        private final Path path;
+        private final int id;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        /** 最新记录位于该段的 key, 由 lock 保护 */
+        private final Set<String> keys = new HashSet<>();
+        /** 写入位置, 由 lock 保护 */
+        private int position;
+        /** 失效记录字节数, 由 lock 保护 */
+        private long deadBytes;
+
+        private Segment(Path path, int id, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.id = id;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private static Segment open(Path path, int id, int size) throws IOException {
+            var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(path, id, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+    }
+
+    /**
+     * 记录位置
+     */
+    private record Location(Segment segment, int offset, int length, int valueOffset, int valueLength) {
+
+        private byte[] value() {
+            var value = new byte[valueLength];
+            segment.buffer.get(valueOffset, value);
+            return value;
+        }
+    }
+}
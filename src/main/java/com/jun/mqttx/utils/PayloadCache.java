@@ -0,0 +1,264 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import org.springframework.lang.Nullable;
+import org.springframework.util.Assert;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 共享载荷本地缓存, 按字节数限制容量.
+ * <p>
+ * 每个载荷记录引用计数, 即本地关联的未确认消息数量. 超出容量时优先淘汰引用计数为 0 的载荷, 其次淘汰引用中的载荷, 同类按 LRU 顺序;
+ * 被淘汰的载荷仍保存在 redis 中, 调用方在未命中时回源读取.
+ * <p>
+ * 引用中与未引用的载荷分别维护一条 LRU 双向链表, 访问时移至所在链表尾部, 引用计数在 0 与非 0 之间变化时在两条链表间移动,
+ * 淘汰时从链表头部取出; 全部操作均为 O(1), 不随缓存规模增长.
+ *
+ * @since 1.2.4
+ */
+public final class PayloadCache {
+    //@formatter:off
+
+    /** 命中次数 */
+    public static final LongAdder HIT = new LongAdder();
+    /** 未命中次数 */
+    public static final LongAdder MISS = new LongAdder();
+    /** 淘汰的载荷数量 */
+    public static final LongAdder EVICTED = new LongAdder();
+    /** 缓存的载荷字节数 */
+    public static final AtomicLong BYTES = new AtomicLong();
+    /** 缓存的载荷数量 */
+    public static final AtomicLong ENTRIES = new AtomicLong();
+    private final long maxBytes;
+    /** uniqueId -> 载荷 */
+    private final Map<String, Entry> entries = new HashMap<>(256);
+    /** 引用计数为 0 的载荷, 头部最久未访问 */
+    private final LruList unreferenced = new LruList();
+    /** 引用中的载荷, 头部最久未访问 */
+    private final LruList referenced = new LruList();
+    private long bytes;
+
+    //@formatter:on
+
+    /**
+     * @param maxBytes 载荷字节数上限
+     */
+    public PayloadCache(long maxBytes) {
+        Assert.isTrue(maxBytes >= 0, "maxBytes can't be negative");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * 获取载荷
+     *
+     * @param uniqueId 消息唯一 id
+     * @return 载荷, 未命中时返回 null
+     */
+    @Nullable
+    public synchronized byte[] get(String uniqueId) {
+        var entry = entries.get(uniqueId);
+        if (entry == null) {
+            MISS.increment();
+            return null;
+        }
+        HIT.increment();
+        touch(entry);
+        return entry.payload;
+    }
+
+    /**
+     * 判断载荷是否已缓存, 不影响 LRU 顺序及命中统计
+     *
+     * @param uniqueId 消息唯一 id
+     */
+    public synchronized boolean contains(String uniqueId) {
+        return entries.containsKey(uniqueId);
+    }
+
+    /**
+     * 缓存载荷并增加引用计数
+     *
+     * @param uniqueId 消息唯一 id
+     * @param payload  载荷
+     * @param refs     新增的引用数
+     */
+    public synchronized void retain(String uniqueId, byte[] payload, int refs) {
+        var entry = entries.get(uniqueId);
+        if (entry == null) {
+            if (!add(uniqueId, payload, refs)) {
+                return;
+            }
+        } else {
+            listOf(entry).unlink(entry);
+            entry.refs += refs;
+            listOf(entry).append(entry);
+        }
+        evict();
+    }
+
+    /**
+     * 缓存从 redis 读取的载荷, 不增加引用计数
+     *
+     * @param uniqueId 消息唯一 id
+     * @param payload  载荷
+     */
+    public synchronized void put(String uniqueId, byte[] payload) {
+        if (!entries.containsKey(uniqueId) && add(uniqueId, payload, 0)) {
+            evict();
+        }
+    }
+
+    /**
+     * 减少引用计数, 引用计数为 0 的载荷保留在缓存中, 优先被淘汰
+     *
+     * @param uniqueId 消息唯一 id
+     */
+    public synchronized void release(String uniqueId) {
+        var entry = entries.get(uniqueId);
+        if (entry != null && entry.refs > 0) {
+            if (--entry.refs == 0) {
+                referenced.unlink(entry);
+                unreferenced.append(entry);
+            }
+        }
+    }
+
+    /**
+     * 移除载荷, 用于 redis 中的载荷被删除后
+     *
+     * @param uniqueId 消息唯一 id
+     */
+    public synchronized void invalidate(String uniqueId) {
+        var entry = entries.remove(uniqueId);
+        if (entry != null) {
+            listOf(entry).unlink(entry);
+            removed(entry);
+        }
+    }
+
+    /**
+     * @return false 如果载荷超过缓存容量
+     */
+    private boolean add(String uniqueId, byte[] payload, int refs) {
+        if (payload.length > maxBytes) {
+            return false;
+        }
+        var entry = new Entry(uniqueId, payload, refs);
+        entries.put(uniqueId, entry);
+        listOf(entry).append(entry);
+        bytes += payload.length;
+        BYTES.addAndGet(payload.length);
+        ENTRIES.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 超出容量时先按 LRU 顺序淘汰引用计数为 0 的载荷, 仍超出时再淘汰引用中的载荷
+     */
+    private void evict() {
+        while (bytes > maxBytes) {
+            var entry = unreferenced.poll();
+            if (entry == null) {
+                entry = referenced.poll();
+            }
+            if (entry == null) {
+                return;
+            }
+            entries.remove(entry.uniqueId);
+            removed(entry);
+            EVICTED.increment();
+        }
+    }
+
+    private void touch(Entry entry) {
+        var list = listOf(entry);
+        list.unlink(entry);
+        list.append(entry);
+    }
+
+    private LruList listOf(Entry entry) {
+        return entry.refs == 0 ? unreferenced : referenced;
+    }
+
+    private void removed(Entry entry) {
+        bytes -= entry.payload.length;
+        BYTES.addAndGet(-entry.payload.length);
+        ENTRIES.decrementAndGet();
+    }
+
+    private static final class Entry {
+
+        private final String uniqueId;
+        private final byte[] payload;
+        /** 引用计数 */
+        private int refs;
+        private Entry prev, next;
+
+        private Entry(String uniqueId, byte[] payload, int refs) {
+            this.uniqueId = uniqueId;
+            this.payload = payload;
+            this.refs = refs;
+        }
+    }
+
+    /**
+     * 侵入式 LRU 双向链表, 节点即 {@link Entry}
+     */
+    private static final class LruList {
+
+        private Entry head, tail;
+
+        private void append(Entry entry) {
+            entry.prev = tail;
+            entry.next = null;
+            if (tail == null) {
+                head = entry;
+            } else {
+                tail.next = entry;
+            }
+            tail = entry;
+        }
+
+        private void unlink(Entry entry) {
+            if (entry.prev == null) {
+                head = entry.next;
+            } else {
+                entry.prev.next = entry.next;
+            }
+            if (entry.next == null) {
+                tail = entry.prev;
+            } else {
+                entry.next.prev = entry.prev;
+            }
+            entry.prev = entry.next = null;
+        }
+
+        @Nullable
+        private Entry poll() {
+            var entry = head;
+            if (entry != null) {
+                unlink(entry);
+            }
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import com.jun.mqttx.entity.ClientSub;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * 订阅关系二进制快照, 用于应用重启时快速恢复内存中的订阅索引.
+ * <p>
+ * 文件格式:
+ * <pre>
+ * +-------+---------+-----------+-------+-------------------------------------------------------------+
+ * | magic | version | createdAt | count | entry * count                                               |
+ * | int   | int     | long      | int   | clientId(utf) topic(utf) qos(byte) cleanSession(bool)       |
+ * |       |         |           |       | hasShareName(bool) [shareName(utf)]                         |
+ * +-------+---------+-----------+-------+-------------------------------------------------------------+
+ * </pre>
+ * 写入时先写临时文件再原子替换, 避免进程中断导致快照损坏.
+ *
+ * @since 1.2.4
+ */
+@Slf4j
+public final class SubscriptionSnapshot {
+    //@formatter:off
+
+    /** "MQXS" */
+    private static final int MAGIC = 0x4D515853;
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    //@formatter:on
+
+    private SubscriptionSnapshot() {
+    }
+
+    /**
+     * 写入快照
+     *
+     * @param path       快照文件路径
+     * @param clientSubs 订阅关系
+     * @throws IOException 写入失败
+     */
+    public static void write(Path path, Collection<ClientSub> clientSubs) throws IOException {
+        var parent = path.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+
+        var tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(clientSubs.size());
+            for (var clientSub : clientSubs) {
+                out.writeUTF(clientSub.getClientId());
+                out.writeUTF(clientSub.getTopic());
+                out.writeByte(clientSub.getQos());
+                out.writeBoolean(clientSub.isCleanSession());
+                var shareSub = clientSub.isShareSub();
+                out.writeBoolean(shareSub);
+                if (shareSub) {
+                    out.writeUTF(clientSub.getShareName());
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 读取快照
+     *
+     * @param path     快照文件路径
+     * @param consumer 订阅关系处理
+     * @return 快照创建时间戳, 快照不存在或格式非法时返回 -1, 此时调用方应丢弃已处理的订阅关系
+     */
+    public static long read(Path path, Consumer<ClientSub> consumer) {
+        if (!Files.isRegularFile(path)) {
+            return -1;
+        }
+
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                log.warn("订阅快照格式非法, 忽略: {}", path);
+                return -1;
+            }
+            var createdAt = in.readLong();
+            var count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                var clientId = in.readUTF();
+                var topic = in.readUTF();
+                var qos = in.readByte();
+                var cleanSession = in.readBoolean();
+                var shareName = in.readBoolean() ? in.readUTF() : null;
+                consumer.accept(ClientSub.of(clientId, qos, topic, cleanSession, shareName));
+            }
+            return createdAt;
+        } catch (IOException e) {
+            log.warn("订阅快照读取失败, 忽略: " + path, e);
+            return -1;
+        }
+    }
+}
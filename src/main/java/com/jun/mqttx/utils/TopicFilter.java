@@ -0,0 +1,203 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import org.springframework.util.Assert;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * 预编译的 topicFilter.
+ * <p>
+ * 订阅时解析一次, 记录各层级在 filter 中的偏移量及通配符位置; 之后的匹配直接在 publish 主题的字符上逐层比较,
+ * 不产生任何对象分配. 对于共享订阅 <code>$share/{ShareName}/{filter}</code>, {@link #filter()} 为去掉共享前缀后的部分.
+ *
+ * @since 1.2.4
+ */
+public final class TopicFilter {
+    //@formatter:off
+
+    private static final byte LITERAL = 0, SINGLE_LEVEL = 1, MULTI_LEVEL = 2;
+    private static final char SEPARATOR = '/';
+    /** 原始订阅主题, 可能包含共享前缀 */
+    private final String topicFilter;
+    /** 共享订阅 ShareName, 非共享订阅为 null */
+    private final String shareName;
+    /** 去掉共享前缀后的 filter */
+    private final String filter;
+    /** 各层级在 filter 中的起始、结束偏移量 */
+    private final int[] starts, ends;
+    /** 各层级类别 */
+    private final byte[] types;
+    private final boolean wildcard;
+
+    //@formatter:on
+
+    private TopicFilter(String topicFilter, String shareName, String filter) {
+        this.topicFilter = topicFilter;
+        this.shareName = shareName;
+        this.filter = filter;
+
+        // 统计层级
+        var levels = 1;
+        for (int i = 0; i < filter.length(); i++) {
+            if (filter.charAt(i) == SEPARATOR) {
+                levels++;
+            }
+        }
+        this.starts = new int[levels];
+        this.ends = new int[levels];
+        this.types = new byte[levels];
+
+        var hasWildcard = false;
+        for (int i = 0, start = 0; i < levels; i++) {
+            var end = filter.indexOf(SEPARATOR, start);
+            if (end < 0) {
+                end = filter.length();
+            }
+            starts[i] = start;
+            ends[i] = end;
+            if (end - start == 1 && filter.charAt(start) == '+') {
+                types[i] = SINGLE_LEVEL;
+                hasWildcard = true;
+            } else if (end - start == 1 && filter.charAt(start) == '#') {
+                types[i] = MULTI_LEVEL;
+                hasWildcard = true;
+            } else {
+                types[i] = LITERAL;
+            }
+            start = end + 1;
+        }
+        this.wildcard = hasWildcard;
+    }
+
+    /**
+     * 编译 topicFilter, 调用方应先通过 {@link TopicUtils#isValid(String)} 校验主题合法性.
+     *
+     * @param topicFilter 订阅主题, 可以是共享主题
+     * @return {@link TopicFilter}
+     */
+    public static TopicFilter compile(String topicFilter) {
+        Assert.hasText(topicFilter, "topicFilter can't be empty");
+
+        if (TopicUtils.isShare(topicFilter)) {
+            var shareTopic = TopicUtils.parseFrom(topicFilter);
+            return new TopicFilter(topicFilter, shareTopic.name(), shareTopic.filter());
+        }
+        return new TopicFilter(topicFilter, null, topicFilter);
+    }
+
+    /**
+     * 判定 publish 主题是否匹配当前 filter, 匹配过程无对象分配.
+     *
+     * @param topic 发布主题
+     * @return true if topic match this filter
+     */
+    public boolean matches(String topic) {
+        final var len = topic.length();
+        var pos = 0;
+        for (int i = 0; i < types.length; i++) {
+            var type = types[i];
+
+            // "#" 匹配剩余的全部层级, 包括父级, 如 "a/#" 匹配 "a"
+            if (type == MULTI_LEVEL) {
+                return true;
+            }
+
+            // 发布主题层级少于 filter
+            if (pos > len) {
+                return false;
+            }
+
+            var end = topic.indexOf(SEPARATOR, pos);
+            if (end < 0) {
+                end = len;
+            }
+            if (type == LITERAL) {
+                var levelLen = ends[i] - starts[i];
+                if (end - pos != levelLen || !topic.regionMatches(pos, filter, starts[i], levelLen)) {
+                    return false;
+                }
+            }
+            pos = end + 1;
+        }
+
+        // 发布主题层级必须恰好匹配完
+        return pos > len;
+    }
+
+    /**
+     * @return 原始订阅主题, 可能包含共享前缀
+     */
+    public String topicFilter() {
+        return topicFilter;
+    }
+
+    /**
+     * @return 去掉共享前缀后的 filter
+     */
+    public String filter() {
+        return filter;
+    }
+
+    /**
+     * @return 共享订阅 ShareName, 非共享订阅为 null
+     */
+    public String shareName() {
+        return shareName;
+    }
+
+    public boolean isShare() {
+        return shareName != null;
+    }
+
+    /**
+     * @return true if filter contain "+" or "#"
+     */
+    public boolean hasWildcard() {
+        return wildcard;
+    }
+
+    /**
+     * @return filter 层级数量
+     */
+    public int levels() {
+        return types.length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        TopicFilter that = (TopicFilter) o;
+        return Objects.equals(topicFilter, that.topicFilter);
+    }
+
+    @Override
+    public int hashCode() {
+        return topicFilter.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "TopicFilter{" +
+                "topicFilter='" + topicFilter + '\'' +
+                ", types=" + Arrays.toString(types) +
+                '}';
+    }
+}
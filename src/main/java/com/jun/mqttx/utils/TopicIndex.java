@@ -0,0 +1,168 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * 发布主题索引, 按主题层级(以 '/' 分割)组织一组不含通配符的发布主题, 用于按 topicFilter 反查受影响的主题.
+ * <p>
+ * 查找时沿 filter 层级走树: 精确层级只访问同名子节点, "+" 访问当前层全部子节点, "#" 访问整棵子树; 开销与命中的主题数量相关,
+ * 与索引的总量无关. 结果为候选集, 调用方需再以 {@link TopicFilter#matches(String)} 确认(例如 "$" 开头的主题规则).
+ * <p>
+ * 写入仅发生在路由缓存未命中、淘汰及订阅变更时, 全部操作串行化.
+ *
+ * @since 1.2.4
+ */
+public class TopicIndex {
+    //@formatter:off
+
+    private static final char SEPARATOR = '/';
+    private static final String SINGLE_LEVEL = "+", MULTI_LEVEL = "#";
+    private final Node root = new Node(null, null);
+    /** 索引中的主题数量 */
+    private int size;
+
+    //@formatter:on
+
+    /**
+     * 添加发布主题, 已存在时忽略
+     *
+     * @param topic 发布主题
+     */
+    public synchronized void add(String topic) {
+        var node = root;
+        var start = 0;
+        while (true) {
+            var end = levelEnd(topic, start);
+            final var parent = node;
+            node = node.children.computeIfAbsent(topic.substring(start, end), k -> new Node(parent, k));
+            if (end == topic.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (node.topic == null) {
+            node.topic = topic;
+            size++;
+        }
+    }
+
+    /**
+     * 移除发布主题
+     *
+     * @param topic 发布主题
+     */
+    public synchronized void remove(String topic) {
+        var node = root;
+        var start = 0;
+        while (node != null) {
+            var end = levelEnd(topic, start);
+            node = node.children.get(topic.substring(start, end));
+            if (end == topic.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        if (node == null || node.topic == null) {
+            return;
+        }
+
+        node.topic = null;
+        size--;
+        // 自下而上移除无主题且无子节点的节点
+        while (node.parent != null && node.topic == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.level);
+            node = node.parent;
+        }
+    }
+
+    /**
+     * 查找可能被 topicFilter 匹配的发布主题
+     *
+     * @param filter   topicFilter, 不含共享前缀
+     * @param consumer 候选主题处理, 调用期间持有索引锁, 不可回调修改索引
+     */
+    public synchronized void forEachCandidate(String filter, Consumer<String> consumer) {
+        forEachCandidate(root, filter, 0, consumer);
+    }
+
+    /**
+     * @return 索引中的主题数量
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void forEachCandidate(Node node, String filter, int start, Consumer<String> consumer) {
+        // filter 层级已全部走完
+        if (start > filter.length()) {
+            if (node.topic != null) {
+                consumer.accept(node.topic);
+            }
+            return;
+        }
+
+        var end = levelEnd(filter, start);
+        var level = filter.substring(start, end);
+        if (MULTI_LEVEL.equals(level)) {
+            // "#" 同时匹配父级, 如 "a/#" 匹配 "a"
+            forEachTopic(node, consumer);
+        } else if (SINGLE_LEVEL.equals(level)) {
+            for (var child : node.children.values()) {
+                forEachCandidate(child, filter, end + 1, consumer);
+            }
+        } else {
+            var child = node.children.get(level);
+            if (child != null) {
+                forEachCandidate(child, filter, end + 1, consumer);
+            }
+        }
+    }
+
+    private void forEachTopic(Node node, Consumer<String> consumer) {
+        if (node.topic != null) {
+            consumer.accept(node.topic);
+        }
+        for (var child : node.children.values()) {
+            forEachTopic(child, consumer);
+        }
+    }
+
+    private static int levelEnd(String topic, int start) {
+        var end = topic.indexOf(SEPARATOR, start);
+        return end < 0 ? topic.length() : end;
+    }
+
+    private static final class Node {
+
+        /** 父节点, root 为 null */
+        private final Node parent;
+        /** 当前节点层级 */
+        private final String level;
+        private final Map<String, Node> children = new HashMap<>();
+        /** 以当前节点结尾的发布主题, 不存在时为 null */
+        private String topic;
+
+        private Node(Node parent, String level) {
+            this.parent = parent;
+            this.level = level;
+        }
+    }
+}
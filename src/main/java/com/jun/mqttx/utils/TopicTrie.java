@@ -0,0 +1,412 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.utils;
+
+import com.jun.mqttx.entity.ClientSub;
+import com.jun.mqttx.entity.ShareGroup;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 主题订阅前缀树, 按主题层级(以 '/' 分割)组织 topicFilter 及其订阅者.
+ * <p>
+ * 通配符 "+", "#" 作为普通层级节点保存, 匹配时沿树同时走精确、"+"、"#" 三个分支, 查找开销只与 publish 主题的层级深度相关,
+ * 与 topicFilter 的总量无关.
+ * <p>
+ * 并发策略: 写操作(订阅、解除订阅)只锁定目标节点, 不同 topicFilter 的写操作互不阻塞; 读操作(匹配)无锁. 普通订阅者保存在节点内的
+ * {@link ConcurrentHashMap} 中, 添加、移除均为 O(1), 不随节点订阅者数量增长. 节点被剪除时先在自身锁内标记 removed, 新建子节点需持有
+ * 父节点锁并检查该标记, 保证未被剪除的节点始终挂在树上; 写操作遇到已剪除节点时从根节点重试.
+ * <p>
+ * 共享订阅按 (topicFilter, ShareName) 预先组织为 {@link ShareGroup}, 匹配时整组返回, 由调用方按策略选取成员.
+ * <p>
+ * 启动加载(本地存储、快照恢复、redis 全量加载)使用 {@link #subscribeAll(Collection)}, 按 topicFilter 分组后每个节点只查找、加锁一次.
+ *
+ * @since 1.2.4
+ */
+public class TopicTrie {
+    //@formatter:off
+
+    private static final char SEPARATOR = '/';
+    private static final String SINGLE_LEVEL = "+", MULTI_LEVEL = "#";
+    private static final ShareGroup[] EMPTY_GROUPS = new ShareGroup[0];
+    private final Node root = new Node(null, null, null);
+    /** 存在订阅者的 topicFilter 数量 */
+    private final AtomicInteger size = new AtomicInteger();
+
+    //@formatter:on
+
+    /**
+     * 保存订阅关系, filter 取自 {@link ClientSub#getTopic()}. 如果订阅已存在则替换(qos 可能不同).
+     *
+     * @param clientSub 客户端订阅
+     */
+    public void subscribe(ClientSub clientSub) {
+        subscribe(clientSub.getTopic(), List.of(clientSub));
+    }
+
+    /**
+     * 批量保存订阅关系, 语义同 {@link #subscribe(ClientSub)}. 按 topicFilter 分组, 每个 filter 只查找、加锁一次, 适用于启动时全量加载.
+     *
+     * @param clientSubs 客户端订阅集合
+     */
+    public void subscribeAll(Collection<ClientSub> clientSubs) {
+        // 按 filter 排序后逐段写入, 避免为每个 filter 单独分配分组集合
+        var sorted = clientSubs.toArray(ClientSub[]::new);
+        Arrays.sort(sorted, Comparator.comparing(ClientSub::getTopic));
+        var list = Arrays.asList(sorted);
+        var from = 0;
+        for (int i = 1; i <= sorted.length; i++) {
+            if (i == sorted.length || !sorted[i].getTopic().equals(sorted[from].getTopic())) {
+                subscribe(sorted[from].getTopic(), list.subList(from, i));
+                from = i;
+            }
+        }
+    }
+
+    /**
+     * 移除订阅关系, filter 取自 {@link ClientSub#getTopic()}.
+     *
+     * @param clientSub 客户端订阅
+     * @return true 如果移除后该 filter 已无任何订阅者
+     */
+    public boolean unsubscribe(ClientSub clientSub) {
+        var node = find(clientSub.getTopic());
+        if (node == null) {
+            return false;
+        }
+        synchronized (node) {
+            if (node.removed) {
+                return false;
+            }
+            if (clientSub.isShareSub()) {
+                var groups = node.shareGroups;
+                node.shareGroups = leaveGroup(groups, clientSub);
+                if (node.shareGroups == groups) {
+                    return false;
+                }
+            } else if (node.subscribers.remove(clientSub) == null) {
+                return false;
+            }
+            if (!node.isEmpty()) {
+                return false;
+            }
+            size.decrementAndGet();
+        }
+
+        prune(node);
+        return true;
+    }
+
+    /**
+     * 查找匹配 publish 主题的全部订阅者
+     *
+     * @param topic         发布主题
+     * @param consumer      普通订阅者处理
+     * @param groupConsumer 共享订阅组处理
+     */
+    public void match(String topic, Consumer<ClientSub> consumer, Consumer<ShareGroup> groupConsumer) {
+        match(root, topic, 0, consumer, groupConsumer);
+    }
+
+    /**
+     * 判断 topicFilter 是否存在订阅者
+     *
+     * @param filter topicFilter
+     * @return true if filter has subscribers
+     */
+    public boolean contains(String filter) {
+        var node = find(filter);
+        return node != null && !node.isEmpty();
+    }
+
+    /**
+     * 遍历存在订阅者的全部 topicFilter
+     *
+     * @param consumer filter 处理
+     */
+    public void forEachFilter(Consumer<String> consumer) {
+        forEachFilter(root, consumer);
+    }
+
+    /**
+     * @return 存在订阅者的 topicFilter 数量
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * 将同一 filter 下的订阅者加入对应节点
+     */
+    private void subscribe(String filter, List<ClientSub> clientSubs) {
+        while (true) {
+            var node = obtain(filter);
+            synchronized (node) {
+                // 查找与加锁之间节点被剪除, 重试
+                if (node.removed) {
+                    continue;
+                }
+                var wasEmpty = node.isEmpty();
+                Map<String, List<ClientSub>> shares = null;
+                for (var clientSub : clientSubs) {
+                    if (clientSub.isShareSub()) {
+                        if (shares == null) {
+                            shares = new HashMap<>();
+                        }
+                        shares.computeIfAbsent(clientSub.getShareName(), k -> new ArrayList<>()).add(clientSub);
+                    } else {
+                        node.subscribers.put(clientSub, clientSub);
+                    }
+                }
+                if (shares != null) {
+                    var groups = node.shareGroups;
+                    for (var e : shares.entrySet()) {
+                        groups = joinGroup(groups, e.getKey(), filter, e.getValue());
+                    }
+                    node.shareGroups = groups;
+                }
+                if (wasEmpty && !node.isEmpty()) {
+                    size.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 查找 filter 对应节点, 不存在则沿途创建. 返回的节点可能在调用方加锁前被剪除, 调用方需检查 {@link Node#removed}
+     */
+    private Node obtain(String filter) {
+        retry:
+        while (true) {
+            var node = root;
+            var start = 0;
+            while (true) {
+                var end = levelEnd(filter, start);
+                var level = filter.substring(start, end);
+                var child = node.children.get(level);
+                if (child == null || child.removed) {
+                    synchronized (node) {
+                        if (node.removed) {
+                            continue retry;
+                        }
+                        final var parent = node;
+                        final var nodeFilter = filter.substring(0, end);
+                        child = node.children.compute(level, (k, v) -> v == null || v.removed ? new Node(parent, k, nodeFilter) : v);
+                    }
+                }
+                node = child;
+                if (end == filter.length()) {
+                    return node;
+                }
+                start = end + 1;
+            }
+        }
+    }
+
+    private void match(Node node, String topic, int start, Consumer<ClientSub> consumer, Consumer<ShareGroup> groupConsumer) {
+        // "#" 匹配当前层级及其全部子层级, 同时也匹配父级, 如 "a/#" 匹配 "a"
+        var multi = node.children.get(MULTI_LEVEL);
+        if (multi != null) {
+            accept(multi, consumer, groupConsumer);
+        }
+
+        // 主题层级已全部匹配
+        if (start > topic.length()) {
+            accept(node, consumer, groupConsumer);
+            return;
+        }
+
+        var end = levelEnd(topic, start);
+        var exact = node.children.get(topic.substring(start, end));
+        if (exact != null) {
+            match(exact, topic, end + 1, consumer, groupConsumer);
+        }
+        var single = node.children.get(SINGLE_LEVEL);
+        if (single != null) {
+            match(single, topic, end + 1, consumer, groupConsumer);
+        }
+    }
+
+    private void forEachFilter(Node node, Consumer<String> consumer) {
+        if (!node.isEmpty()) {
+            consumer.accept(node.filter);
+        }
+        for (var child : node.children.values()) {
+            forEachFilter(child, consumer);
+        }
+    }
+
+    private Node find(String filter) {
+        var node = root;
+        var start = 0;
+        while (node != null) {
+            var end = levelEnd(filter, start);
+            node = node.children.get(filter.substring(start, end));
+            if (end == filter.length()) {
+                break;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    /**
+     * 自下而上移除无订阅者且无子节点的节点. 每个节点在自身锁内标记 removed 并从父节点摘除, 父节点新建子节点时持有父节点锁,
+     * 因此二者不会交错.
+     */
+    private void prune(Node node) {
+        while (node.parent != null) {
+            synchronized (node) {
+                if (node.removed || !node.isEmpty() || !node.children.isEmpty()) {
+                    return;
+                }
+                node.removed = true;
+                node.parent.children.remove(node.level, node);
+            }
+            node = node.parent;
+        }
+    }
+
+    private static void accept(Node node, Consumer<ClientSub> consumer, Consumer<ShareGroup> groupConsumer) {
+        for (var clientSub : node.subscribers.values()) {
+            consumer.accept(clientSub);
+        }
+        for (var shareGroup : node.shareGroups) {
+            groupConsumer.accept(shareGroup);
+        }
+    }
+
+    /**
+     * 加入共享订阅组, 组不存在则新建, 成员已存在则替换. 返回新数组
+     */
+    private static ShareGroup[] joinGroup(ShareGroup[] groups, String shareName, String filter, List<ClientSub> joining) {
+        var idx = indexOf(groups, shareName);
+        var members = new LinkedHashMap<ClientSub, ClientSub>();
+        if (idx >= 0) {
+            for (var member : groups[idx].members()) {
+                members.put(member, member);
+            }
+        }
+        for (var clientSub : joining) {
+            members.put(clientSub, clientSub);
+        }
+        var memberArray = members.values().toArray(ClientSub[]::new);
+
+        if (idx < 0) {
+            var copy = Arrays.copyOf(groups, groups.length + 1);
+            copy[groups.length] = new ShareGroup(shareName, filter, memberArray, new AtomicInteger());
+            return copy;
+        }
+        var group = groups[idx];
+        var copy = groups.clone();
+        copy[idx] = new ShareGroup(group.shareName(), group.filter(), memberArray, group.cursor());
+        return copy;
+    }
+
+    /**
+     * 离开共享订阅组, 组内无成员时移除该组. 订阅者不存在时返回原数组
+     */
+    private static ShareGroup[] leaveGroup(ShareGroup[] groups, ClientSub clientSub) {
+        var idx = indexOf(groups, clientSub.getShareName());
+        if (idx < 0) {
+            return groups;
+        }
+        var group = groups[idx];
+        var members = remove(group.members(), clientSub);
+        if (members == group.members()) {
+            return groups;
+        }
+
+        if (members.length > 0) {
+            var copy = groups.clone();
+            copy[idx] = new ShareGroup(group.shareName(), group.filter(), members, group.cursor());
+            return copy;
+        }
+        if (groups.length == 1) {
+            return EMPTY_GROUPS;
+        }
+        var copy = new ShareGroup[groups.length - 1];
+        System.arraycopy(groups, 0, copy, 0, idx);
+        System.arraycopy(groups, idx + 1, copy, idx, copy.length - idx);
+        return copy;
+    }
+
+    /**
+     * 移除共享组成员, 成员不存在时返回原数组
+     */
+    private static ClientSub[] remove(ClientSub[] members, ClientSub clientSub) {
+        var idx = -1;
+        for (int i = 0; i < members.length; i++) {
+            if (members[i].equals(clientSub)) {
+                idx = i;
+                break;
+            }
+        }
+        if (idx < 0) {
+            return members;
+        }
+        var copy = new ClientSub[members.length - 1];
+        System.arraycopy(members, 0, copy, 0, idx);
+        System.arraycopy(members, idx + 1, copy, idx, copy.length - idx);
+        return copy;
+    }
+
+    private static int indexOf(ShareGroup[] groups, String shareName) {
+        for (int i = 0; i < groups.length; i++) {
+            if (groups[i].shareName().equals(shareName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int levelEnd(String topic, int start) {
+        var end = topic.indexOf(SEPARATOR, start);
+        return end < 0 ? topic.length() : end;
+    }
+
+    private static final class Node {
+
+        /** 父节点, root 为 null */
+        private final Node parent;
+        /** 当前节点层级 */
+        private final String level;
+        /** root 至当前节点组成的 topicFilter */
+        private final String filter;
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        /** 普通订阅者, key 与 value 为同一订阅(qos 变更时替换 value) */
+        private final Map<ClientSub, ClientSub> subscribers = new ConcurrentHashMap<>();
+        /** 共享订阅组 copy-on-write 数组, 仅在持有当前节点锁时整体替换 */
+        private volatile ShareGroup[] shareGroups = EMPTY_GROUPS;
+        /** 节点已从树上剪除, 仅在持有当前节点锁时修改 */
+        private volatile boolean removed;
+
+        private Node(Node parent, String level, String filter) {
+            this.parent = parent;
+            this.level = level;
+            this.filter = filter;
+        }
+
+        private boolean isEmpty() {
+            return subscribers.isEmpty() && shareGroups.length == 0;
+        }
+    }
+}
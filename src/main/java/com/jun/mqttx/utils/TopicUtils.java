@@ -16,15 +16,14 @@
 
 package com.jun.mqttx.utils;
 
-import com.jun.mqttx.broker.handler.AbstractMqttSessionHandler;
+import com.jun.mqttx.broker.ClientConnection;
 import com.jun.mqttx.entity.ShareTopic;
-import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.util.AttributeKey;
 import org.springframework.util.ObjectUtils;
 
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Function;
 
 /**
  * mqtt topic工具类
@@ -79,7 +78,7 @@ public class TopicUtils {
      * @return true 如果被授权
      */
     public static boolean hasAuthToSubTopic(ChannelHandlerContext ctx, String topic) {
-        return hasAuth(ctx, topic, AbstractMqttSessionHandler.AUTHORIZED_SUB_TOPICS);
+        return hasAuth(ctx, topic, ClientConnection::authorizedSubTopics);
     }
 
     /**
@@ -90,7 +89,7 @@ public class TopicUtils {
      * @return true 如果被授权
      */
     public static boolean hasAuthToPubTopic(ChannelHandlerContext ctx, String topic) {
-        return hasAuth(ctx, topic, AbstractMqttSessionHandler.AUTHORIZED_PUB_TOPICS);
+        return hasAuth(ctx, topic, ClientConnection::authorizedPubTopics);
     }
 
     /**
@@ -98,17 +97,15 @@ public class TopicUtils {
      *
      * @param ctx   {@link ChannelHandlerContext}
      * @param topic 订阅 topic
-     * @param type  授权类别 {@link AbstractMqttSessionHandler#AUTHORIZED_PUB_TOPICS},{@link AbstractMqttSessionHandler#AUTHORIZED_SUB_TOPICS}
+     * @param type  授权类别 {@link ClientConnection#authorizedPubTopics()},{@link ClientConnection#authorizedSubTopics()}
      * @return true 如果被授权
      */
-    @SuppressWarnings("unchecked")
-    private static boolean hasAuth(ChannelHandlerContext ctx, String topic, String type) {
-        Channel channel = ctx.channel();
-        Object topics = channel.attr(AttributeKey.valueOf(type)).get();
-        if (topics == null) {
+    private static boolean hasAuth(ChannelHandlerContext ctx, String topic, Function<ClientConnection, List<String>> type) {
+        ClientConnection connection = ClientConnection.of(ctx.channel());
+        List<String> authorizedTopics = connection == null ? null : type.apply(connection);
+        if (authorizedTopics == null) {
             return false;
         }
-        List<String> authorizedTopics = (List<String>) topics;
         for (String authorizedTopic : authorizedTopics) {
             if (TopicUtils.match(topic, authorizedTopic)) {
                 return true;
@@ -140,18 +137,19 @@ public class TopicUtils {
      * @return true if topic is sharable
      */
     public static boolean isShare(String topic) {
-        String[] split = topic.split("/");
-        int len = split.length;
-        if (len < 3) {
+        final int prefixLen = SHARE_TOPIC.length();
+        if (topic == null || !topic.startsWith(SHARE_TOPIC) || topic.length() <= prefixLen || topic.charAt(prefixLen) != '/') {
             return false;
         }
 
-        for (int i = 0; i < split.length; i++) {
-            String s = split[i];
-            if (i == 0 && !SHARE_TOPIC.equals(s)) {
-                return false;
-            }
-            if (i == 1 && (s.contains("+") || s.contains("#"))) {
+        // ShareName 不能为空, 且不允许含有 "+", "#"
+        int nameEnd = topic.indexOf('/', prefixLen + 1);
+        if (nameEnd <= prefixLen + 1 || nameEnd == topic.length() - 1) {
+            return false;
+        }
+        for (int i = prefixLen + 1; i < nameEnd; i++) {
+            char c = topic.charAt(i);
+            if (c == '+' || c == '#') {
                 return false;
             }
         }
@@ -167,24 +165,10 @@ public class TopicUtils {
      * @return 共享主题 filter 和 shareName
      */
     public static ShareTopic parseFrom(String topic) {
-        String[] split = topic.split("/");
-
         // 抓取第二个 / 后全部字符
-        var idx = 0;
-        var filterStartIndex = 0;
-        char[] charArray = topic.toCharArray();
-        for (int i = 0; i < charArray.length; i++) {
-            if (charArray[i] == '/') {
-                idx++;
-            }
-
-            if (idx == 2) {
-                filterStartIndex = i;
-                break;
-            }
-        }
-        var filter = topic.substring(filterStartIndex + 1);
-        return new ShareTopic(split[1], filter);
+        int nameStart = topic.indexOf('/') + 1;
+        int nameEnd = topic.indexOf('/', nameStart);
+        return new ShareTopic(topic.substring(nameStart, nameEnd), topic.substring(nameEnd + 1));
     }
 
     /**
@@ -207,57 +191,57 @@ public class TopicUtils {
         // 2 不允许 " " 空字符出现
         // 3 "#" 只能出现在末位
         // 4 "/" 不允许出现在末位
-        char[] allChar = subTopic.toCharArray();
-        int len = allChar.length;
-        for (int i = 0, j = Integer.MIN_VALUE; i < len; i++) {
-            char c = allChar[i];
-            if (c == '/') {
-                if (i == j + 1) {
+        // 5 不允许 a/b+/c，a/b# 等非法 topicFilter
+        final int len = subTopic.length();
+        boolean isStartWithShare = false;
+        int level = 0, levelStart = 0;
+        boolean levelHasWildcard = false;
+        for (int i = 0; i <= len; i++) {
+            char c = i < len ? subTopic.charAt(i) : '/';
+            if (c == ' ') {
+                return false;
+            }
+            if (c == '#' || c == '+') {
+                if (c == '#' && i != len - 1) {
                     return false;
                 }
-                j = i;
+                levelHasWildcard = true;
+                continue;
             }
-            if (' ' == c) {
-                return false;
+            if (c != '/') {
+                continue;
             }
-            if (c == '#' && i != len - 1) {
+
+            // [levelStart, i) 为一个完整层级
+            int levelLen = i - levelStart;
+            if (i == len - 1 || (levelLen == 0 && level > 0)) {
                 return false;
             }
-            if ('/' == c && i == len - 1) {
+            if (levelHasWildcard && levelLen > 1) {
                 return false;
             }
-        }
-
-        // 5 不允许 a/b+/c，a/b# 等非法 topicFilter
-        String[] split = subTopic.split("/");
-        boolean isStartWithShare = false;
-        for (int i = 0; i < split.length; i++) {
-            String fragment = split[i];
-            if (fragment.contains("+") || fragment.contains("#")) {
-                if (fragment.length() > 1) {
-                    return false;
-                }
-            }
 
             // 增加共享订阅主题合法性判断
-            if (i == 0 && SHARE_TOPIC.equalsIgnoreCase(fragment)) {
+            if (level == 0 && levelLen == SHARE_TOPIC.length() && subTopic.regionMatches(true, 0, SHARE_TOPIC, 0, levelLen)) {
                 isStartWithShare = true;
             }
-            if (isStartWithShare && i == 1 && (fragment.contains("+") || fragment.contains("#"))) {
+            if (isStartWithShare && level == 1 && levelHasWildcard) {
                 return false;
             }
-        }
 
-        // 如果是共享主题，不允许少于三个 fragment
-        if (isStartWithShare && split.length < 3) {
-            return false;
+            level++;
+            levelStart = i + 1;
+            levelHasWildcard = false;
         }
 
-        return true;
+        // 如果是共享主题，不允许少于三个 fragment
+        return !isStartWithShare || level >= 3;
     }
 
     /**
-     * 用于判定客户订阅的主题是否匹配发布主题
+     * 用于判定客户订阅的主题是否匹配发布主题, 逐层比较字符, 无对象分配.
+     * <p>
+     * 同一 topicFilter 需要重复匹配时(如保留消息检索), 应使用 {@link TopicFilter#compile(String)} 预编译.
      *
      * @param pub 发布主题
      * @param sub 订阅主题 - topicFilter
@@ -267,66 +251,40 @@ public class TopicUtils {
         if (Objects.equals(pub, sub)) {
             return true;
         }
-        if (!sub.contains("#") && !sub.contains("+")) {
-            return false;
-        }
 
-        boolean result = true;
-        String[] pubs = pub.split("/");
-        String[] subs = sub.split("/");
-        int pubsLen = pubs.length;
-        int subsLen = subs.length;
-        if (pubsLen >= subsLen) {
-            // 发布主题层级高于订阅层级
-            for (int i = 0; i < pubsLen; i++) {
-                String pubStr = pubs[i];
-                String subStr = subs[i];
-                if ("#".equals(subStr)) {
-                    break;
-                }
-                if ("+".equals(subStr)) {
-                    if (i == subsLen - 1) {
-                        if (pubsLen != subsLen) {
-                            result = false;
-                        }
-                        break;
-                    }
+        final int pubLen = pub.length(), subLen = sub.length();
+        int p = 0, s = 0;
+        while (s <= subLen) {
+            int subEnd = sub.indexOf('/', s);
+            if (subEnd < 0) {
+                subEnd = subLen;
+            }
+            int levelLen = subEnd - s;
 
-                    continue;
-                }
-                if (!Objects.equals(pubStr, subStr)) {
-                    result = false;
-                    break;
-                }
+            // "#" 匹配剩余的全部层级, 包括父级
+            if (levelLen == 1 && sub.charAt(s) == '#') {
+                return true;
+            }
+            // 发布主题层级少于订阅层级
+            if (p > pubLen) {
+                return false;
+            }
 
-                // 有效长度匹配完成，后续无法匹配
-                if (i == subsLen - 1) {
-                    if (pubsLen != subsLen) {
-                        result = false;
-                    }
-                    break;
-                }
+            int pubEnd = pub.indexOf('/', p);
+            if (pubEnd < 0) {
+                pubEnd = pubLen;
             }
-        } else {
-            if (sub.endsWith("#") && subsLen == pubsLen + 1) {
-                // 这里只需要比较 pubsLen 的字符即可
-                for (int i = 0; i < pubsLen; i++) {
-                    String pubStr = pubs[i];
-                    String subStr = subs[i];
-                    if ("+".equals(subStr)) {
-                        continue;
-                    }
-                    if (!Objects.equals(pubStr, subStr)) {
-                        result = false;
-                        break;
-                    }
+            if (!(levelLen == 1 && sub.charAt(s) == '+')) {
+                if (pubEnd - p != levelLen || !pub.regionMatches(p, sub, s, levelLen)) {
+                    return false;
                 }
-            } else {
-                return false;
             }
+            p = pubEnd + 1;
+            s = subEnd + 1;
         }
 
-        return result;
+        // 有效长度匹配完成，发布主题不能有剩余层级
+        return p > pubLen;
     }
 
     /**
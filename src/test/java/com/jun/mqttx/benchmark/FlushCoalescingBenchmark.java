@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.benchmark;
+
+import com.jun.mqttx.broker.handler.FlushCoalescingHandler;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * flush 合并基准: 同一轮 event loop 任务中向同一 channel 写出多个报文(如一次读取产生的多个 PUBACK, 或同一订阅者的突发消息),
+ * 每个报文均调用 {@code writeAndFlush}, 对比有无 {@link FlushCoalescingHandler} 时的吞吐及到达 channel 的 flush 次数.
+ * <p>
+ * 基于本机回环 TCP 连接, 每次操作写出 {@code messages} 个报文并等待对端全部接收. 辅助计数 {@code flushes} 为到达
+ * channel 的 flush 次数, 每次 flush 对应一次 write 系统调用; 与操作吞吐之比即每次操作的系统调用数.
+ * 运行方式见 {@link TopicTrieChurnBenchmark}.
+ *
+ * @since 1.2.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlushCoalescingBenchmark {
+    //@formatter:off
+
+    /** 每次操作写出的报文数 */
+    @Param({"16", "256"})
+    private int messages;
+    /** 报文字节数 */
+    @Param({"128"})
+    private int frameSize;
+    @Param({"false", "true"})
+    private boolean coalescing;
+    private NioEventLoopGroup serverGroup, clientGroup;
+    private Channel server, client;
+    private ByteBuf frame;
+    private Sink sink;
+    private FlushCounter flushCounter;
+
+    //@formatter:on
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        frame = Unpooled.directBuffer(frameSize).writeZero(frameSize);
+        sink = new Sink();
+        flushCounter = new FlushCounter();
+        serverGroup = new NioEventLoopGroup(1);
+        clientGroup = new NioEventLoopGroup(1);
+        server = new ServerBootstrap()
+                .group(serverGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(sink)
+                .bind("127.0.0.1", 0).sync().channel();
+        client = new Bootstrap()
+                .group(clientGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.TCP_NODELAY, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(flushCounter);
+                        if (coalescing) {
+                            ch.pipeline().addLast(new FlushCoalescingHandler(256, Duration.ZERO));
+                        }
+                    }
+                })
+                .connect(server.localAddress()).sync().channel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        client.close().syncUninterruptibly();
+        server.close().syncUninterruptibly();
+        clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        frame.release();
+    }
+
+    @Benchmark
+    public void writeAndFlush(Syscalls syscalls) {
+        final var done = sink.expect((long) messages * frameSize);
+        final var before = flushCounter.flushes;
+        client.eventLoop().execute(() -> {
+            for (int i = 0; i < messages; i++) {
+                client.writeAndFlush(frame.retainedDuplicate());
+            }
+        });
+        done.join();
+        syscalls.flushes += client.eventLoop().submit(() -> flushCounter.flushes - before).syncUninterruptibly().getNow();
+    }
+
+    /**
+     * 到达 channel 的 flush 次数, 按 {@link Mode#Throughput} 与操作吞吐同一单位输出
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Syscalls {
+        public long flushes;
+    }
+
+    /**
+     * 位于 pipeline 头部, 统计实际写入 channel 的 flush 次数, 只在 event loop 中访问
+     */
+    @ChannelHandler.Sharable
+    private static class FlushCounter extends ChannelOutboundHandlerAdapter {
+        private long flushes;
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            flushes++;
+            ctx.flush();
+        }
+    }
+
+    /**
+     * 接收端, 丢弃数据并在接收字节数达到预期时完成
+     */
+    @ChannelHandler.Sharable
+    private static class Sink extends ChannelInboundHandlerAdapter {
+        private long remaining;
+        private CompletableFuture<Void> done;
+
+        synchronized CompletableFuture<Void> expect(long bytes) {
+            remaining = bytes;
+            done = new CompletableFuture<>();
+            return done;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            var bytes = ((ByteBuf) msg).readableBytes();
+            ((ByteBuf) msg).release();
+            synchronized (this) {
+                remaining -= bytes;
+                if (remaining <= 0 && done != null) {
+                    done.complete(null);
+                }
+            }
+        }
+    }
+}
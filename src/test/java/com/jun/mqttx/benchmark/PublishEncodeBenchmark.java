@@ -0,0 +1,134 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.benchmark;
+
+import com.jun.mqttx.broker.codec.EncodedPublishEncoder;
+import com.jun.mqttx.broker.codec.PublishFrames;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.*;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 大量订阅者的 PUBLISH 编码基准: 每个订阅者创建 {@link MqttPublishMessage} 经 {@link MqttEncoder} 编码, 与
+ * {@link PublishFrames} 预编码一次后经 {@link EncodedPublishEncoder} 写出对比. 每次操作为一条消息分发给 {@code fanout} 个订阅者,
+ * 订阅者共用同一 {@link EmbeddedChannel}, 每 {@link #FLUSH_BATCH} 次写出 flush 一次并释放出站缓冲. 运行方式见
+ * {@link TopicTrieChurnBenchmark}.
+ *
+ * @since 1.2.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PublishEncodeBenchmark {
+    //@formatter:off
+
+    private static final String TOPIC = "tenant/7/device/1024/telemetry";
+    private static final int FLUSH_BATCH = 128;
+
+    /** 订阅者数量 */
+    @Param({"10000"})
+    private int fanout;
+    /** 载荷字节数 */
+    @Param({"64", "4096", "65536"})
+    private int payloadSize;
+    @Param({"0", "1"})
+    private int qos;
+    private ByteBuf payload;
+    private EmbeddedChannel perSubscriberChannel;
+    private EmbeddedChannel encodeOnceChannel;
+
+    //@formatter:on
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var bytes = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        payload = Unpooled.directBuffer(payloadSize).writeBytes(bytes);
+        perSubscriberChannel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+        encodeOnceChannel = new EmbeddedChannel(MqttEncoder.INSTANCE, EncodedPublishEncoder.INSTANCE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        perSubscriberChannel.finishAndReleaseAll();
+        encodeOnceChannel.finishAndReleaseAll();
+        payload.release();
+    }
+
+    @Benchmark
+    public int perSubscriber() {
+        final var mqttQoS = MqttQoS.valueOf(qos);
+        int bytes = 0;
+        for (int i = 0; i < fanout; i++) {
+            var message = new MqttPublishMessage(
+                    new MqttFixedHeader(MqttMessageType.PUBLISH, false, mqttQoS, false, 0),
+                    new MqttPublishVariableHeader(TOPIC, messageId(i)),
+                    payload.retainedDuplicate());
+            perSubscriberChannel.write(message);
+            if (i % FLUSH_BATCH == FLUSH_BATCH - 1) {
+                bytes += drain(perSubscriberChannel);
+            }
+        }
+        return bytes + drain(perSubscriberChannel);
+    }
+
+    @Benchmark
+    public int encodeOnce() {
+        final var mqttQoS = MqttQoS.valueOf(qos);
+        final var frames = new PublishFrames(TOPIC, false, payload);
+        int bytes = 0;
+        try {
+            for (int i = 0; i < fanout; i++) {
+                encodeOnceChannel.write(frames.encode(mqttQoS, messageId(i), encodeOnceChannel.alloc()));
+                if (i % FLUSH_BATCH == FLUSH_BATCH - 1) {
+                    bytes += drain(encodeOnceChannel);
+                }
+            }
+        } finally {
+            frames.release();
+        }
+        return bytes + drain(encodeOnceChannel);
+    }
+
+    private int messageId(int i) {
+        return qos == 0 ? 0 : i % 65535 + 1;
+    }
+
+    /**
+     * 释放已写出的缓冲, 返回写出字节数
+     */
+    private static int drain(EmbeddedChannel channel) {
+        channel.flush();
+        int bytes = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            bytes += ((ByteBuf) msg).readableBytes();
+            ReferenceCountUtil.release(msg);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.benchmark;
+
+import com.jun.mqttx.entity.ClientSub;
+import com.jun.mqttx.utils.TopicTrie;
+import com.jun.mqttx.utils.TopicUtils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 订阅路由基准: {@link TopicTrie#match} 与逐个 {@link TopicUtils#match(String, String)} 扫描全部通配符 filter 对比.
+ * 每个 publish 主题命中 2 个 filter, 扫描的开销随 filter 数量增长, trie 只与主题层级数相关. 运行方式见 {@link TopicTrieChurnBenchmark}.
+ *
+ * @since 1.2.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicMatchBenchmark {
+    //@formatter:off
+
+    private static final int TENANTS = 50;
+
+    /** 通配符 filter 数量 */
+    @Param({"1000", "40000"})
+    private int filters;
+    private TopicTrie trie;
+    /** 扫描方式的订阅, 对应原 hasWildcardTopics 中的 filter 及其订阅者 */
+    private List<ClientSub> wildcardSubs;
+
+    //@formatter:on
+
+    @Setup(Level.Trial)
+    public void setup() {
+        wildcardSubs = new ArrayList<>(filters);
+        for (int i = 0; i < filters; i++) {
+            var filter = i % 2 == 0 ?
+                    "tenant/" + (i / 2 % TENANTS) + "/device/" + i / 2 + "/#" :
+                    "tenant/+/device/" + i / 2 + "/status";
+            wildcardSubs.add(ClientSub.of("client-" + i, 1, filter, false));
+        }
+        trie = new TopicTrie();
+        trie.subscribeAll(wildcardSubs);
+    }
+
+    @Benchmark
+    public void trie(Blackhole bh) {
+        trie.match(topic(), bh::consume, bh::consume);
+    }
+
+    @Benchmark
+    public void scan(Blackhole bh) {
+        final var topic = topic();
+        for (var clientSub : wildcardSubs) {
+            if (TopicUtils.match(topic, clientSub.getTopic())) {
+                bh.consume(clientSub);
+            }
+        }
+    }
+
+    /**
+     * 随机 publish 主题, 命中一个 {@code #} filter 和一个 {@code +} filter
+     */
+    private String topic() {
+        var device = ThreadLocalRandom.current().nextInt(filters / 2);
+        return "tenant/" + device % TENANTS + "/device/" + device + "/status";
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.benchmark;
+
+import com.jun.mqttx.entity.ClientSub;
+import com.jun.mqttx.utils.TopicTrie;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TopicTrie} 订阅变更基准: 大量客户端在同一热点 filter 及分散 filter 上频繁订阅/解除订阅, 同时并发匹配.
+ * <p>
+ * 运行方式:
+ * <pre>
+ * mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java \
+ *     -Dexec.args="-cp %classpath org.openjdk.jmh.Main TopicTrieChurnBenchmark"
+ * </pre>
+ *
+ * @since 1.2.4
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicTrieChurnBenchmark {
+    //@formatter:off
+
+    static final String HOT_FILTER = "device/+/status";
+
+    /** 热点 filter 下的订阅者数量 */
+    @Param({"1000", "100000"})
+    private int hotSubscribers;
+    /** 分散 filter 数量 */
+    @Param({"10000"})
+    private int filters;
+    private TopicTrie trie;
+    private ClientSub[] churn;
+
+    //@formatter:on
+
+    @Setup(Level.Trial)
+    public void setup() {
+        var subs = new ArrayList<ClientSub>(hotSubscribers + filters);
+        for (int i = 0; i < hotSubscribers; i++) {
+            subs.add(ClientSub.of("hot-" + i, 1, HOT_FILTER, false));
+        }
+        for (int i = 0; i < filters; i++) {
+            subs.add(ClientSub.of("client-" + i, 1, "device/" + i + "/telemetry/#", false));
+        }
+        trie = new TopicTrie();
+        trie.subscribeAll(subs);
+
+        churn = new ClientSub[1024];
+        for (int i = 0; i < churn.length; i++) {
+            churn[i] = i % 2 == 0 ?
+                    ClientSub.of("churn-" + i, 1, HOT_FILTER, true) :
+                    ClientSub.of("churn-" + i, 1, "device/churn-" + i + "/telemetry/#", true);
+        }
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(4)
+    public boolean subscribeUnsubscribe() {
+        var clientSub = churn[ThreadLocalRandom.current().nextInt(churn.length)];
+        trie.subscribe(clientSub);
+        return trie.unsubscribe(clientSub);
+    }
+
+    @Benchmark
+    @Group("churn")
+    @GroupThreads(2)
+    public void match(Blackhole bh) {
+        var id = ThreadLocalRandom.current().nextInt(filters);
+        trie.match("device/" + id + "/telemetry/temp", bh::consume, bh::consume);
+    }
+}
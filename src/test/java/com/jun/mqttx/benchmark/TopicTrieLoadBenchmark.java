@@ -0,0 +1,71 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jun.mqttx.benchmark;
+
+import com.jun.mqttx.entity.ClientSub;
+import com.jun.mqttx.utils.TopicTrie;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TopicTrie} 启动加载基准: 逐条订阅与 {@link TopicTrie#subscribeAll(java.util.Collection)} 批量订阅对比.
+ * 运行方式见 {@link TopicTrieChurnBenchmark}.
+ *
+ * @since 1.2.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TopicTrieLoadBenchmark {
+    //@formatter:off
+
+    @Param({"100000"})
+    private int size;
+    private List<ClientSub> subs;
+
+    //@formatter:on
+
+    @Setup(Level.Trial)
+    public void setup() {
+        subs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            // 1/10 的订阅集中在同一 filter 上
+            var filter = i % 10 == 0 ? TopicTrieChurnBenchmark.HOT_FILTER : "device/" + i + "/telemetry/#";
+            subs.add(ClientSub.of("client-" + i, 1, filter, false));
+        }
+    }
+
+    @Benchmark
+    public TopicTrie loadEach() {
+        var t = new TopicTrie();
+        subs.forEach(t::subscribe);
+        return t;
+    }
+
+    @Benchmark
+    public TopicTrie loadBulk() {
+        var t = new TopicTrie();
+        t.subscribeAll(subs);
+        return t;
+    }
+}
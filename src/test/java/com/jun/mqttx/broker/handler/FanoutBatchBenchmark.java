@@ -0,0 +1,142 @@
+/*
+ * Copyright 2020-2023 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.jun.mqttx.broker.handler;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.local.LocalChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 大量订阅者分发基准: 在非 event loop 线程中逐个调用 {@code writeAndFlush}, 与 {@link FanoutBatch} 按 event loop 聚合后
+ * 每个 event loop 提交一个任务对比. {@link FanoutBatch} 为包内可见, 基准置于同一包下.
+ * <p>
+ * 订阅者 channel 为注册在 {@code eventLoops} 个 event loop 上的 {@link LocalChannel}, 写出由 pipeline 中的 handler 直接丢弃,
+ * 只衡量跨线程任务提交及唤醒的开销. 每次操作分发一条消息并等待全部订阅者写出完成; 辅助计数 {@code tasks} 为提交至 event loop
+ * 的任务数, 与操作吞吐之比即每次操作提交的任务数. 运行方式见 {@link com.jun.mqttx.benchmark.TopicTrieChurnBenchmark}.
+ *
+ * @since 1.2.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBatchBenchmark {
+    //@formatter:off
+
+    /** 订阅者数量 */
+    @Param({"10000"})
+    private int fanout;
+    @Param({"16"})
+    private int eventLoops;
+    private EventLoopGroup group;
+    private Channel[] channels;
+    private ByteBuf frame;
+    private Sink sink;
+
+    //@formatter:on
+
+    @Setup(Level.Trial)
+    public void setup() {
+        frame = Unpooled.directBuffer(128).writeZero(128);
+        sink = new Sink();
+        group = new DefaultEventLoopGroup(eventLoops);
+        channels = new Channel[fanout];
+        for (int i = 0; i < fanout; i++) {
+            var channel = new LocalChannel();
+            channel.pipeline().addLast(sink);
+            group.register(channel).syncUninterruptibly();
+            channels[i] = channel;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+        frame.release();
+    }
+
+    @Benchmark
+    public void direct(Tasks tasks) {
+        final var done = sink.expect(fanout);
+        for (var channel : channels) {
+            channel.writeAndFlush(frame.retainedDuplicate());
+        }
+        done.join();
+        tasks.tasks += fanout;
+    }
+
+    @Benchmark
+    public void batched(Tasks tasks) {
+        final var done = sink.expect(fanout);
+        final var before = FanoutBatch.TASKS.sum();
+        var batch = new FanoutBatch(null, true);
+        for (var channel : channels) {
+            batch.write(channel, frame.retainedDuplicate());
+        }
+        batch.complete();
+        done.join();
+        tasks.tasks += FanoutBatch.TASKS.sum() - before;
+    }
+
+    /**
+     * 提交至 event loop 的任务数, 按 {@link Mode#Throughput} 与操作吞吐同一单位输出
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Tasks {
+        public long tasks;
+    }
+
+    /**
+     * 丢弃写出的报文, 写出数量达到预期时完成
+     */
+    @ChannelHandler.Sharable
+    private static class Sink extends ChannelOutboundHandlerAdapter {
+        private final AtomicLong remaining = new AtomicLong();
+        private volatile CompletableFuture<Void> done;
+
+        CompletableFuture<Void> expect(long writes) {
+            var future = new CompletableFuture<Void>();
+            done = future;
+            remaining.set(writes);
+            return future;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            ReferenceCountUtil.release(msg);
+            promise.setSuccess();
+            if (remaining.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+        }
+    }
+}